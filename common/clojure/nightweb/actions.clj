@@ -9,12 +9,27 @@
             [nightweb.users :as users]
             [nightweb.zip :as zip]))
 
+(def ^:const meta-torrent-delay 2000)
+(def meta-torrent-request (atom nil))
+
 (defn create-meta-torrent!
   []
-  (let [path (c/get-meta-dir @c/my-hash-str)]
-    (t/remove-torrent! (c/get-meta-torrent-file @c/my-hash-str))
-    (io/write-link-file! (t/add-torrent! path false dht/on-recv-meta!))
-    (dht/send-meta-link!)))
+  (locking meta-torrent-request
+    (let [path (c/get-meta-dir @c/my-hash-str)]
+      (t/remove-torrent! (c/get-meta-torrent-file @c/my-hash-str))
+      (io/write-link-file! (t/add-torrent! path false dht/on-recv-meta!))
+      (dht/send-meta-link!))))
+
+(defn request-meta-torrent!
+  "Creates the meta torrent after a short delay, so a burst of edits
+  only causes it to be created once."
+  []
+  (let [request (Object.)]
+    (reset! meta-torrent-request request)
+    (future
+      (Thread/sleep meta-torrent-delay)
+      (when (compare-and-set! meta-torrent-request request nil)
+        (create-meta-torrent!)))))
 
 (defn save-profile!
   [{:keys [pic-hash name-str body-str]}]
@@ -22,7 +37,7 @@
     (db/insert-profile! @c/my-hash-bytes (f/b-decode-map (f/b-decode profile)))
     (io/delete-orphaned-pics! @c/my-hash-bytes)
     (io/write-profile-file! profile)
-    (future (create-meta-torrent!))))
+    (request-meta-torrent!)))
 
 (defn new-post!
   [{:keys [pic-hashes body-str ptr-hash ptr-time status create-time]}]
@@ -37,7 +52,7 @@
                      (f/b-decode-map (f/b-decode post)))
     (io/delete-orphaned-pics! @c/my-hash-bytes)
     (io/write-post-file! file-name post)
-    (future (create-meta-torrent!))))
+    (request-meta-torrent!)))
 
 (defn toggle-fav!
   [{:keys [ptr-hash ptr-time]}]
@@ -49,7 +64,7 @@
     (db/insert-fav! @c/my-hash-bytes fav-time (f/b-decode-map (f/b-decode fav)))
     (io/write-fav-file! fav-time fav)
     (dht/add-user-hash! ptr-hash)
-    (future (create-meta-torrent!))))
+    (request-meta-torrent!)))
 
 (defn fav-default-user!
   []
@@ -57,9 +72,9 @@
     (toggle-fav! {:ptr-hash user-hash-bytes})))
 
 (defn import-user!
-  [{:keys [source-str pass-str]}]
+  [{:keys [source-str pass-str on-progress]}]
   (let [dest-str (c/get-user-dir)]
-    (if (zip/unzip-dir! source-str dest-str pass-str)
+    (if (zip/unzip-dir! source-str dest-str pass-str on-progress)
       (let [paths (zip/get-zip-headers source-str)
             user-dir (java.io/file (last paths))]
         (if (users/create-imported-user! (.getName user-dir))
@@ -68,8 +83,8 @@
       :unzip_error)))
 
 (defn export-user!
-  [{:keys [dest-str pass-str]}]
+  [{:keys [dest-str pass-str on-progress]}]
   (let [source-str (c/get-user-dir @c/my-hash-str)]
     (io/delete-file! dest-str)
-    (when (zip/zip-dir! source-str dest-str pass-str)
+    (when (zip/zip-dir! source-str dest-str pass-str on-progress)
       dest-str)))
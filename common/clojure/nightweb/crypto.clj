@@ -41,12 +41,19 @@
               ^SigningPrivateKey (SigningPrivateKey. priv-key-bytes))
        (.getData))))
 
-(defn verify-signature
-  [^bytes pub-key-bytes ^bytes sig-bytes ^bytes message-bytes]
-  (when (and pub-key-bytes sig-bytes message-bytes)
+(defn verify-signature-with-key
+  [^SigningPublicKey pub-key ^bytes sig-bytes ^bytes message-bytes]
+  (when (and pub-key sig-bytes message-bytes)
     (.verifySignature (DSAEngine/getInstance)
                       (Signature. sig-bytes)
                       message-bytes
                       0
                       (alength message-bytes)
-                      (SigningPublicKey. pub-key-bytes))))
+                      pub-key)))
+
+(defn verify-signature
+  [^bytes pub-key-bytes ^bytes sig-bytes ^bytes message-bytes]
+  (when pub-key-bytes
+    (verify-signature-with-key (SigningPublicKey. pub-key-bytes)
+                               sig-bytes
+                               message-bytes)))
@@ -15,6 +15,26 @@
           (+ limit 1)
           (* limit (if page (- page 1) 0))))
 
+(defn paginate-desc
+  "Orders a statement by descending sort and id columns and paginates it.
+  When params has an :after cursor of [sort-value id] from the last row of
+  the previous page, resumes after that row instead of using OFFSET, so each
+  page costs the same no matter how deep it is."
+  [params [sort-col id-col] [sql & args]]
+  (let [order (format " ORDER BY %s DESC, %s DESC" sort-col id-col)]
+    (if-let [[sort-val id-val] (:after params)]
+      (vec (concat [(format "%s AND (%s < ? OR (%s = ? AND %s < ?))%s LIMIT %d"
+                            sql sort-col sort-col id-col order (+ limit 1))]
+                   args
+                   [sort-val sort-val id-val]))
+      (vec (concat [(paginate (:page params) (str sql order))] args)))))
+
+(defn get-cursor
+  "Returns the :after cursor for the page following the given row."
+  [row]
+  (when (and (:time row) (:id row))
+    [(:time row) (:id row)]))
+
 (defn prepare-results
   [rs table]
   (->> (for [row rs]
@@ -67,6 +87,20 @@
    (format "CALL FT_CREATE_INDEX('PUBLIC', '%s', '%s');"
            table-name (clojure.string/join "," columns))])
 
+(defn create-indexes!
+  []
+  (jdbc/db-do-commands
+    @spec
+    true
+    "CREATE INDEX IF NOT EXISTS user_userhash ON user(userhash)"
+    "CREATE INDEX IF NOT EXISTS user_time ON user(time, id)"
+    "CREATE INDEX IF NOT EXISTS post_userhash_time ON post(userhash, time)"
+    "CREATE INDEX IF NOT EXISTS post_status_time ON post(status, time, id)"
+    "CREATE INDEX IF NOT EXISTS pic_userhash_ptrtime ON pic(userhash, ptrtime)"
+    "CREATE INDEX IF NOT EXISTS tag_title_ptrtime ON tag(title, ptrtime)"
+    "CREATE INDEX IF NOT EXISTS fav_userhash_status_mtime
+     ON fav(userhash, status, mtime)"))
+
 (defn create-tables!
   []
   (when-not (check-table :user)
@@ -91,7 +125,153 @@
     (jdbc/db-do-commands
       @spec
       true
-      (create-generic-table :tag))))
+      (create-generic-table :tag)))
+  (create-indexes!))
+
+; follow graph
+
+; the active favs of every user, kept in memory so deciding which users
+; to keep doesn't need a query per user:
+; user hash -> ptr hash -> set of ptrtimes with status 1 (nil for the user)
+(def follow-graph (atom {}))
+
+(defn update-follow-graph
+  [graph fav-rows]
+  (reduce (fn [graph {:keys [userhash ptrhash ptrtime status]}]
+            (let [user-key (f/base32-encode userhash)
+                  ptr-key (f/base32-encode ptrhash)
+                  ptr-times (get-in graph [user-key ptr-key] #{})]
+              (if (= 1 status)
+                (assoc-in graph [user-key ptr-key] (conj ptr-times ptrtime))
+                (let [ptr-times (disj ptr-times ptrtime)
+                      ptrs (if (empty? ptr-times)
+                             (dissoc (get graph user-key) ptr-key)
+                             (assoc (get graph user-key) ptr-key ptr-times))]
+                  (if (empty? ptrs)
+                    (dissoc graph user-key)
+                    (assoc graph user-key ptrs))))))
+          graph
+          (remove #(or (nil? (:userhash %)) (nil? (:ptrhash %))) fav-rows)))
+
+(defn update-follow-graph!
+  [fav-rows]
+  (swap! follow-graph update-follow-graph fav-rows))
+
+(defn load-follow-graph!
+  []
+  (reset! follow-graph
+          (update-follow-graph
+            {}
+            (jdbc/query @spec ["SELECT userhash, ptrhash, ptrtime, status 
+                               FROM fav WHERE status = 1"]))))
+
+(defn is-following?
+  "Returns true if the user has an active fav of the other user itself,
+  rather than just of one of their posts."
+  [user-hash ptr-hash]
+  (contains? (get-in @follow-graph [(f/base32-encode user-hash)
+                                    (f/base32-encode ptr-hash)])
+             nil))
+
+(defn get-followed-hashes
+  "Returns the base32 hashes of the given users, the users they have favs of,
+  and the users those users have favs of."
+  [user-hashes]
+  (let [graph @follow-graph
+        step (fn [user-keys]
+               (set (mapcat #(keys (get graph %)) user-keys)))
+        mine (set (map f/base32-encode user-hashes))
+        first-hop (step mine)]
+    (into mine (concat first-hop (step first-hop)))))
+
+; pic reference counts
+
+; how many pic rows refer to each pic file, kept in memory so finding
+; orphaned pic files doesn't need a query per file:
+; user hash -> pic hash -> count
+(def pic-refs (atom {}))
+; pics whose count dropped to zero and haven't been checked yet:
+; user hash -> set of pic hashes
+(def released-pics (atom {}))
+
+(defn get-pic-counts
+  "Returns the number of pic rows for each base32 pic hash of the user,
+  optionally limited by another condition."
+  ([db user-hash]
+   (get-pic-counts db user-hash "TRUE" []))
+  ([db user-hash where params]
+   (->> (jdbc/query db (into [(str "SELECT pichash, COUNT(*) AS total FROM pic 
+                                   WHERE userhash = ? AND pichash IS NOT NULL 
+                                   AND " where " GROUP BY pichash")
+                              user-hash]
+                             params))
+        (map (fn [row] [(f/base32-encode (:pichash row)) (:total row)]))
+        (into {}))))
+
+(defn apply-pic-deltas
+  [refs user-key deltas]
+  (let [pics (reduce (fn [pics [pic-key delta]]
+                       (let [total (+ (get pics pic-key 0) delta)]
+                         (if (pos? total)
+                           (assoc pics pic-key total)
+                           (dissoc pics pic-key))))
+                     (get refs user-key {})
+                     deltas)]
+    (if (empty? pics)
+      (dissoc refs user-key)
+      (assoc refs user-key pics))))
+
+(defn update-pic-refs!
+  "Applies the change between two results of get-pic-counts,
+  remembering the pics that are no longer referred to."
+  [user-hash before after]
+  (let [user-key (f/base32-encode user-hash)
+        deltas (for [pic-key (distinct (concat (keys before) (keys after)))
+                     :let [delta (- (get after pic-key 0)
+                                    (get before pic-key 0))]
+                     :when (not= 0 delta)]
+                 [pic-key delta])]
+    (when (seq deltas)
+      (let [refs (swap! pic-refs apply-pic-deltas user-key deltas)
+            released (for [[pic-key delta] deltas
+                           :when (and (neg? delta)
+                                      (nil? (get-in refs [user-key pic-key])))]
+                       pic-key)]
+        (when (seq released)
+          (swap! released-pics update-in [user-key] (fnil into #{}) released))))))
+
+(defn load-pic-refs!
+  []
+  (reset! released-pics {})
+  (reset! pic-refs
+          (reduce (fn [refs row]
+                    (assoc-in refs
+                              [(f/base32-encode (:userhash row))
+                               (f/base32-encode (:pichash row))]
+                              (:total row)))
+                  {}
+                  (jdbc/query @spec ["SELECT userhash, pichash, 
+                                     COUNT(*) AS total FROM pic 
+                                     WHERE userhash IS NOT NULL 
+                                     AND pichash IS NOT NULL 
+                                     GROUP BY userhash, pichash"]))))
+
+(defn get-pic-refs
+  "Returns the base32 hashes of the pics the user's rows refer to,
+  mapped to the number of rows."
+  [user-hash]
+  (get @pic-refs (f/base32-encode user-hash) {}))
+
+(defn take-released-pics!
+  "Returns the base32 hashes of the user's pics that lost their last
+  reference since the last call."
+  [user-hash]
+  (let [user-key (f/base32-encode user-hash)]
+    (loop []
+      (let [released @released-pics]
+        (if (compare-and-set! released-pics released (dissoc released user-key))
+          (get released user-key #{})
+          (recur))))))
 
 (defn init-db!
   [base-dir]
@@ -101,10 +281,34 @@
              :subprotocol "h2"
              :subname (-> (java.io/file base-dir c/nw-dir c/db-file)
                           .getCanonicalPath)})
-    (create-tables!)))
+    (create-tables!)
+    (load-follow-graph!)
+    (load-pic-refs!)))
 
 ; retrieval
 
+(defn get-users-data
+  "Returns the user for each hash (nil for a nil hash) in one query."
+  [user-hashes]
+  (let [hash-keys (into {} (for [user-hash (remove nil? user-hashes)]
+                             [(f/base32-encode user-hash) user-hash]))
+        found (if (seq hash-keys)
+                (let [rs (jdbc/query
+                           @spec
+                           (vec (concat [(str "SELECT * FROM user WHERE userhash IN ("
+                                              (clojure.string/join
+                                                ", " (repeat (count hash-keys) "?"))
+                                              ")")]
+                                        (vals hash-keys))))]
+                  (into {} (for [user (prepare-results rs :user)]
+                             [(f/base32-encode (:userhash user))
+                              (dissoc user :time)])))
+                {})]
+    (vec (for [user-hash user-hashes]
+           (when user-hash
+             (or (get found (f/base32-encode user-hash))
+                 {:userhash user-hash :type :user}))))))
+
 (defn get-single-user-data
   [params]
   (let [user-hash (:userhash params)
@@ -128,13 +332,12 @@
 
 (defn get-post-data
   [params]
-  (let [page (:page params)
-        user-hash (:userhash params)
-        statement [(paginate page
-                             "SELECT * FROM post 
-                              WHERE userhash = ? AND status = 1 
-                              ORDER BY time DESC")
-                   user-hash]
+  (let [user-hash (:userhash params)
+        statement (paginate-desc params
+                                 ["time" "id"]
+                                 ["SELECT * FROM post 
+                                  WHERE userhash = ? AND status = 1"
+                                  user-hash])
         rs (jdbc/query @spec statement)]
     (prepare-results rs :post)))
 
@@ -167,90 +370,96 @@
   [params]
   (let [data-type (:type params)
         sub-type (:subtype params)
+        by-offset (fn [[sql & args]]
+                    (vec (concat [(paginate (:page params) sql)] args)))
+        user-desc (partial paginate-desc params ["user.time" "user.id"])
+        post-desc (partial paginate-desc params ["post.time" "post.id"])
         statement (case data-type
                     :user (if-let [tag (:tag params)]
-                            ["SELECT user.* FROM user 
-                             INNER JOIN tag 
-                             ON user.userhash = tag.userhash 
-                             WHERE tag.title = ? 
-                             AND tag.ptrtime IS NULL 
-                             ORDER BY user.time DESC" tag]
-                            ["SELECT * FROM user ORDER BY time DESC"])
+                            (user-desc
+                              ["SELECT user.* FROM user 
+                               INNER JOIN tag 
+                               ON user.userhash = tag.userhash 
+                               WHERE tag.title = ? 
+                               AND tag.ptrtime IS NULL" tag])
+                            (user-desc
+                              ["SELECT * FROM user WHERE time IS NOT NULL"]))
                     :post (if-let [tag (:tag params)]
-                            ["SELECT post.*, user.title AS subtitle FROM post 
-                             INNER JOIN tag
-                             ON post.userhash = tag.userhash
-                             AND post.time = tag.ptrtime 
-                             LEFT JOIN user 
-                             ON post.userhash = user.userhash 
-                             WHERE post.status = 1 
-                             AND tag.title = ? 
-                             ORDER BY post.time DESC" tag]
-                            ["SELECT post.*, user.title AS subtitle FROM post 
-                             LEFT JOIN user 
-                             ON post.userhash = user.userhash 
-                             WHERE post.status = 1 
-                             ORDER BY post.time DESC"])
+                            (post-desc
+                              ["SELECT post.*, user.title AS subtitle FROM post 
+                               INNER JOIN tag
+                               ON post.userhash = tag.userhash
+                               AND post.time = tag.ptrtime 
+                               LEFT JOIN user 
+                               ON post.userhash = user.userhash 
+                               WHERE post.status = 1 
+                               AND tag.title = ?" tag])
+                            (post-desc
+                              ["SELECT post.*, user.title AS subtitle FROM post 
+                               LEFT JOIN user 
+                               ON post.userhash = user.userhash 
+                               WHERE post.status = 1"]))
                     :fav (case sub-type
-                           :user ["SELECT fav.ptrhash AS userhash, user.* 
-                                  FROM fav 
-                                  LEFT JOIN user 
-                                  ON fav.ptrhash = user.userhash 
-                                  WHERE fav.userhash = ? 
-                                  AND fav.status = 1 
-                                  AND fav.ptrtime IS NULL 
-                                  ORDER BY fav.mtime DESC"
-                                  (:userhash params)]
-                           :post ["SELECT fav.ptrhash AS userhash, post.*, 
-                                  user.title AS subtitle 
-                                  FROM fav 
-                                  LEFT JOIN post 
-                                  ON fav.ptrhash = post.userhash 
-                                  AND fav.ptrtime = post.time 
-                                  LEFT JOIN user 
-                                  ON post.userhash = user.userhash 
-                                  WHERE fav.userhash = ? 
-                                  AND fav.status = 1 
-                                  AND post.status = 1 
-                                  ORDER BY fav.mtime DESC"
-                                  (:userhash params)]
+                           :user (by-offset
+                                   ["SELECT fav.ptrhash AS userhash, user.* 
+                                    FROM fav 
+                                    LEFT JOIN user 
+                                    ON fav.ptrhash = user.userhash 
+                                    WHERE fav.userhash = ? 
+                                    AND fav.status = 1 
+                                    AND fav.ptrtime IS NULL 
+                                    ORDER BY fav.mtime DESC"
+                                    (:userhash params)])
+                           :post (by-offset
+                                   ["SELECT fav.ptrhash AS userhash, post.*, 
+                                    user.title AS subtitle 
+                                    FROM fav 
+                                    LEFT JOIN post 
+                                    ON fav.ptrhash = post.userhash 
+                                    AND fav.ptrtime = post.time 
+                                    LEFT JOIN user 
+                                    ON post.userhash = user.userhash 
+                                    WHERE fav.userhash = ? 
+                                    AND fav.status = 1 
+                                    AND post.status = 1 
+                                    ORDER BY fav.mtime DESC"
+                                    (:userhash params)])
                            nil)
                     :search (case sub-type
-                              :user ["SELECT user.* 
-                                     FROM FT_SEARCH_DATA(?, 0, 0) ft, user 
-                                     WHERE ft.TABLE = 'USER' 
-                                     AND user.id = ft.KEYS[0] 
-                                     ORDER BY user.time DESC"
-                                     (:query params)]
-                              :post ["SELECT post.*, user.title AS subtitle 
-                                     FROM FT_SEARCH_DATA(?, 0, 0) ft, post 
-                                     LEFT JOIN user 
-                                     ON post.userhash = user.userhash 
-                                     WHERE ft.TABLE='POST' 
-                                     AND post.id = ft.KEYS[0] 
-                                     AND post.status = 1 
-                                     ORDER BY post.time DESC"
-                                     (:query params)]
+                              :user (user-desc
+                                      ["SELECT user.* 
+                                       FROM FT_SEARCH_DATA(?, 0, 0) ft, user 
+                                       WHERE ft.TABLE = 'USER' 
+                                       AND user.id = ft.KEYS[0]"
+                                       (:query params)])
+                              :post (post-desc
+                                      ["SELECT post.*, user.title AS subtitle 
+                                       FROM FT_SEARCH_DATA(?, 0, 0) ft, post 
+                                       LEFT JOIN user 
+                                       ON post.userhash = user.userhash 
+                                       WHERE ft.TABLE='POST' 
+                                       AND post.id = ft.KEYS[0] 
+                                       AND post.status = 1"
+                                       (:query params)])
                               nil)
                     :tag (case sub-type
-                           :user ["SELECT title AS tag, 
-                                  COUNT(*) AS count 
-                                  FROM tag 
-                                  WHERE ptrtime IS NULL 
-                                  GROUP BY title 
-                                  ORDER BY count DESC"]
-                           :post ["SELECT title AS tag, 
-                                  COUNT(*) AS count 
-                                  FROM tag 
-                                  WHERE ptrtime IS NOT NULL 
-                                  GROUP BY title 
-                                  ORDER BY count DESC"]
+                           :user (by-offset
+                                   ["SELECT title AS tag, 
+                                    COUNT(*) AS count 
+                                    FROM tag 
+                                    WHERE ptrtime IS NULL 
+                                    GROUP BY title 
+                                    ORDER BY count DESC"])
+                           :post (by-offset
+                                   ["SELECT title AS tag, 
+                                    COUNT(*) AS count 
+                                    FROM tag 
+                                    WHERE ptrtime IS NOT NULL 
+                                    GROUP BY title 
+                                    ORDER BY count DESC"])
                            nil))]
     (when statement
-      (-> (jdbc/query
-            @spec
-            (vec (concat [(paginate (:page params) (first statement))]
-                         (rest statement))))
+      (-> (jdbc/query @spec statement)
           (prepare-results (or sub-type data-type))))))
 
 (defn get-single-tag-data
@@ -295,119 +504,139 @@
 ; insertion / removal
 
 (defn insert-tag-list!
-  [user-hash ptr-time edit-time args]
-  (let [tags (f/tags-decode (f/b-decode-string (get args "body")))
-        pics (f/b-decode-list (get args "pics"))
-        pic-hash (f/b-decode-bytes (get pics 0))]
-    (jdbc/delete! @spec
-                  :tag
-                  ["userhash = ? AND ptrtime IS ? AND mtime < ?"
-                   user-hash ptr-time edit-time])
-    (doseq [tag tags]
-      (update-or-insert!
-        @spec
-        :tag
-        {:realuserhash user-hash
-         :userhash user-hash
-         :title tag
-         :mtime edit-time
-         :ptrtime ptr-time
-         :pichash pic-hash}
-        ["title = ? AND userhash = ? AND ptrtime IS ?"
-         tag user-hash ptr-time]))
-    tags))
+  ([user-hash ptr-time edit-time args]
+   (insert-tag-list! @spec user-hash ptr-time edit-time args))
+  ([db user-hash ptr-time edit-time args]
+   (let [tags (f/tags-decode (f/b-decode-string (get args "body")))
+         pics (f/b-decode-list (get args "pics"))
+         pic-hash (f/b-decode-bytes (get pics 0))]
+     (jdbc/delete! db
+                   :tag
+                   ["userhash = ? AND ptrtime IS ? AND mtime < ?"
+                    user-hash ptr-time edit-time])
+     (doseq [tag tags]
+       (update-or-insert!
+         db
+         :tag
+         {:realuserhash user-hash
+          :userhash user-hash
+          :title tag
+          :mtime edit-time
+          :ptrtime ptr-time
+          :pichash pic-hash}
+         ["title = ? AND userhash = ? AND ptrtime IS ?"
+          tag user-hash ptr-time]))
+     tags)))
 
 (defn insert-pic-list!
-  [user-hash ptr-time edit-time args]
-  (let [pics (f/b-decode-list (get args "pics"))]
-    (jdbc/delete! @spec
-                  :pic
-                  ["userhash = ? AND ptrtime IS ? AND mtime < ?"
-                   user-hash ptr-time edit-time])
-    (doseq [pic pics]
-      (when-let [pic-hash (f/b-decode-bytes pic)]
-        (update-or-insert!
-          @spec
-          :pic
-          {:realuserhash user-hash
-           :userhash user-hash
-           :pichash pic-hash
-           :mtime edit-time
-           :ptrtime ptr-time}
-          ["pichash = ? AND userhash = ? AND ptrtime IS ?"
-           pic-hash user-hash ptr-time])))
-    pics))
+  ([user-hash ptr-time edit-time args]
+   (insert-pic-list! @spec user-hash ptr-time edit-time args))
+  ([db user-hash ptr-time edit-time args]
+   (let [pics (f/b-decode-list (get args "pics"))
+         count-pics #(get-pic-counts db user-hash "ptrtime IS ?" [ptr-time])
+         before (count-pics)]
+     (jdbc/delete! db
+                   :pic
+                   ["userhash = ? AND ptrtime IS ? AND mtime < ?"
+                    user-hash ptr-time edit-time])
+     (doseq [pic pics]
+       (when-let [pic-hash (f/b-decode-bytes pic)]
+         (update-or-insert!
+           db
+           :pic
+           {:realuserhash user-hash
+            :userhash user-hash
+            :pichash pic-hash
+            :mtime edit-time
+            :ptrtime ptr-time}
+           ["pichash = ? AND userhash = ? AND ptrtime IS ?"
+            pic-hash user-hash ptr-time])))
+     (update-pic-refs! user-hash before (count-pics))
+     pics)))
 
 (defn insert-profile!
-  [user-hash args]
+  ([user-hash args] (insert-profile! @spec user-hash args))
+  ([db user-hash args]
+   (let [edit-time (f/b-decode-long (get args "mtime"))
+         pics (insert-pic-list! db user-hash nil edit-time args)
+         tags (insert-tag-list! db user-hash nil edit-time args)]
+     (when (and edit-time
+                (<= edit-time (.getTime (java.util.Date.))))
+       (update-or-insert!
+         db
+         :user
+         {:realuserhash user-hash 
+          :userhash user-hash 
+          :title (f/b-decode-string (get args "title"))
+          :body (f/b-decode-string (get args "body"))
+          :mtime edit-time
+          :pichash (f/b-decode-bytes (get pics 0))
+          :status (f/b-decode-long (get args "status"))}
+         ["userhash = ?" user-hash])
+       (jdbc/update!
+         db
+         :user
+         {:time (.getTime (java.util.Date.))}
+         ["userhash = ? AND time IS NULL" user-hash])))))
+
+(defn get-post-row
+  [user-hash post-time args]
   (let [edit-time (f/b-decode-long (get args "mtime"))
-        pics (insert-pic-list! user-hash nil edit-time args)
-        tags (insert-tag-list! user-hash nil edit-time args)]
-    (when (and edit-time
+        pics (f/b-decode-list (get args "pics"))]
+    (when (and post-time
+               (<= post-time (.getTime (java.util.Date.)))
+               edit-time
                (<= edit-time (.getTime (java.util.Date.))))
-      (update-or-insert!
-        @spec
-        :user
-        {:realuserhash user-hash 
-         :userhash user-hash 
-         :title (f/b-decode-string (get args "title"))
-         :body (f/b-decode-string (get args "body"))
-         :mtime edit-time
-         :pichash (f/b-decode-bytes (get pics 0))
-         :status (f/b-decode-long (get args "status"))}
-        ["userhash = ?" user-hash])
-      (jdbc/update!
-        @spec
-        :user
-        {:time (.getTime (java.util.Date.))}
-        ["userhash = ? AND time IS NULL" user-hash]))))
+      {:realuserhash user-hash 
+       :userhash user-hash
+       :body (f/b-decode-string (get args "body"))
+       :time post-time
+       :mtime edit-time
+       :pichash (f/b-decode-bytes (get pics 0))
+       :count (count pics)
+       :ptrhash (f/b-decode-bytes (get args "ptrhash"))
+       :ptrtime (f/b-decode-long (get args "ptrtime"))
+       :status (f/b-decode-long (get args "status"))})))
 
 (defn insert-post!
   [user-hash post-time args]
   (let [edit-time (f/b-decode-long (get args "mtime"))
         pics (insert-pic-list! user-hash post-time edit-time args)
         tags (insert-tag-list! user-hash post-time edit-time args)]
-    (when (and post-time
-               (<= post-time (.getTime (java.util.Date.)))
-               edit-time
-               (<= edit-time (.getTime (java.util.Date.))))
+    (when-let [row (get-post-row user-hash post-time args)]
       (update-or-insert!
         @spec
         :post
-        {:realuserhash user-hash 
-         :userhash user-hash
-         :body (f/b-decode-string (get args "body"))
-         :time post-time
-         :mtime edit-time
-         :pichash (f/b-decode-bytes (get pics 0))
-         :count (count pics)
-         :ptrhash (f/b-decode-bytes (get args "ptrhash"))
-         :ptrtime (f/b-decode-long (get args "ptrtime"))
-         :status (f/b-decode-long (get args "status"))}
+        row
         ["userhash = ? AND time = ?" user-hash post-time]))))
 
-(defn insert-fav!
+(defn get-fav-row
   [user-hash fav-time args]
   (let [edit-time (f/b-decode-long (get args "mtime"))
-        ptr-hash (f/b-decode-bytes (get args "ptrhash"))
-        ptr-time (f/b-decode-long (get args "ptrtime"))]
+        ptr-hash (f/b-decode-bytes (get args "ptrhash"))]
     (when (and ptr-hash
                fav-time
                (<= fav-time (.getTime (java.util.Date.)))
                edit-time
                (<= edit-time (.getTime (java.util.Date.))))
-      (update-or-insert!
-        @spec
-        :fav
-        {:realuserhash user-hash 
-         :userhash user-hash
-         :time fav-time
-         :mtime edit-time
-         :ptrhash ptr-hash
-         :ptrtime ptr-time
-         :status (f/b-decode-long (get args "status"))}
-        ["userhash = ? AND ptrhash = ? AND ptrtime IS ?"
-         user-hash ptr-hash ptr-time]))))
+      {:realuserhash user-hash 
+       :userhash user-hash
+       :time fav-time
+       :mtime edit-time
+       :ptrhash ptr-hash
+       :ptrtime (f/b-decode-long (get args "ptrtime"))
+       :status (f/b-decode-long (get args "status"))})))
+
+(defn insert-fav!
+  [user-hash fav-time args]
+  (when-let [row (get-fav-row user-hash fav-time args)]
+    (update-or-insert!
+      @spec
+      :fav
+      row
+      ["userhash = ? AND ptrhash = ? AND ptrtime IS ?"
+       user-hash (:ptrhash row) (:ptrtime row)])
+    (update-follow-graph! [row])))
 
 (defn insert-meta-data!
   [user-hash data-map]
@@ -423,7 +652,177 @@
              nil)
     nil))
 
+; batched insertion of a whole meta torrent
+
+(def ^:const post-columns
+  [:realuserhash :userhash :body :time :mtime
+   :pichash :count :ptrhash :ptrtime :status])
+(def ^:const fav-columns
+  [:realuserhash :userhash :time :mtime :ptrhash :ptrtime :status])
+(def ^:const pic-columns [:realuserhash :userhash :pichash :mtime :ptrtime])
+(def ^:const tag-columns
+  [:realuserhash :userhash :title :mtime :ptrtime :pichash])
+
+(defn execute-batch!
+  "Runs a prepared statement once for each param group as a single batch."
+  [db sql param-groups]
+  (when (seq param-groups)
+    (apply jdbc/db-do-prepared db sql param-groups)))
+
+(defn insert-batch!
+  [db table columns rows]
+  (when (seq rows)
+    (apply jdbc/insert! db table columns (map #(vec (map % columns)) rows))))
+
+(defn update-batch!
+  [db table columns where-sql rows where-params]
+  (execute-batch!
+    db
+    (str "UPDATE " (name table) " SET "
+         (clojure.string/join ", " (map #(str (name %) " = ?") columns))
+         " WHERE " where-sql)
+    (map #(concat (map % columns) (where-params %)) rows)))
+
+(defn get-meta-key
+  "Returns the key that a meta file's row is stored under, or nil."
+  [data-map]
+  (case (:dir-name data-map)
+    "post" [:post (f/long-decode (:file-name data-map))]
+    "fav" [:fav (f/long-decode (:file-name data-map))]
+    "meta" (case (:file-name data-map)
+             "user.profile" [:user nil]
+             nil)
+    nil))
+
+(defn get-meta-mtimes
+  "Returns a map of meta keys to the mtimes we have stored for a user."
+  [db user-hash]
+  (->> (concat
+         (for [row (jdbc/query db ["SELECT time, mtime FROM post 
+                                   WHERE userhash = ?" user-hash])]
+           [[:post (:time row)] (:mtime row)])
+         (for [row (jdbc/query db ["SELECT time, mtime FROM fav 
+                                   WHERE userhash = ?" user-hash])]
+           [[:fav (:time row)] (:mtime row)])
+         (for [row (jdbc/query db ["SELECT mtime FROM user 
+                                   WHERE userhash = ?" user-hash])]
+           [[:user nil] (:mtime row)]))
+       (into {})))
+
+(defn get-fav-keys
+  [db user-hash]
+  (->> (jdbc/query db ["SELECT ptrhash, ptrtime FROM fav WHERE userhash = ?"
+                       user-hash])
+       (map (fn [row] [(f/base32-encode (:ptrhash row)) (:ptrtime row)]))
+       set))
+
+(defn get-pic-rows
+  [user-hash ptr-time edit-time args]
+  (for [pic (f/remove-dupes-and-nils
+              (map f/b-decode-bytes (f/b-decode-list (get args "pics"))))]
+    {:realuserhash user-hash
+     :userhash user-hash
+     :pichash pic
+     :mtime edit-time
+     :ptrtime ptr-time}))
+
+(defn get-tag-rows
+  [user-hash ptr-time edit-time args]
+  (let [pics (f/b-decode-list (get args "pics"))
+        pic-hash (f/b-decode-bytes (get pics 0))]
+    (for [tag (f/tags-decode (f/b-decode-string (get args "body")))]
+      {:realuserhash user-hash
+       :userhash user-hash
+       :title tag
+       :mtime edit-time
+       :ptrtime ptr-time
+       :pichash pic-hash})))
+
+(defn insert-meta-rows!
+  [user-hash data-maps]
+  (jdbc/with-db-transaction
+    [db @spec]
+    (let [mtimes (get-meta-mtimes db user-hash)
+          changed (doall
+                    (filter (fn [data-map]
+                              (when-let [k (get-meta-key data-map)]
+                                (or (not (contains? mtimes k))
+                                    (not= (get mtimes k)
+                                          (-> (:contents data-map)
+                                              (get "mtime")
+                                              f/b-decode-long)))))
+                            data-maps))
+          by-dir (group-by :dir-name changed)
+          posts (->> (for [data-map (get by-dir "post")]
+                       (get-post-row user-hash
+                                     (f/long-decode (:file-name data-map))
+                                     (:contents data-map)))
+                     (remove nil?)
+                     doall)
+          post-args (into {} (for [data-map (get by-dir "post")]
+                               [(f/long-decode (:file-name data-map))
+                                (:contents data-map)]))
+          favs (->> (for [data-map (get by-dir "fav")]
+                      (get-fav-row user-hash
+                                   (f/long-decode (:file-name data-map))
+                                   (:contents data-map)))
+                    (remove nil?)
+                    doall)
+          ; the profile's pics are counted by insert-pic-list!
+          count-pics #(get-pic-counts db user-hash "ptrtime IS NOT NULL" [])
+          pics-before (count-pics)
+          fav-keys (get-fav-keys db user-hash)
+          fav-key (fn [row] [(f/base32-encode (:ptrhash row)) (:ptrtime row)])]
+      ; profile
+      (doseq [data-map (get by-dir "meta")]
+        (when (= [:user nil] (get-meta-key data-map))
+          (insert-profile! db user-hash (:contents data-map))))
+      ; pics and tags of changed posts are replaced wholesale
+      (doseq [table [:pic :tag]]
+        (execute-batch! db
+                        (str "DELETE FROM " (name table)
+                             " WHERE userhash = ? AND ptrtime = ?")
+                        (for [post posts] [user-hash (:time post)])))
+      (insert-batch! db :pic pic-columns
+                     (mapcat #(get-pic-rows user-hash (:time %) (:mtime %)
+                                            (get post-args (:time %)))
+                             posts))
+      (insert-batch! db :tag tag-columns
+                     (mapcat #(get-tag-rows user-hash (:time %) (:mtime %)
+                                            (get post-args (:time %)))
+                             posts))
+      ; posts
+      (let [{old true new false} (group-by #(contains? mtimes [:post (:time %)])
+                                           posts)]
+        (update-batch! db :post post-columns "userhash = ? AND time = ?"
+                       old (fn [row] [user-hash (:time row)]))
+        (insert-batch! db :post post-columns new))
+      ; favs
+      (let [{old true new false} (group-by #(contains? fav-keys (fav-key %))
+                                           favs)]
+        (update-batch! db :fav fav-columns
+                       "userhash = ? AND ptrhash = ? AND ptrtime IS ?"
+                       old (fn [row] [user-hash (:ptrhash row) (:ptrtime row)]))
+        (insert-batch! db :fav fav-columns new))
+      [changed favs pics-before (count-pics)])))
+
+(defn insert-meta-files!
+  "Inserts the decoded files of a user's meta torrent in one transaction,
+  skipping those whose mtime matches what we already have.
+  Returns the files that were inserted."
+  [user-hash data-maps]
+  (let [[changed favs pics-before pics-after]
+        (insert-meta-rows! user-hash data-maps)]
+    ; only once the transaction has committed
+    (update-follow-graph! favs)
+    (update-pic-refs! user-hash pics-before pics-after)
+    changed))
+
 (defn delete-user!
   [user-hash]
   (doseq [table [:user :post :pic :fav :tag]]
-    (jdbc/delete! @spec table ["userhash = ?" user-hash])))
+    (jdbc/delete! @spec table ["userhash = ?" user-hash]))
+  (let [user-key (f/base32-encode user-hash)]
+    (swap! follow-graph dissoc user-key)
+    (swap! pic-refs dissoc user-key)
+    (swap! released-pics dissoc user-key)))
@@ -8,24 +8,25 @@
   (if (> (count results) db/limit)
     (let [next-page (-> (:page content)
                         (or 1)
-                        (+ 1))]
-      (-> results
-          pop
-          (conj (assoc content
-                       :title :page
-                       :background :next
-                       :add-emphasis? true
-                       :page next-page))))
+                        (+ 1))
+          results (pop results)]
+      (conj results (assoc content
+                           :title :page
+                           :background :next
+                           :add-emphasis? true
+                           :page next-page
+                           :after (db/get-cursor (peek results)))))
     results))
 
 (defn get-post-tiles
   [post]
-  (let [; read values from the database
-        user (db/get-single-user-data post)
-        user-pointer (when (and (:ptrhash post)
-                                (nil? (:ptrtime post)))
-                       (db/get-single-user-data
-                         {:userhash (:ptrhash post)}))
+  (let [; read values from the database, both users in one query
+        [user user-pointer] (db/get-users-data
+                              [(:userhash post)
+                               (when (and (:ptrhash post)
+                                          (nil? (:ptrtime post)))
+                                 (:ptrhash post))])
+        user (or user {:userhash (:userhash post) :type :user})
         post-pointer (when (:ptrtime post) 
                        (db/get-single-post-data
                          {:userhash (:ptrhash post)
@@ -1,8 +1,7 @@
 (ns nightweb.formats
   (:require [nightweb.constants :as c]
             [nightweb.crypto :as crypto])
-  (:import [java.io ByteArrayInputStream]
-           [org.klomp.snark.bencode BEncoder BDecoder BEValue]))
+  (:import [org.klomp.snark.bencode BEncoder BDecoder BEValue]))
 
 (defn remove-dupes-and-nils
   [the-list]
@@ -26,7 +25,7 @@
 (defn b-decode
   [data-barray]
   (try
-    (BDecoder/bdecode (ByteArrayInputStream. data-barray))
+    (BDecoder/bdecode ^bytes data-barray)
     (catch Exception e nil)))
 
 (defn b-decode-map
@@ -111,14 +111,31 @@
     (when (file-exists? path)
       (org.klomp.snark.dht.NodeInfo. (apply str (map char (read-file path)))))))
 
+; pics written since the last cleanup, which may not be referred to yet:
+; user hash -> set of pic hashes
+(def new-pics (atom {}))
+; users whose whole pic dir has been checked this session
+(def swept-pic-dirs (atom #{}))
+
+(defn take-pics!
+  [pics-atom user-key]
+  (loop []
+    (let [pics @pics-atom]
+      (if (compare-and-set! pics-atom pics (dissoc pics user-key))
+        (get pics user-key #{})
+        (recur)))))
+
 (defn write-pic-file!
+  "Writes the pic under its hash, unless the same pic is already there."
   [data-barray]
   (when data-barray
     (let [image-hash (crypto/create-hash data-barray)
-          file-path (-> (c/get-pic-dir @c/my-hash-str)
-                        (java.io/file (f/base32-encode image-hash))
-                        .getCanonicalPath)]
-      (write-file! file-path data-barray)
+          pic-key (f/base32-encode image-hash)
+          pic-file (java.io/file (c/get-pic-dir @c/my-hash-str) pic-key)]
+      (when-not (and (.isFile pic-file)
+                     (= (.length pic-file) (alength data-barray)))
+        (write-file! (.getCanonicalPath pic-file) data-barray))
+      (swap! new-pics update-in [@c/my-hash-str] (fnil conj #{}) pic-key)
       image-hash)))
 
 (defn write-post-file!
@@ -142,10 +159,25 @@
                    .getCanonicalPath)
                encoded-args))
 
+; meta links are sent to every peer of every user torrent each round,
+; so they are kept decoded in memory until they are written again.
+; each load gets a new version, so senders can tell when a link changed.
+(def link-cache (atom {}))
+(def link-version (atom 0))
+
+(defn write-meta-link-file!
+  [user-hash-str link-barray]
+  (locking link-cache
+    (write-file! (str (c/get-meta-dir user-hash-str) c/link-ext) link-barray)
+    (swap! link-cache dissoc user-hash-str)))
+
+(defn forget-link-file!
+  [user-hash-str]
+  (swap! link-cache dissoc user-hash-str))
+
 (defn write-link-file!
   [link-hash]
-  (write-file! (str (c/get-meta-dir @c/my-hash-str) c/link-ext)
-               (f/link-encode link-hash)))
+  (write-meta-link-file! @c/my-hash-str (f/link-encode link-hash)))
 
 (defn read-user-list-file
   []
@@ -158,14 +190,27 @@
   [user-list]
   (write-file! (c/get-user-list-file) (f/b-encode user-list)))
 
+(defn read-cached-link-file
+  "Returns {:link link-map :version n}, the link map must not be modified."
+  [user-hash-str]
+  (or (get @link-cache user-hash-str)
+      (locking link-cache
+        (or (get @link-cache user-hash-str)
+            (let [link-path (str (c/get-meta-dir user-hash-str) c/link-ext)
+                  link (if-let [link-bytes (read-file link-path)]
+                         (f/b-decode-map (f/b-decode link-bytes))
+                         (doto (java.util.HashMap.)
+                           (.put "data" (f/b-encode
+                                          {"user_hash"
+                                           (f/base32-decode user-hash-str)}))))
+                  entry {:link link :version (swap! link-version inc)}]
+              (swap! link-cache assoc user-hash-str entry)
+              entry)))))
+
 (defn read-link-file
   [user-hash-str]
-  (let [link-path (str (c/get-meta-dir user-hash-str) c/link-ext)]
-    (if-let [link-bytes (read-file link-path)]
-      (f/b-decode-map (f/b-decode link-bytes))
-      (doto (java.util.HashMap.)
-        (.put "data" (f/b-encode {"user_hash"
-                                  (f/base32-decode user-hash-str)}))))))
+  (when-let [link (:link (read-cached-link-file user-hash-str))]
+    (java.util.HashMap. ^java.util.Map link)))
 
 (defn read-meta-file
   ([path path-leaves]
@@ -178,19 +223,25 @@
     :contents (f/b-decode-map (f/b-decode (read-file path)))}))
 
 (defn delete-orphaned-pics!
+  "Deletes the user's pics that no rows refer to. The first time for a user
+  this checks their whole pic dir, after that only the pics that were written
+  or lost their last reference since the last time."
   [user-hash]
   (when user-hash
-    (doseq [^File pic (-> (f/base32-encode user-hash)
-                          c/get-pic-dir
-                          java.io/file
-                          file-seq)]
-      (when (and (.isFile pic)
-                 (-> {:userhash user-hash
-                      :pichash (f/base32-decode (.getName pic))}
-                     db/get-pic-data
-                     count
-                     (= 0)))
-        (io! (.delete pic))))))
+    (let [user-key (f/base32-encode user-hash)
+          pic-dir (java.io/file (c/get-pic-dir user-key))
+          ; take these first so none are missed if the sweep runs
+          candidates (concat (take-pics! new-pics user-key)
+                             (db/take-released-pics! user-hash))
+          pic-files (if (contains? @swept-pic-dirs user-key)
+                      (map #(java.io/file pic-dir %) (distinct candidates))
+                      (do (swap! swept-pic-dirs conj user-key)
+                        (file-seq pic-dir)))
+          pic-refs (db/get-pic-refs user-hash)]
+      (doseq [^File pic pic-files]
+        (when (and (.isFile pic)
+                   (not (contains? pic-refs (.getName pic))))
+          (io! (.delete pic)))))))
 
 (defn delete-orphaned-files!
   [user-hash file-list]
@@ -89,12 +89,10 @@
       (.gotPiece ^SnarkManager @manager snark))
     (getSavedTorrentTime [this snark]
       (println "getSavedTorrentTime")
-      ;(.getSavedTorrentTime ^SnarkManager @manager snark)
-      0)
+      (.getSavedTorrentTime ^SnarkManager @manager snark))
     (getSavedTorrentBitField [this snark]
       (println "getSavedTorrentBitField")
-      ;(.getSavedTorrentBitField ^SnarkManager @manager snark)
-      nil)))
+      (.getSavedTorrentBitField ^SnarkManager @manager snark))))
 
 (defn add-hash!
   "Adds an info hash to download."
@@ -6,7 +6,7 @@
             [nightweb.io :as io]
             [nightweb.formats :as f]
             [nightweb.torrents :as t])
-  (:import [net.i2p.data Destination]
+  (:import [net.i2p.data Destination SigningPublicKey]
            [org.klomp.snark Peer Snark SnarkManager]
            [org.klomp.snark.dht DHT NodeInfo CustomQueryHandler]))
 
@@ -45,39 +45,102 @@
 
 ; sending meta links
 
+; peers that already got the current version of a link are skipped
+; until it changes, or until the resend time in case the query was lost
+(def ^:const meta-link-resend-ms (* 30 60 1000))
+; the most queries sent in one round, the rest wait for the next round
+(def ^:const max-meta-link-queries 600)
+; [nid user-hash-str] -> {:version n :time ms}
+(def meta-links-sent (atom {}))
+(def meta-link-stats (atom {:sent 0 :suppressed 0 :deferred 0}))
+
+(defn get-meta-link-stats
+  []
+  @meta-link-stats)
+
 (defn send-custom-query!
   "Sends a query over KRPC."
-  [node-info method args]
+  [node-info method ^java.util.Map args]
+  ; KRPC adds our id to the args, so don't let it touch a shared map
   (let [query (doto (java.util.HashMap.)
                 (.put "q" method)
-                (.put "a" args))]
+                (.put "a" (java.util.HashMap. args)))]
     (-> (.util ^SnarkManager @t/manager)
         .getDHT
         (.sendQuery node-info query true))))
 
+(defn get-meta-link-queries
+  "Returns the queries needed to bring the peers of a user torrent up to date
+  with its meta link, and counts the peers that are already up to date."
+  [^Snark torrent now]
+  (let [user-hash-str (f/base32-encode (.getInfoHash torrent))
+        {:keys [link version]} (io/read-cached-link-file user-hash-str)]
+    (when link
+      (let [sent @meta-links-sent
+            queries (for [peer (.getPeerList torrent)
+                          :let [^NodeInfo node-info (get-node-info-for-peer peer)]
+                          :when node-info]
+                      {:node-info node-info
+                       :link link
+                       :key [(.getNID node-info) user-hash-str]
+                       :version version})
+            stale? (fn [query]
+                     (let [{sent-version :version
+                            sent-time :time} (get sent (:key query))]
+                       (or (not= version sent-version)
+                           (> (- now sent-time) meta-link-resend-ms))))
+            {to-send true up-to-date false} (group-by stale? queries)]
+        (swap! meta-link-stats update-in [:suppressed] + (count up-to-date))
+        to-send))))
+
+(defn send-meta-link-query!
+  [{:keys [node-info link key version]}]
+  (swap! meta-links-sent assoc key {:version version
+                                    :time (System/currentTimeMillis)})
+  (swap! meta-link-stats update-in [:sent] inc)
+  (send-custom-query! node-info "announce_meta" link))
+
 (defn send-meta-link!
-  "Sends the relevant meta link to all peers in a given user torrent."
+  "Sends the relevant meta link to the peers in a given user torrent
+  that don't have it yet."
   ([]
    (when-let [torrent (-> (c/get-user-pub-torrent-file @c/my-hash-str)
                           (t/get-torrent-by-path))]
      (send-meta-link! torrent)))
   ([^Snark torrent]
-   (let [info-hash-str (f/base32-encode (.getInfoHash torrent))
-         args (io/read-link-file info-hash-str)]
-     (t/iterate-peers torrent
-                      (fn [peer]
-                        (-> (get-node-info-for-peer peer)
-                            (send-custom-query! "announce_meta" args)))))))
+   (doseq [query (get-meta-link-queries torrent (System/currentTimeMillis))]
+     (send-meta-link-query! query))))
 
 (defn send-meta-link-periodically!
-  "Sends the relevant meta link to all peers in each user torrent."
+  "Sends the relevant meta link to the peers in each user torrent
+  that don't have it yet, spreading the queries over the interval
+  instead of sending them all at once."
   [seconds]
   (future
     (while true
-      (Thread/sleep (* seconds 1000))
-      (t/iterate-torrents (fn [^Snark torrent]
-                            (when (.getPersistent torrent)
-                              (send-meta-link! torrent)))))))
+      (let [start (System/currentTimeMillis)
+            queries (->> (t/get-torrent-paths)
+                         (keep t/get-torrent-by-path)
+                         (filter #(.getPersistent ^Snark %))
+                         (mapcat #(get-meta-link-queries % start))
+                         doall)
+            [queries deferred] (split-at max-meta-link-queries queries)
+            delay-ms (quot (* seconds 1000) (max 1 (count queries)))]
+        (swap! meta-link-stats update-in [:deferred] + (count deferred))
+        ; forget what was sent long enough ago to be sent again anyway
+        (swap! meta-links-sent
+               (fn [sent]
+                 (into {} (remove #(> (- start (:time (val %)))
+                                      meta-link-resend-ms)
+                                  sent))))
+        (doseq [query queries]
+          (try
+            (send-meta-link-query! query)
+            (catch Exception e
+              (println "Error sending meta link:" (.getMessage e))))
+          (Thread/sleep delay-ms))
+        (Thread/sleep (max 0 (- (+ start (* seconds 1000))
+                                (System/currentTimeMillis))))))))
 
 ; ingest meta torrents
 
@@ -91,41 +154,39 @@
         (io/make-dir! path)
         (t/add-hash! path their-hash-str true send-meta-link!)))))
 
+(defn delete-user-hash!
+  "Stops sharing a user's torrents and deletes their files and rows."
+  [^String their-hash-str]
+  (println "Deleting user" their-hash-str)
+  (t/iterate-torrents
+    (fn [^Snark torrent]
+      (when (>= (.indexOf (.getDataDir torrent) their-hash-str) 0)
+        (t/remove-torrent! (.getName torrent)))))
+  (io/delete-file-recursively! (c/get-user-dir their-hash-str))
+  (io/forget-link-file! their-hash-str)
+  (db/delete-user! (f/base32-decode their-hash-str)))
+
 (defn remove-user-hash!
-  "Removes a user completely if nobody we care about is following them."
+  "Removes a user completely if nobody we care about is following them,
+  along with any other users that nobody we care about follows anymore."
   [their-hash-bytes]
-  (when (and their-hash-bytes
-             (not (c/is-me? their-hash-bytes true))
-             (-> (for [my-user-hash @c/my-hash-list]
-                   (db/get-fav-data {:ptrhash their-hash-bytes} my-user-hash))
-                 doall
-                 flatten
-                 count
-                 (= 0)))
-    (let [^String their-hash-str (f/base32-encode their-hash-bytes)
-          user-dir (c/get-user-dir their-hash-str)]
-      (println "Deleting user" their-hash-str)
-      (t/iterate-torrents
-        (fn [^Snark torrent]
-          (when (>= (.indexOf (.getDataDir torrent) their-hash-str) 0)
-            (t/remove-torrent! (.getName torrent)))))
-      (io/delete-file-recursively! user-dir)
-      (db/delete-user! their-hash-bytes)
-      (io/iterate-dir (c/get-user-dir)
-                      #(remove-user-hash! (f/base32-decode %))))))
+  (when their-hash-bytes
+    (let [their-hash-str (f/base32-encode their-hash-bytes)
+          kept (db/get-followed-hashes @c/my-hash-list)]
+      ; deleting users that aren't kept can't change who is kept,
+      ; since only the favs of kept users count, so one pass is enough
+      (when-not (contains? kept their-hash-str)
+        (delete-user-hash! their-hash-str)
+        (io/iterate-dir (c/get-user-dir)
+                        #(when-not (contains? kept %)
+                           (delete-user-hash! %)))))))
 
 (defn on-recv-fav!
   "Add or remove user if necessary based on a fav we received."
   [user-hash ptr-hash status]
   ; if this is from a user we care about
   (when (or (c/is-me? user-hash true)
-            (->> (for [my-user-hash @c/my-hash-list]
-                   (db/get-single-fav-data {:userhash user-hash} my-user-hash))
-                 doall
-                 (filter #(= 1 (:status %)))
-                 count
-                 (= 0)
-                 not))
+            (some #(db/is-following? % user-hash) @c/my-hash-list))
     (case status
       ; if the fav has a status of 0, unfollow them if necessary
       0 (remove-user-hash! ptr-hash)
@@ -134,10 +195,8 @@
       nil)))
 
 (defn on-recv-meta-file!
-  "Ingests a given file from a meta torrent"
+  "Acts on a given file from a meta torrent after it has been ingested."
   [user-hash-bytes meta-file]
-  ; insert it into the db
-  (db/insert-meta-data! user-hash-bytes meta-file)
   ; if this is a fav of a user, act on it if necessary
   (let [meta-contents (:contents meta-file)]
     (when (and (= "fav" (:dir-name meta-file))
@@ -151,11 +210,14 @@
   [^Snark torrent]
   (let [parent-dir (.getParentFile (java.io/file (.getName torrent)))
         user-hash-bytes (f/base32-decode (.getName parent-dir))
-        paths (.getFiles (.getMetaInfo torrent))]
-    ; iterate over the files in this torrent
-    (doseq [path-leaves paths]
-      (on-recv-meta-file! user-hash-bytes
-                          (io/read-meta-file parent-dir path-leaves)))
+        paths (.getFiles (.getMetaInfo torrent))
+        meta-files (doall
+                     (for [path-leaves paths]
+                       (io/read-meta-file parent-dir path-leaves)))]
+    ; insert the files that changed into the db in one transaction,
+    ; then act on them
+    (doseq [meta-file (db/insert-meta-files! user-hash-bytes meta-files)]
+      (on-recv-meta-file! user-hash-bytes meta-file))
     ; remove any files that the torrent no longer contains
     (when-not (c/is-me? user-hash-bytes true)
       (io/delete-orphaned-files! user-hash-bytes paths))))
@@ -181,24 +243,41 @@
        :link-hash-str (f/base32-encode link-hash-bytes)
        :time time-num})))
 
+; links that passed verification, by a hash of the whole encoded link,
+; so a peer re-announcing the same link is not verified again
+(def ^java.util.Map verified-links (net.i2p.util.LHMCache. 512))
+; user hash -> parsed SigningPublicKey
+(def ^java.util.Map pub-keys (net.i2p.util.LHMCache. 256))
+
+(defn get-pub-key
+  "Returns the signing key of a user, or nil if we don't have it yet."
+  [user-hash-str]
+  (or (locking pub-keys (.get pub-keys user-hash-str))
+      (when-let [pub-key-bytes (-> (c/get-user-pub-file user-hash-str)
+                                   io/read-key-file)]
+        (let [pub-key (SigningPublicKey. ^bytes pub-key-bytes)]
+          (locking pub-keys (.put pub-keys user-hash-str pub-key))
+          pub-key))))
+
 (defn validate-meta-link
   "Makes sure a meta link has the required values and signature."
   [link-map]
   (and link-map
        (:time link-map)
        (<= (:time link-map) (.getTime (java.util.Date.)))
-       (let [user-hash-str (:user-hash-str link-map)
-             pub-key-path (c/get-user-pub-file user-hash-str)]
-         (crypto/verify-signature (io/read-key-file pub-key-path)
-                                  (:sig link-map)
-                                  (:data link-map)))))
+       (let [link-key (f/base32-encode (crypto/create-hash (:link link-map)))]
+         (or (locking verified-links (.containsKey verified-links link-key))
+             (when (crypto/verify-signature-with-key
+                     (get-pub-key (:user-hash-str link-map))
+                     (:sig link-map)
+                     (:data link-map))
+               (locking verified-links (.put verified-links link-key true))
+               true)))))
 
 (defn save-meta-link!
   "Saves a meta link to the disk."
   [link-map]
-  (let [user-hash-str (:user-hash-str link-map)
-        link-path (c/get-meta-link-file user-hash-str)]
-    (io/write-file! link-path (:link link-map))))
+  (io/write-meta-link-file! (:user-hash-str link-map) (:link link-map)))
 
 (defn replace-meta-link!
   "Stops sharing a given meta torrent and begins downloading an updated one."
@@ -221,18 +300,71 @@
         my-time (:time my-link-map)
         their-time (:time link-map)]
     (if (not= my-time their-time)
-      (if (validate-meta-link link-map)
-        (if (or (nil? my-time) (> their-time my-time))
-          (replace-meta-link! user-hash-str my-link-map link-map)
-          my-link)
+      (if (and (validate-meta-link link-map)
+               (or (nil? my-time) (> their-time my-time)))
+        (replace-meta-link! user-hash-str my-link-map link-map)
         my-link)
       (comment "Received identical link"))))
 
+; incoming links are verified here rather than on the KRPC receive thread,
+; and links already waiting to be verified are not queued again
+(def max-queued-meta-links 256)
+(def ^java.util.Set queued-meta-links
+  (java.util.Collections/newSetFromMap
+    (java.util.concurrent.ConcurrentHashMap.)))
+(def replace-lock (Object.))
+(def meta-link-verifier
+  (java.util.concurrent.ThreadPoolExecutor.
+    2 2 60 java.util.concurrent.TimeUnit/SECONDS
+    (java.util.concurrent.LinkedBlockingQueue. (int max-queued-meta-links))
+    (let [thread-count (atom 0)]
+      (reify java.util.concurrent.ThreadFactory
+        (newThread [this runnable]
+          (doto (Thread. runnable (str "Meta link verifier "
+                                       (swap! thread-count inc)))
+            (.setDaemon true)))))))
+
+(defn queue-meta-link!
+  "Verifies and saves a meta link in the background,
+  checking again that it is newer than ours once verified."
+  [link-map]
+  (let [link-key (f/base32-encode (crypto/create-hash (:link link-map)))]
+    (when (.add queued-meta-links link-key)
+      (try
+        (.execute ^java.util.concurrent.ThreadPoolExecutor meta-link-verifier
+                  (fn []
+                    (try
+                      ; verified links are cached, so this only
+                      ; waits for other replacements, not verifications
+                      (when (validate-meta-link link-map)
+                        (locking replace-lock
+                          (compare-meta-link! link-map)))
+                      (catch Exception e
+                        (println "Error verifying meta link:" (.getMessage e)))
+                      (finally
+                        (.remove queued-meta-links link-key)))))
+        ; the queue is full, the peer will announce it again
+        (catch java.util.concurrent.RejectedExecutionException e
+          (.remove queued-meta-links link-key)
+          nil))))
+  ; this is returned by the query handler, which must return a map or nil
+  nil)
+
 (defn receive-meta-link!
-  "Parses and, if necessary, saves a given meta link."
+  "Parses a given meta link. If it is older than ours, returns ours
+  so the sender can update, and if it is newer, queues it to be verified
+  and saved."
   [args]
   (if-let [link (parse-meta-link args)]
-    (compare-meta-link! link)
+    (let [user-hash-str (:user-hash-str link)
+          my-link (io/read-link-file user-hash-str)
+          my-time (:time (parse-meta-link my-link))
+          their-time (:time link)]
+      (cond
+        (= my-time their-time) (comment "Received identical link")
+        (and their-time (or (nil? my-time) (> their-time my-time)))
+        (queue-meta-link! link)
+        :else my-link))
     (println "Meta link can't be parsed")))
 
 ; initialization
@@ -2,33 +2,65 @@
 
 (def ^:const def-pass "hunter2")
 
+(defn get-thread-count
+  []
+  (.availableProcessors (Runtime/getRuntime)))
+
+(defn report-progress
+  "Runs f on this thread, passing the percent done of zip-file to
+  on-progress every quarter second until f returns."
+  [^net.lingala.zip4j.core.ZipFile zip-file on-progress f]
+  (if-not on-progress
+    (f)
+    (let [done (promise)
+          monitor (.getProgressMonitor zip-file)]
+      (future
+        (while (= ::waiting (deref done 250 ::waiting))
+          (on-progress (.getPercentDone monitor))))
+      (try
+        (f)
+        (finally
+          (deliver done true))))))
+
 (defn zip-dir!
-  [path dest-path password]
-  (try
-    (let [zip-file (net.lingala.zip4j.core.ZipFile. dest-path)
-          params (net.lingala.zip4j.model.ZipParameters.)
-          comp-method net.lingala.zip4j.util.Zip4jConstants/COMP_DEFLATE
-          comp-level net.lingala.zip4j.util.Zip4jConstants/DEFLATE_LEVEL_NORMAL
-          enc-method net.lingala.zip4j.util.Zip4jConstants/ENC_METHOD_AES
-          enc-strength net.lingala.zip4j.util.Zip4jConstants/AES_STRENGTH_256]
-      (.setCompressionMethod params comp-method)
-      (.setCompressionLevel params comp-level)
-      (.setEncryptFiles params true)
-      (.setEncryptionMethod params enc-method)
-      (.setAesKeyStrength params enc-strength)
-      (.setPassword params (if (zero? (count password)) def-pass password))
-      (.addFolder zip-file path params)
-      true)
-    (catch Exception e false)))
+  ([path dest-path password]
+   (zip-dir! path dest-path password nil))
+  ([path dest-path password on-progress]
+   (try
+     (let [zip-file (net.lingala.zip4j.core.ZipFile. dest-path)
+           params (net.lingala.zip4j.model.ZipParameters.)
+           comp-method net.lingala.zip4j.util.Zip4jConstants/COMP_DEFLATE
+           comp-level net.lingala.zip4j.util.Zip4jConstants/DEFLATE_LEVEL_NORMAL
+           enc-method net.lingala.zip4j.util.Zip4jConstants/ENC_METHOD_AES
+           enc-strength net.lingala.zip4j.util.Zip4jConstants/AES_STRENGTH_256]
+       (.setCompressionMethod params comp-method)
+       (.setCompressionLevel params comp-level)
+       (.setEncryptFiles params true)
+       (.setEncryptionMethod params enc-method)
+       (.setAesKeyStrength params enc-strength)
+       (.setPassword params (if (zero? (count password)) def-pass password))
+       ; pics are already compressed, and each entry can be
+       ; compressed and encrypted on its own core
+       (.setStoreCompressedFiles params true)
+       (.setNumberOfThreads params (get-thread-count))
+       (report-progress zip-file on-progress
+                        #(.addFolder zip-file path params))
+       true)
+     (catch Exception e false))))
 
 (defn unzip-dir!
-  [path dest-path password]
-  (try
-    (let [zip-file (net.lingala.zip4j.core.ZipFile. path)]
-      (.setPassword zip-file (if (zero? (count password)) def-pass password))
-      (.extractAll zip-file dest-path)
-      true)
-    (catch Exception e false)))
+  ([path dest-path password]
+   (unzip-dir! path dest-path password nil))
+  ([path dest-path password on-progress]
+   (try
+     (let [zip-file (net.lingala.zip4j.core.ZipFile. path)
+           params (net.lingala.zip4j.model.UnzipParameters.)]
+       (.setPassword zip-file (if (zero? (count password)) def-pass password))
+       (.setNumberOfThreads params (get-thread-count))
+       (report-progress zip-file on-progress
+                        #(.extractAll zip-file dest-path params))
+       true)
+     (catch Exception e false))))
 
 (defn get-zip-headers
   [path]
@@ -139,7 +139,7 @@ public class I2PSocketManagerFactory {
     public static I2PSocketManager createManager(InputStream myPrivateKeyStream, String i2cpHost, int i2cpPort,
                                                  Properties opts) {
         try {
-            return createManager(myPrivateKeyStream, i2cpHost, i2cpPort, opts, true);
+            return createManager(I2PAppContext.getGlobalContext(), myPrivateKeyStream, i2cpHost, i2cpPort, opts, true);
         } catch (I2PSessionException ise) {
             getLog().error("Error creating session for socket manager", ise);
             return null;
@@ -166,17 +166,53 @@ public class I2PSocketManagerFactory {
      */
     public static I2PSocketManager createDisconnectedManager(InputStream myPrivateKeyStream, String i2cpHost,
                                                              int i2cpPort, Properties opts) throws I2PSessionException {
-        if (myPrivateKeyStream == null) {
-            I2PClient client = I2PClientFactory.createClient();
-            ByteArrayOutputStream keyStream = new ByteArrayOutputStream(512);
-            try {
-                client.createDestination(keyStream);
-            } catch (Exception e) {
-                throw new I2PSessionException("Error creating keys", e);
-            }
-            myPrivateKeyStream = new ByteArrayInputStream(keyStream.toByteArray());
+        if (myPrivateKeyStream == null)
+            myPrivateKeyStream = createTransientKeys();
+        return createManager(I2PAppContext.getGlobalContext(), myPrivateKeyStream, i2cpHost, i2cpPort, opts, false);
+    }
+
+    /**
+     * Create a socket manager using the destination loaded from the given private key
+     * stream, or null for a transient destination, with the session in the given context.
+     * If the context is a RouterContext, the session connects to the router in this JVM
+     * through the internal I2CP queue, and the I2CP host and port are not used.
+     * 
+     * Blocks for a long time while the router builds tunnels.
+     *
+     * @param context for the session and the socket manager, non-null
+     * @param myPrivateKeyStream private key stream, format is specified in {@link net.i2p.data.PrivateKeyFile PrivateKeyFile}
+     *                           or null for a transient destination. Caller must close.
+     * @param i2cpHost I2CP host null to use default
+     * @param i2cpPort I2CP port <= 0 to use default
+     * @param opts Streaming and I2CP options, may be null
+     * @return the newly created socket manager, or null if there were errors
+     * @since 0.9.12
+     */
+    public static I2PSocketManager createManager(I2PAppContext context, InputStream myPrivateKeyStream,
+                                                 String i2cpHost, int i2cpPort, Properties opts) {
+        try {
+            if (myPrivateKeyStream == null)
+                myPrivateKeyStream = createTransientKeys();
+            return createManager(context, myPrivateKeyStream, i2cpHost, i2cpPort, opts, true);
+        } catch (I2PSessionException ise) {
+            getLog().error("Error creating session for socket manager", ise);
+            return null;
+        }
+    }
+
+    /**
+     * @return a private key stream for a new destination
+     * @since 0.9.12 split out of createDisconnectedManager()
+     */
+    private static InputStream createTransientKeys() throws I2PSessionException {
+        I2PClient client = I2PClientFactory.createClient();
+        ByteArrayOutputStream keyStream = new ByteArrayOutputStream(512);
+        try {
+            client.createDestination(keyStream);
+        } catch (Exception e) {
+            throw new I2PSessionException("Error creating keys", e);
         }
-        return createManager(myPrivateKeyStream, i2cpHost, i2cpPort, opts, false);
+        return new ByteArrayInputStream(keyStream.toByteArray());
     }
     
     /**
@@ -186,6 +222,7 @@ public class I2PSocketManagerFactory {
      * 
      * Blocks for a long time while the router builds tunnels if connect is true.
      *
+     * @param context for the session and the socket manager, non-null, since 0.9.12
      * @param myPrivateKeyStream private key stream, format is specified in {@link net.i2p.data.PrivateKeyFile PrivateKeyFile}
      *                           non-null. Caller must close.
      * @param i2cpHost I2CP host null to use default
@@ -195,7 +232,8 @@ public class I2PSocketManagerFactory {
      * @return the newly created socket manager, non-null (throws on error)
      * @since 0.9.7
      */
-    private static I2PSocketManager createManager(InputStream myPrivateKeyStream, String i2cpHost, int i2cpPort,
+    private static I2PSocketManager createManager(I2PAppContext context, InputStream myPrivateKeyStream,
+                                                 String i2cpHost, int i2cpPort,
                                                  Properties opts, boolean connect) throws I2PSessionException {
         I2PClient client = I2PClientFactory.createClient();
         if (opts == null)
@@ -215,15 +253,14 @@ public class I2PSocketManagerFactory {
         if (i2cpPort > 0)
             opts.setProperty(I2PClient.PROP_TCP_PORT, "" + i2cpPort);
         
-        I2PSession session = client.createSession(myPrivateKeyStream, opts);
+        I2PSession session = client.createSession(context, myPrivateKeyStream, opts);
         if (connect)
             session.connect();
-        I2PSocketManager sockMgr = createManager(session, opts, "manager");
+        I2PSocketManager sockMgr = createManager(context, session, opts, "manager");
         return sockMgr;
     }
 
-    private static I2PSocketManager createManager(I2PSession session, Properties opts, String name) {
-        I2PAppContext context = I2PAppContext.getGlobalContext();
+    private static I2PSocketManager createManager(I2PAppContext context, I2PSession session, Properties opts, String name) {
         String classname = opts.getProperty(PROP_MANAGER, DEFAULT_MANAGER);
         try {
             Class<?> cls = Class.forName(classname);
@@ -0,0 +1,309 @@
+/*
+ * Released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ */
+package org.klomp.snark;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.ByteArray;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.util.I2PAppThread;
+import net.i2p.util.Log;
+import net.i2p.util.SimpleTimer2;
+
+import org.klomp.snark.dht.DHT;
+
+/**
+ *  Runs the announce passes of all the TrackerClients sharing an I2PSnarkUtil,
+ *  instead of one thread and one timer event per torrent.
+ *
+ *  Passes are kept in a queue ordered by their next announce time.
+ *  A single timer checks the queue once a round, and all the passes that
+ *  are due are started together on a small shared pool, in info hash order.
+ *
+ *  A pass is split into short steps that never sleep. Instead of waiting,
+ *  a step queues the next one here with a delay and returns its runner,
+ *  so hundreds of torrents can share a few runners without starting late.
+ *
+ *  DHT lookups block for minutes, so they run on a pool of their own,
+ *  sized by i2psnark.maxDHTLookups, and getPeersAndAnnounce() returns at once.
+ *  The listener is called when the lookup is done.
+ *  A lookup for an info hash that is already being looked up
+ *  gets that result instead of starting another.
+ *
+ *  KRPC lookups have a single target, so the lookups and DHT announces
+ *  due in a round are not batched into fewer queries. They are only
+ *  queued in info hash order, so lookups in the same region of the keyspace
+ *  start close together and from the nodes the previous ones just found.
+ *
+ *  @since 0.9.12
+ */
+class AnnounceScheduler {
+
+    private final I2PAppContext _context;
+    private final Log _log;
+    /** next announce time order, locking: this */
+    private final PriorityQueue<Entry> _queue;
+    /** locking: this */
+    private boolean _ticking;
+    /** locking: this */
+    private long _seq;
+    private final Ticker _ticker;
+    private final ThreadPoolExecutor _executor;
+    private final ThreadPoolExecutor _lookupExecutor;
+    private final int _maxLookups;
+    private final AtomicInteger _runningLookups = new AtomicInteger();
+    /** info hash to lookup queued or in progress, locking: _lookups */
+    private final Map<ByteArray, PendingLookup> _lookups;
+    private final AtomicLong _rounds = new AtomicLong();
+    private final AtomicLong _passes = new AtomicLong();
+    private final AtomicLong _lookupCount = new AtomicLong();
+    private final AtomicLong _coalesced = new AtomicLong();
+    private final AtomicInteger _threadCount = new AtomicInteger();
+
+    public static final String PROP_MAX_DHT_LOOKUPS = "i2psnark.maxDHTLookups";
+    public static final int DEFAULT_MAX_DHT_LOOKUPS = 4;
+    /** steps running at once, they only block to connect or on trackers */
+    private static final int MAX_RUNNERS = 8;
+    private static final long RUNNER_IDLE_TIME = 60*1000;
+    /** how often we check the queue; due passes are batched into one round */
+    private static final long ROUND_TIME = 5*1000;
+
+    public AnnounceScheduler(I2PAppContext ctx) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(AnnounceScheduler.class);
+        _queue = new PriorityQueue<Entry>(32);
+        _ticker = new Ticker();
+        _executor = new ThreadPoolExecutor(MAX_RUNNERS, MAX_RUNNERS,
+                                           RUNNER_IDLE_TIME, TimeUnit.MILLISECONDS,
+                                           new LinkedBlockingQueue<Runnable>(),
+                                           new RunnerThreadFactory("Snark announcer "));
+        _executor.allowCoreThreadTimeOut(true);
+        _maxLookups = Math.max(1, ctx.getProperty(PROP_MAX_DHT_LOOKUPS, DEFAULT_MAX_DHT_LOOKUPS));
+        // FIFO, so lookups start in the order they were queued
+        _lookupExecutor = new ThreadPoolExecutor(_maxLookups, _maxLookups,
+                                                 RUNNER_IDLE_TIME, TimeUnit.MILLISECONDS,
+                                                 new LinkedBlockingQueue<Runnable>(),
+                                                 new RunnerThreadFactory("Snark DHT lookup "));
+        _lookupExecutor.allowCoreThreadTimeOut(true);
+        _lookups = new HashMap<ByteArray, PendingLookup>(16);
+    }
+
+    /**
+     *  Run the pass after a delay, replacing any pass already queued for it.
+     *
+     *  @param ih the info hash, for ordering within a round
+     *  @param delay ms, may be 0
+     */
+    public synchronized void schedule(Runnable pass, byte[] ih, long delay) {
+        removeEntry(pass);
+        _queue.offer(new Entry(_context.clock().now() + delay, _seq++, ih, pass));
+        if (!_ticking) {
+            _ticking = true;
+            _ticker.schedule(Math.min(delay, ROUND_TIME));
+        }
+    }
+
+    /**
+     *  Remove a queued pass. Does not stop it if it is already running.
+     */
+    public synchronized void cancel(Runnable pass) {
+        removeEntry(pass);
+    }
+
+    /** caller must synch on this */
+    private void removeEntry(Runnable pass) {
+        for (Iterator<Entry> iter = _queue.iterator(); iter.hasNext(); ) {
+            if (iter.next().pass == pass) {
+                iter.remove();
+                break;
+            }
+        }
+    }
+
+    /**
+     *  Start everything that is due, in info hash order.
+     */
+    private class Ticker extends SimpleTimer2.TimedEvent {
+        public Ticker() {
+            super(_context.simpleTimer2());
+        }
+
+        public void timeReached() {
+            List<Entry> due = null;
+            synchronized(AnnounceScheduler.this) {
+                long now = _context.clock().now();
+                Entry e;
+                while ((e = _queue.peek()) != null && e.time <= now) {
+                    _queue.poll();
+                    if (due == null)
+                        due = new ArrayList<Entry>(8);
+                    due.add(e);
+                }
+                if (_queue.isEmpty())
+                    _ticking = false;
+                else
+                    schedule(Math.max(1, Math.min(_queue.peek().time - now, ROUND_TIME)));
+            }
+            if (due == null)
+                return;
+            _rounds.incrementAndGet();
+            _passes.addAndGet(due.size());
+            if (due.size() > 1)
+                Collections.sort(due, new KeyspaceComparator());
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Starting " + due.size() + " announces, " + AnnounceScheduler.this);
+            for (Entry e : due) {
+                _executor.execute(e.pass);
+            }
+        }
+    }
+
+    /**
+     *  Called when a lookup from getPeersAndAnnounce() is done.
+     */
+    public interface LookupListener {
+        /**
+         *  Called on a lookup thread, do not block.
+         *
+         *  @param peers possibly empty (never null), may be shared, do not modify
+         */
+        public void lookupDone(Collection<Hash> peers);
+    }
+
+    /**
+     *  Get peers for a torrent and announce to the closest nodes,
+     *  on the lookup pool, queued if too many lookups are already running.
+     *  If a lookup for the same info hash is queued or in progress,
+     *  the listener gets its result instead of starting another.
+     *  Non-blocking.
+     *
+     *  Params as in DHT.getPeersAndAnnounce().
+     */
+    public void getPeersAndAnnounce(final DHT dht, final byte[] ih, final int max, final long maxWait,
+                                    final int annMax, final long annMaxWait, LookupListener listener) {
+        final ByteArray key = new ByteArray(ih);
+        final PendingLookup pending;
+        synchronized(_lookups) {
+            PendingLookup existing = _lookups.get(key);
+            if (existing != null) {
+                existing.listeners.add(listener);
+                _coalesced.incrementAndGet();
+                return;
+            }
+            pending = new PendingLookup();
+            pending.listeners.add(listener);
+            _lookups.put(key, pending);
+        }
+        _lookupExecutor.execute(new Runnable() {
+            public void run() {
+                Collection<Hash> rv = Collections.emptyList();
+                _runningLookups.incrementAndGet();
+                _lookupCount.incrementAndGet();
+                try {
+                    rv = dht.getPeersAndAnnounce(ih, max, maxWait, annMax, annMaxWait);
+                } finally {
+                    _runningLookups.decrementAndGet();
+                    List<LookupListener> listeners;
+                    synchronized(_lookups) {
+                        _lookups.remove(key);
+                        listeners = pending.listeners;
+                    }
+                    for (LookupListener l : listeners) {
+                        try {
+                            l.lookupDone(rv);
+                        } catch (RuntimeException re) {
+                            _log.error("Lookup listener", re);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     *  A lookup queued or in progress that others may wait for.
+     */
+    private static class PendingLookup {
+        /** locking: _lookups */
+        public final List<LookupListener> listeners = new ArrayList<LookupListener>(2);
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        public final long time;
+        /** keeps FIFO order for equal times */
+        private final long seq;
+        public final byte[] ih;
+        public final Runnable pass;
+
+        public Entry(long time, long seq, byte[] ih, Runnable pass) {
+            this.time = time;
+            this.seq = seq;
+            this.ih = ih;
+            this.pass = pass;
+        }
+
+        public int compareTo(Entry e) {
+            if (time != e.time)
+                return time < e.time ? -1 : 1;
+            if (seq != e.seq)
+                return seq < e.seq ? -1 : 1;
+            return 0;
+        }
+    }
+
+    /**
+     *  Sorting by info hash puts hashes with a common prefix,
+     *  and so a small XOR distance, next to each other.
+     */
+    private static class KeyspaceComparator implements Comparator<Entry> {
+        public int compare(Entry l, Entry r) {
+            return DataHelper.compareTo(l.ih, r.ih);
+        }
+    }
+
+    private class RunnerThreadFactory implements ThreadFactory {
+        private final String _name;
+
+        public RunnerThreadFactory(String name) {
+            _name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread rv = new I2PAppThread(r, _name + _threadCount.incrementAndGet());
+            rv.setDaemon(true);
+            return rv;
+        }
+    }
+
+    @Override
+    public String toString() {
+        int queued;
+        synchronized(this) {
+            queued = _queue.size();
+        }
+        return "AnnounceScheduler queued: " + queued +
+               " rounds: " + _rounds.get() +
+               " passes: " + _passes.get() +
+               " DHT lookups: " + _lookupCount.get() +
+               " running: " + _runningLookups.get() + '/' + _maxLookups +
+               " coalesced: " + _coalesced.get();
+    }
+}
@@ -23,11 +23,15 @@ package org.klomp.snark;
 
 /**
  * Container of a byte array representing set and unset bits.
+ *
+ * Since 0.9.12 the bits are stored 64 to a long, in the same order
+ * as on the wire, so that bitfields may be compared a word at a time.
  */
 public class BitField
 {
 
-  private final byte[] bitfield;
+  /** bit i is bit (63 - (i % 64)) of words[i / 64] */
+  private final long[] words;
   private final int size;
   private int count;
 
@@ -37,42 +41,46 @@ public class BitField
   public BitField(int size)
   {
     this.size = size;
-    int arraysize = ((size-1)/8)+1;
-    bitfield = new byte[arraysize];
+    words = new long[(size + 63) >> 6];
   }
 
   /**
    * Creates a new BitField that represents <code>size</code> bits
    * as set by the given byte array. This will make a copy of the array.
-   * Extra bytes will be ignored.
+   * Extra bytes will be ignored, as will extra bits in the last byte.
    *
    * @exception ArrayOutOfBoundsException if give byte array is not large
    * enough.
    */
   public BitField(byte[] bitfield, int size)
   {
-    this.size = size;
+    this(size);
     int arraysize = ((size-1)/8)+1;
-    this.bitfield = new byte[arraysize];
-    
-    // XXX - More correct would be to check that unused bits are
-    // cleared or clear them explicitly ourselves.
-    System.arraycopy(bitfield, 0, this.bitfield, 0, arraysize);
-
-    for (int i = 0; i < size; i++)
-      if (get(i))
-        this.count++;
+    if (bitfield.length < arraysize)
+      throw new ArrayIndexOutOfBoundsException(arraysize);
+    int len = Math.min(arraysize, words.length * 8);
+    for (int i = 0; i < len; i++)
+      words[i >> 3] |= (bitfield[i] & 0xffL) << (56 - ((i & 7) << 3));
+    if ((size & 63) != 0)
+      words[words.length - 1] &= -1L << (64 - (size & 63));
+    for (int i = 0; i < words.length; i++)
+      count += Long.bitCount(words[i]);
   }
 
   /**
-   * This returns the actual byte array used.  Changes to this array
-   * effect this BitField.  Note that some bits at the end of the byte
-   * array are supposed to be always unset if they represent bits
-   * bigger then the size of the bitfield.
+   * This returns a copy of the bits as a byte array, in the wire format.
+   * Bits at the end of the byte array past the size of the bitfield
+   * are always unset.
+   *
+   * Before 0.9.12 this returned the actual array used.
    */
   public byte[] getFieldBytes()
   {
-    return bitfield;
+    byte[] rv = new byte[((size-1)/8)+1];
+    int len = Math.min(rv.length, words.length * 8);
+    for (int i = 0; i < len; i++)
+      rv[i] = (byte) (words[i >> 3] >>> (56 - ((i & 7) << 3)));
+    return rv;
   }
 
   /**
@@ -95,12 +103,33 @@ public class BitField
   {
     if (bit < 0 || bit >= size)
       throw new IndexOutOfBoundsException(Integer.toString(bit));
-    int index = bit/8;
-    int mask = 128 >> (bit % 8);
+    int index = bit >> 6;
+    long mask = Long.MIN_VALUE >>> (bit & 63);
     synchronized(this) {
-        if ((bitfield[index] & mask) == 0) {
+        if ((words[index] & mask) == 0) {
             count++;
-            bitfield[index] |= mask;
+            words[index] |= mask;
+        }
+    }
+  }
+
+  /**
+   * Sets the given bit to false.
+   *
+   * @exception IndexOutOfBoundsException if bit is smaller then zero
+   * bigger then size (inclusive).
+   * @since 0.9.12
+   */
+  public void clear(int bit)
+  {
+    if (bit < 0 || bit >= size)
+      throw new IndexOutOfBoundsException(Integer.toString(bit));
+    int index = bit >> 6;
+    long mask = Long.MIN_VALUE >>> (bit & 63);
+    synchronized(this) {
+        if ((words[index] & mask) != 0) {
+            count--;
+            words[index] &= ~mask;
         }
     }
   }
@@ -116,9 +145,52 @@ public class BitField
     if (bit < 0 || bit >= size)
       throw new IndexOutOfBoundsException(Integer.toString(bit));
 
-    int index = bit/8;
-    int mask = 128 >> (bit % 8);
-    return (bitfield[index] & mask) != 0;
+    return (words[bit >> 6] & (Long.MIN_VALUE >>> (bit & 63))) != 0;
+  }
+
+  /**
+   * Return the first set bit at or after <code>from</code>,
+   * or -1 if there are none.
+   *
+   * @since 0.9.12
+   */
+  public int nextSetBit(int from)
+  {
+    return nextSetBit(from, null);
+  }
+
+  /**
+   * Return the first bit at or after <code>from</code> that is set
+   * both here and in <code>and</code>, or -1 if there are none.
+   * Bits past the end of the smaller bitfield are treated as unset.
+   * Compares a word at a time.
+   *
+   * @param and may be null to check only this bitfield
+   * @since 0.9.12
+   */
+  public int nextSetBit(int from, BitField and)
+  {
+    if (from < 0)
+      from = 0;
+    int limit = and != null ? Math.min(size, and.size) : size;
+    if (from >= limit)
+      return -1;
+    int last = (limit - 1) >> 6;
+    int w = from >> 6;
+    long word = words[w] & (-1L >>> (from & 63));
+    while (true)
+      {
+        if (and != null)
+          word &= and.words[w];
+        if (word != 0)
+          {
+            int rv = (w << 6) + Long.numberOfLeadingZeros(word);
+            return rv < limit ? rv : -1;
+          }
+        if (++w > last)
+          return -1;
+        word = words[w];
+      }
   }
 
   /**
@@ -140,15 +212,13 @@ public class BitField
     @Override
   public String toString()
   {
-    // Not very efficient
     StringBuilder sb = new StringBuilder("BitField(");
     sb.append(size).append(")[");
-    for (int i = 0; i < size; i++)
-      if (get(i))
-        {
-          sb.append(' ');
-          sb.append(i);
-        }
+    for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1))
+      {
+        sb.append(' ');
+        sb.append(i);
+      }
     sb.append(" ]");
 
     return sb.toString();
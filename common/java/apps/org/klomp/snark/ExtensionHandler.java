@@ -1,7 +1,5 @@
 package org.klomp.snark;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -83,8 +81,7 @@ abstract class ExtensionHandler {
             log.debug("Got handshake msg from " + peer);
         try {
             // this throws NPE on missing keys
-            InputStream is = new ByteArrayInputStream(bs);
-            BDecoder dec = new BDecoder(is);
+            BDecoder dec = new BDecoder(bs);
             BEValue bev = dec.bdecodeMap();
             Map<String, BEValue> map = bev.getMap();
             peer.setHandshakeMap(map);
@@ -192,10 +189,8 @@ abstract class ExtensionHandler {
         if (log.shouldLog(Log.DEBUG))
             log.debug("Got metadata msg from " + peer);
         try {
-            InputStream is = new ByteArrayInputStream(bs);
-            BDecoder dec = new BDecoder(is);
-            BEValue bev = dec.bdecodeMap();
-            Map<String, BEValue> map = bev.getMap();
+            BDecoder dec = new BDecoder(bs);
+            Map<String, BEValue> map = dec.bdecodeMapKeys("msg_type", "piece", "total_size");
             int type = map.get("msg_type").getInt();
             int piece = map.get("piece").getInt();
 
@@ -220,7 +215,7 @@ abstract class ExtensionHandler {
                 synchronized(state) {
                     if (state.isComplete())
                         return;
-                    int len = is.available();
+                    int len = dec.remaining();
                     if (len != size) {
                         // probably fatal
                         if (log.shouldLog(Log.WARN))
@@ -323,11 +318,8 @@ abstract class ExtensionHandler {
         if (log.shouldLog(Log.DEBUG))
             log.debug("Got PEX msg from " + peer);
         try {
-            InputStream is = new ByteArrayInputStream(bs);
-            BDecoder dec = new BDecoder(is);
-            BEValue bev = dec.bdecodeMap();
-            Map<String, BEValue> map = bev.getMap();
-            bev = map.get("added");
+            BDecoder dec = new BDecoder(bs);
+            BEValue bev = dec.bdecodeMapKeys("added").get("added");
             if (bev == null)
                 return;
             byte[] ids = bev.getBytes();
@@ -360,10 +352,8 @@ abstract class ExtensionHandler {
         if (log.shouldLog(Log.DEBUG))
             log.debug("Got DHT msg from " + peer);
         try {
-            InputStream is = new ByteArrayInputStream(bs);
-            BDecoder dec = new BDecoder(is);
-            BEValue bev = dec.bdecodeMap();
-            Map<String, BEValue> map = bev.getMap();
+            BDecoder dec = new BDecoder(bs);
+            Map<String, BEValue> map = dec.bdecodeMapKeys("port", "rport");
             int qport = map.get("port").getInt();
             int rport = map.get("rport").getInt();
             listener.gotPort(peer, qport, rport);
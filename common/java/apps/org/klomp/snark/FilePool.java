@@ -0,0 +1,138 @@
+/*
+ * Released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ */
+package org.klomp.snark;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Bounds the number of files held open by all the Storages
+ *  sharing an I2PSnarkUtil, closing the least recently used
+ *  ones that are not being read when there are too many.
+ *
+ *  The limit is soft, files in use are never closed,
+ *  so it may be exceeded for a while.
+ *
+ *  Files register themselves with opened(), accessed(), and closed()
+ *  while holding their own lock. trim() must be called without holding
+ *  any file lock, since it takes the locks of the files it closes.
+ *
+ *  @since 0.9.12
+ */
+class FilePool {
+
+    private final int _maxOpen;
+    /** access order, locking: this */
+    private final LinkedHashMap<Key, PooledFile> _open;
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+
+    public static final String PROP_MAX_OPEN_FILES = "i2psnark.maxOpenFiles";
+    public static final int DEFAULT_MAX_OPEN_FILES = 64;
+
+    /**
+     *  A file that may be closed by the pool.
+     */
+    public interface PooledFile {
+        /**
+         *  Close the file unless it is being read.
+         *  Must call closed() if it was open.
+         *
+         *  @return true if closed
+         */
+        public boolean closeIfIdle();
+    }
+
+    public FilePool(int maxOpen) {
+        _maxOpen = Math.max(1, maxOpen);
+        _open = new LinkedHashMap<Key, PooledFile>(32, 0.75f, true);
+    }
+
+    /**
+     *  The file was opened.
+     */
+    public void opened(PooledFile f) {
+        _misses.incrementAndGet();
+        synchronized(this) {
+            _open.put(new Key(f), f);
+        }
+    }
+
+    /**
+     *  The file was already open and was used again.
+     */
+    public void accessed(PooledFile f) {
+        _hits.incrementAndGet();
+        synchronized(this) {
+            _open.get(new Key(f));
+        }
+    }
+
+    /**
+     *  The file was closed, by the pool or otherwise.
+     */
+    public synchronized void closed(PooledFile f) {
+        _open.remove(new Key(f));
+    }
+
+    /**
+     *  Close the least recently used idle files until we are at the limit.
+     *  Caller must not hold any file lock.
+     */
+    public void trim() {
+        List<PooledFile> lru;
+        synchronized(this) {
+            int excess = _open.size() - _maxOpen;
+            if (excess <= 0)
+                return;
+            lru = new ArrayList<PooledFile>(excess);
+            for (Iterator<PooledFile> iter = _open.values().iterator(); iter.hasNext() && lru.size() < excess; ) {
+                lru.add(iter.next());
+            }
+        }
+        for (PooledFile f : lru) {
+            if (f.closeIfIdle())
+                _evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized int getOpenCount() {
+        return _open.size();
+    }
+
+    /**
+     *  Identity, not equals(), since two Storages may have the same file open.
+     */
+    private static class Key {
+        private final PooledFile f;
+
+        public Key(PooledFile f) {
+            this.f = f;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(f);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof Key) && ((Key) o).f == f;
+        }
+    }
+
+    @Override
+    public String toString() {
+        long hits = _hits.get();
+        long total = hits + _misses.get();
+        return "FilePool open: " + getOpenCount() + '/' + _maxOpen +
+               " hit rate: " + (total > 0 ? (100 * hits / total) : 0) + '%' +
+               " evictions: " + _evictions.get();
+    }
+}
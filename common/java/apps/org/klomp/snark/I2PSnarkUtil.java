@@ -73,6 +73,8 @@ public class I2PSnarkUtil {
     private NodeInfo _myNodeInfo;
     private CustomQueryHandler _customQueryHandler;
     private Runnable _dhtInitCallback;
+    private final FilePool _filePool;
+    private final AnnounceScheduler _announceScheduler;
 
     private static final int EEPGET_CONNECT_TIMEOUT = 45*1000;
     private static final int EEPGET_CONNECT_TIMEOUT_SHORT = 5*1000;
@@ -82,6 +84,8 @@ public class I2PSnarkUtil {
     public static final int DEFAULT_MAX_UP_BW = 8;  //KBps
     public static final int MAX_CONNECTIONS = 16; // per torrent
     public static final String PROP_MAX_BW = "i2cp.outboundBytesPerSecond";
+    /** @since 0.9.12 */
+    public static final String PROP_INTERNAL_I2CP = "i2psnark.internalI2CP";
     public static final boolean DEFAULT_USE_DHT = true;
     public static final String EEPGET_USER_AGENT = "I2PSnark";
 
@@ -115,6 +119,9 @@ public class I2PSnarkUtil {
         _tmpDir = new SecureDirectory(ctx.getTempDir(), baseName);
         FileUtil.rmdir(_tmpDir, false);
         _tmpDir.mkdirs();
+        _filePool = new FilePool(ctx.getProperty(FilePool.PROP_MAX_OPEN_FILES,
+                                                 FilePool.DEFAULT_MAX_OPEN_FILES));
+        _announceScheduler = new AnnounceScheduler(ctx);
     }
     
     /**
@@ -139,6 +146,18 @@ public class I2PSnarkUtil {
     
     /** @since 0.9.1 */
     public I2PAppContext getContext() { return _context; }
+
+    /**
+     *  Open files shared by all our Storages
+     *  @since 0.9.12
+     */
+    FilePool getFilePool() { return _filePool; }
+
+    /**
+     *  Tracker and DHT announces shared by all our TrackerClients
+     *  @since 0.9.12
+     */
+    AnnounceScheduler getAnnounceScheduler() { return _announceScheduler; }
     
     public boolean configured() { return _configured; }
     
@@ -275,7 +294,13 @@ public class I2PSnarkUtil {
                 opts.setProperty("i2p.streaming.disableRejectLogging", "true");
             if (opts.getProperty("i2p.streaming.answerPings") == null)
                 opts.setProperty("i2p.streaming.answerPings", "false");
-            if (_myPrivateKeyStream != null) {
+            I2PAppContext routerCtx = getRouterContext();
+            if (routerCtx != null) {
+                // same JVM, skip the I2CP socket
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Connecting to the router in this JVM");
+                _manager = I2PSocketManagerFactory.createManager(routerCtx, _myPrivateKeyStream, _i2cpHost, _i2cpPort, opts);
+            } else if (_myPrivateKeyStream != null) {
                 _manager = I2PSocketManagerFactory.createManager(_myPrivateKeyStream, _i2cpHost, _i2cpPort, opts);
             } else {
                 _manager = I2PSocketManagerFactory.createManager(_i2cpHost, _i2cpPort, opts);
@@ -291,6 +316,35 @@ public class I2PSnarkUtil {
         return (_manager != null);
     }
     
+    /**
+     *  The context of a router running in this JVM and ready for internal
+     *  I2CP connections, if we were not started from it.
+     *  Our own context may be a plain I2PAppContext if it was created
+     *  before the router, as in Nightweb.
+     *  Reflection so we don't depend on the router classes.
+     *
+     *  @return null if none or disabled with i2psnark.internalI2CP=false
+     *  @since 0.9.12
+     */
+    private I2PAppContext getRouterContext() {
+        if (_context.isRouterContext())
+            return _context;
+        if (!_context.getBooleanPropertyDefaultTrue(PROP_INTERNAL_I2CP))
+            return null;
+        try {
+            Class<?> cls = Class.forName("net.i2p.router.RouterContext");
+            List<?> ctxs = (List<?>) cls.getMethod("listContexts").invoke(null);
+            if (!ctxs.isEmpty()) {
+                I2PAppContext rv = (I2PAppContext) ctxs.get(0);
+                if (rv.internalClientManager() != null)
+                    return rv;
+            }
+        } catch (Exception e) {
+            // no router classes
+        }
+        return null;
+    }
+
     /**
      * @return null if disabled or not started
      * @since 0.8.4
@@ -1,8 +1,6 @@
 package org.klomp.snark;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -190,8 +188,7 @@ class MagnetState {
     public MetaInfo buildMetaInfo() throws Exception {
         // top map has nothing in it but the info map (no announce)
         Map<String, BEValue> map = new HashMap<String, BEValue>();
-        InputStream is = new ByteArrayInputStream(metainfoBytes);
-        BDecoder dec = new BDecoder(is);
+        BDecoder dec = new BDecoder(metainfoBytes);
         BEValue bev = dec.bdecodeMap();
         map.put("info", bev);
         MetaInfo newmeta = new MetaInfo(map);
@@ -521,6 +521,18 @@ public class MetaInfo
     return true;
   }
   
+  /**
+   *  @param hash the SHA1 of the piece, already calculated
+   *  @return good
+   *  @since 0.9.12
+   */
+  boolean checkPiece(int piece, byte[] hash) {
+    for (int i = 0; i < 20; i++)
+      if (hash[i] != piece_hashes[20 * piece + i])
+        return false;
+    return true;
+  }
+
   /**
    *  @return good
    *  @since 0.9.1
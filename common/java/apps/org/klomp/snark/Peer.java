@@ -299,7 +299,7 @@ public class Peer implements Comparable<Peer>
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Start running the reader with " + toString());
         // Use this thread for running the incomming connection.
-        // The outgoing connection creates its own Thread.
+        // The outgoing connection uses the shared sender pool.
         out.startup();
         Thread.currentThread().setName("Snark reader from " + peerID);
         s.in.run();
@@ -25,7 +25,12 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.I2PAppContext;
 import net.i2p.util.I2PAppThread;
@@ -39,14 +44,19 @@ class PeerConnectionOut implements Runnable
   private final Peer peer;
   private final DataOutputStream dout;
 
-  private Thread thread;
+  /** locking: sendQueue */
   private boolean quit;
+  /** startup() was called, locking: sendQueue */
+  private boolean started;
+  /** in the sender pool, locking: sendQueue */
+  private boolean scheduled;
 
   // Contains Messages.
   private final List<Message> sendQueue = new ArrayList<Message>();
   
-  private static final AtomicLong __id = new AtomicLong();
-  private final long _id;
+  private static ThreadPoolExecutor _executor;
+  private static final AtomicInteger _threadCount = new AtomicInteger();
+  private static final long SENDER_IDLE_TIME = 60*1000;
   
   long lastSent;
 
@@ -54,58 +64,80 @@ class PeerConnectionOut implements Runnable
   {
     this.peer = peer;
     this.dout = dout;
-    _id = __id.incrementAndGet();
 
     lastSent = System.currentTimeMillis();
   }
   
   public void startup() {
-    thread = new I2PAppThread(this, "Snark sender " + _id + ": " + peer);
-    thread.start();
+    synchronized(sendQueue) {
+        started = true;
+        if (!sendQueue.isEmpty())
+            locked_schedule();
+    }
   }
 
   /**
-   * Continuesly monitors for more outgoing messages that have to be send.
-   * Stops if quit is true or an IOException occurs.
+   *  Hand ourselves to the sender pool if we are not already in it.
+   *  Caller must synch on sendQueue.
+   *  @since 0.9.12
+   */
+  private void locked_schedule() {
+    if (scheduled || quit || !started)
+        return;
+    scheduled = true;
+    try {
+        getExecutor().execute(this);
+    } catch (RejectedExecutionException ree) {
+        scheduled = false;
+    }
+  }
+
+  /**
+   *  Shared by all peers of all torrents, so a peer only holds a
+   *  sender thread while it has something to send.
+   *  Unbounded since a send may block for a long time on a slow peer.
+   *  @since 0.9.12
+   */
+  private static synchronized ThreadPoolExecutor getExecutor() {
+    if (_executor == null) {
+        _executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                                           SENDER_IDLE_TIME, TimeUnit.MILLISECONDS,
+                                           new SynchronousQueue<Runnable>(),
+                                           new SenderThreadFactory());
+    }
+    return _executor;
+  }
+
+  /** @since 0.9.12 */
+  private static class SenderThreadFactory implements ThreadFactory {
+    public Thread newThread(Runnable r) {
+        Thread rv = new I2PAppThread(r, "Snark sender " + _threadCount.incrementAndGet());
+        rv.setDaemon(true);
+        return rv;
+    }
+  }
+
+  /**
+   * Sends the queued messages, flushes, and returns to the pool
+   * when the queue is empty.
+   * Stops and disconnects the peer if quit is true or an IOException occurs.
    */
   public void run()
   {
+    boolean ok = false;
     try
       {
-        while (!quit && peer.isConnected())
+        boolean flushed = false;
+        while (true)
           {
             Message m = null;
             PeerState state = null;
-            boolean shouldFlush;
-            synchronized(sendQueue)
-              {
-                shouldFlush = !quit && peer.isConnected() && sendQueue.isEmpty();
-              }
-            if (shouldFlush)
-                // Make sure everything will reach the other side.
-                // flush while not holding lock, could take a long time
-                dout.flush();
-
             synchronized(sendQueue)
               {
-                while (!quit && peer.isConnected() && sendQueue.isEmpty())
-                  {
-                    try
-                      {
-                        // Make sure everything will reach the other side.
-                        // don't flush while holding lock, could take a long time
-                        // dout.flush();
-                        
-                        // Wait till more data arrives.
-                        sendQueue.wait(60*1000);
-                      }
-                    catch (InterruptedException ie)
-                      {
-                        /* ignored */
-                      }
-                  }
+                if (quit || !peer.isConnected())
+                    break;
                 state = peer.state;
-                if (!quit && state != null && peer.isConnected())
+                if (state != null)
                   {
                     // Piece messages are big. So if there are other
                     // (control) messages make sure they are send first.
@@ -124,64 +156,74 @@ class PeerConnectionOut implements Runnable
                           {
                             if (state.choking) {
                               it.remove();
-                              //SimpleTimer.getInstance().removeEvent(nm.expireEvent);
                             }
                             nm = null;
                           }
                         else if (nm.type == Message.REQUEST && state.choked)
                           {
                             it.remove();
-                            //SimpleTimer.getInstance().removeEvent(nm.expireEvent);
                             nm = null;
                           }
                           
                         if (m == null && nm != null)
                           {
                             m = nm;
-                            //SimpleTimer.getInstance().removeEvent(nm.expireEvent);
                             it.remove();
                           }
                       }
                     if (m == null && !sendQueue.isEmpty()) {
                       m = sendQueue.remove(0);
-                      //SimpleTimer.getInstance().removeEvent(m.expireEvent);
                     }
                   }
+                if (m == null && flushed)
+                  {
+                    // Nothing more to send, give the thread back.
+                    // addMessage() will schedule us again.
+                    scheduled = false;
+                    ok = true;
+                    return;
+                  }
               }
-            if (m != null)
+            if (m == null)
               {
-                if (_log.shouldLog(Log.DEBUG))
-                    _log.debug("Send " + peer + ": " + m);
-
-                // This can block for quite a while.
-                // To help get slow peers going, and track the bandwidth better,
-                // move this _after_ state.uploaded() and see how it works.
-                //m.sendMessage(dout);
-                lastSent = System.currentTimeMillis();
-
-                // Remove all piece messages after sending a choke message.
-                if (m.type == Message.CHOKE)
-                  removeMessage(Message.PIECE);
-
-                // XXX - Should also register overhead...
-                // Don't let other clients requesting big chunks get an advantage
-                // when we are seeding;
-                // only count the rest of the upload after sendMessage().
-                int remainder = 0;
-                if (m.type == Message.PIECE) {
-                  if (m.len <= PeerState.PARTSIZE) {
-                     state.uploaded(m.len);
-                  } else {
-                     state.uploaded(PeerState.PARTSIZE);
-                     remainder = m.len - PeerState.PARTSIZE;
-                  }
-                }
-
-                m.sendMessage(dout);
-                if (remainder > 0)
-                  state.uploaded(remainder);
-                m = null;
+                // Make sure everything will reach the other side.
+                // flush while not holding lock, could take a long time
+                dout.flush();
+                flushed = true;
+                continue;
+              }
+            flushed = false;
+
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Send " + peer + ": " + m);
+
+            // This can block for quite a while.
+            // To help get slow peers going, and track the bandwidth better,
+            // move this _after_ state.uploaded() and see how it works.
+            //m.sendMessage(dout);
+            lastSent = System.currentTimeMillis();
+
+            // Remove all piece messages after sending a choke message.
+            if (m.type == Message.CHOKE)
+              removeMessage(Message.PIECE);
+
+            // XXX - Should also register overhead...
+            // Don't let other clients requesting big chunks get an advantage
+            // when we are seeding;
+            // only count the rest of the upload after sendMessage().
+            int remainder = 0;
+            if (m.type == Message.PIECE) {
+              if (m.len <= PeerState.PARTSIZE) {
+                 state.uploaded(m.len);
+              } else {
+                 state.uploaded(PeerState.PARTSIZE);
+                 remainder = m.len - PeerState.PARTSIZE;
               }
+            }
+
+            m.sendMessage(dout);
+            if (remainder > 0)
+              state.uploaded(remainder);
           }
       }
     catch (IOException ioe)
@@ -198,8 +240,13 @@ class PeerConnectionOut implements Runnable
       }
     finally
       {
-        quit = true;
-        peer.disconnect();
+        if (!ok) {
+            synchronized(sendQueue) {
+                quit = true;
+                scheduled = false;
+            }
+            peer.disconnect();
+        }
       }
   }
 
@@ -211,11 +258,7 @@ class PeerConnectionOut implements Runnable
         //  return;
         
         quit = true;
-        if (thread != null)
-            thread.interrupt();
-        
         sendQueue.clear();
-        sendQueue.notifyAll();
       }
     if (dout != null) {
         try {
@@ -235,7 +278,7 @@ class PeerConnectionOut implements Runnable
     synchronized(sendQueue)
       {
         sendQueue.add(m);
-        sendQueue.notifyAll();
+        locked_schedule();
       }
   }
   
@@ -284,7 +327,6 @@ class PeerConnectionOut implements Runnable
                 removed = true;
               }
           }
-        sendQueue.notifyAll();
       }
     return removed;
   }
@@ -296,9 +338,10 @@ class PeerConnectionOut implements Runnable
 //  addMessage(m);
     synchronized(sendQueue)
       {
-        if(sendQueue.isEmpty())
+        if(sendQueue.isEmpty()) {
           sendQueue.add(m);
-        sendQueue.notifyAll();
+          locked_schedule();
+        }
       }
   }
 
@@ -119,6 +119,17 @@ class PeerCoordinator implements PeerListener
    */
   private final List<Piece> wantedPieces;
 
+  /** wantedPieces by piece number, null if not wanted. Sync on wantedPieces.
+   *  @since 0.9.12
+   */
+  private Piece[] pieceIndex;
+
+  /** The piece numbers in wantedPieces, to match against peer bitfields a word at a time.
+   *  Sync on wantedPieces.
+   *  @since 0.9.12
+   */
+  private BitField wantedBits;
+
   /** The total number of bytes in wantedPieces, or -1 if not yet known.
    *  Sync on wantedPieces.
    *  @since 0.9.1
@@ -155,6 +166,8 @@ class PeerCoordinator implements PeerListener
     this.snark = torrent;
 
     wantedPieces = new ArrayList<Piece>();
+    pieceIndex = new Piece[0];
+    wantedBits = new BitField(0);
     setWantedPieces();
     partialPieces = new ArrayList<PartialPiece>(getMaxConnections() + 1);
     peers = new LinkedBlockingQueue<Peer>();
@@ -197,25 +210,58 @@ class PeerCoordinator implements PeerListener
     // Make a list of pieces
       synchronized(wantedPieces) {
           wantedPieces.clear();
+          int pieces = metainfo.getPieces();
+          pieceIndex = new Piece[pieces];
+          wantedBits = new BitField(pieces);
           BitField bitfield = storage.getBitField();
           int[] pri = storage.getPiecePriorities();
           long count = 0;
-          for (int i = 0; i < metainfo.getPieces(); i++) {
+          for (int i = 0; i < pieces; i++) {
               // only add if we don't have and the priority is >= 0
               if ((!bitfield.get(i)) &&
                   (pri == null || pri[i] >= 0)) {
                   Piece p = new Piece(i);
                   if (pri != null)
                       p.setPriority(pri[i]);
-                  wantedPieces.add(p);
+                  addWantedPiece(p);
                   count += metainfo.getPieceLength(i);
               }
           }
           wantedBytes = count;
-          Collections.shuffle(wantedPieces, _random);
       }
   }
 
+  /**
+   *  Caller must synch on wantedPieces
+   *  @since 0.9.12
+   */
+  private void addWantedPiece(Piece p) {
+      wantedPieces.add(p);
+      pieceIndex[p.getId()] = p;
+      wantedBits.set(p.getId());
+  }
+
+  /**
+   *  Does not remove it from wantedPieces, caller must do that.
+   *  Caller must synch on wantedPieces
+   *  @since 0.9.12
+   */
+  private void unindexWantedPiece(int piece) {
+      pieceIndex[piece] = null;
+      wantedBits.clear(piece);
+  }
+
+  /**
+   *  Caller must synch on wantedPieces
+   *  @return the wanted piece or null
+   *  @since 0.9.12
+   */
+  private Piece getWantedPiece(int piece) {
+      if (piece < 0 || piece >= pieceIndex.length)
+          return null;
+      return pieceIndex[piece];
+  }
+
   public Storage getStorage() { return storage; }
 
   /** for web page detailed stats */
@@ -670,13 +716,11 @@ class PeerCoordinator implements PeerListener
     //  listener.peerChange(this, peer);
 
     synchronized(wantedPieces) {
-        for (Piece pc : wantedPieces) {
-            if (pc.getId() == piece) {
-                pc.addPeer(peer);
-                return true;
-            }
-        }
-        return false;
+        Piece pc = getWantedPiece(piece);
+        if (pc == null)
+            return false;
+        pc.addPeer(peer);
+        return true;
     }
   }
 
@@ -691,12 +735,9 @@ class PeerCoordinator implements PeerListener
 
     boolean rv = false;
     synchronized(wantedPieces) {
-        for (Piece p : wantedPieces) {
-            int i = p.getId();
-            if (bitfield.get(i)) {
-              p.addPeer(peer);
-              rv = true;
-            }
+        for (int i = wantedBits.nextSetBit(0, bitfield); i >= 0; i = wantedBits.nextSetBit(i + 1, bitfield)) {
+            pieceIndex[i].addPeer(peer);
+            rv = true;
         }
     }
     return rv || (wantedBytes == 0 && persistent);
@@ -744,36 +785,40 @@ class PeerCoordinator implements PeerListener
     int wantedSize = END_GAME_THRESHOLD + 1;
     synchronized(wantedPieces)
       {
-        if (record)
-            Collections.sort(wantedPieces); // Sort in order of rarest first.
-        Iterator<Piece> it = wantedPieces.iterator();
-        while (piece == null && it.hasNext())
-          {
-            Piece p = it.next();
-            // sorted by priority, so when we hit a disabled piece we are done
-            if (p.isDisabled())
-                break;
-            if (havePieces.get(p.getId()) && !p.isRequested())
-              {
-                // never ever choose one that's in partialPieces, or we
-                // will create a second one and leak
-                boolean hasPartial = false;
-                for (PartialPiece pp : partialPieces) {
-                    if (pp.getPiece() == p.getId()) {
-                        if (_log.shouldLog(Log.INFO))
-                            _log.info("wantPiece() skipping partial for " + peer + ": piece = " + pp);
-                        hasPartial = true;
-                        break;
-                    }
-                }
-                if (!hasPartial)
+        // never ever choose one that's in partialPieces, or we
+        // will create a second one and leak
+        BitField partials = null;
+        if (!partialPieces.isEmpty()) {
+            partials = new BitField(wantedBits.size());
+            for (PartialPiece pp : partialPieces) {
+                if (pp.getPiece() < partials.size())
+                    partials.set(pp.getPiece());
+            }
+        }
+        // Highest priority, then rarest first, of the wanted pieces the peer has,
+        // matching the bitfields a word at a time instead of sorting wantedPieces.
+        // Ties go to the first one found after a random start.
+        int bits = wantedBits.size();
+        int start = bits > 0 ? _random.nextInt(bits) : 0;
+        for (int pass = 0; pass < 2; pass++) {
+            int from = pass == 0 ? start : 0;
+            int to = pass == 0 ? bits : start;
+            for (int i = wantedBits.nextSetBit(from, havePieces);
+                 i >= 0 && i < to;
+                 i = wantedBits.nextSetBit(i + 1, havePieces)) {
+                Piece p = pieceIndex[i];
+                if (p.isDisabled())
+                    continue;
+                if (p.isRequested()) {
+                    requested.add(p);
+                } else if (partials != null && partials.get(i)) {
+                    if (_log.shouldLog(Log.INFO))
+                        _log.info("wantPiece() skipping partial for " + peer + ": piece = " + i);
+                } else if (piece == null || p.compareTo(piece) < 0) {
                     piece = p;
-              }
-            else if (p.isRequested()) 
-            {
-                requested.add(p);
+                }
             }
-          }
+        }
         if (piece == null)
             wantedSize = wantedPieces.size();
         
@@ -847,17 +892,12 @@ class PeerCoordinator implements PeerListener
       List<Piece> toCancel = new ArrayList<Piece>();
       synchronized(wantedPieces) {
           // Add incomplete and previously unwanted pieces to the list
-          // Temp to avoid O(n**2)
-          BitField want = new BitField(pri.length);
-          for (Piece p : wantedPieces) {
-              want.set(p.getId());
-          }
           BitField bitfield = storage.getBitField();
           for (int i = 0; i < pri.length; i++) {
               if (pri[i] >= 0 && !bitfield.get(i)) {
-                  if (!want.get(i)) {
+                  if (getWantedPiece(i) == null) {
                       Piece piece = new Piece(i);
-                      wantedPieces.add(piece);
+                      addWantedPiece(piece);
                       wantedBytes += metainfo.getPieceLength(i);
                       // As connections are already up, new Pieces will
                       // not have their PeerID list populated, so do that.
@@ -880,14 +920,13 @@ class PeerCoordinator implements PeerListener
                    p.setPriority(priority);
                } else {
                    iter.remove();
+                   unindexWantedPiece(p.getId());
                    toCancel.add(p);
                    wantedBytes -= metainfo.getPieceLength(p.getId());
                }
           }
           if (_log.shouldLog(Log.DEBUG))
               _log.debug("Updated piece priorities, now wanted: " + wantedPieces);
-          // if we added pieces, they will be in-order unless we shuffle
-          Collections.shuffle(wantedPieces, _random);
       }
 
       // cancel outside of wantedPieces lock to avoid deadlocks
@@ -977,8 +1016,8 @@ class PeerCoordinator implements PeerListener
     
     synchronized(wantedPieces)
       {
-        Piece p = new Piece(piece);
-        if (!wantedPieces.contains(p))
+        Piece p = getWantedPiece(piece);
+        if (p == null)
           {
             _log.info("Got unwanted piece " + piece + "/" + metainfo.getPieces() +" from " + peer + " for " + metainfo.getName());
             
@@ -1019,8 +1058,11 @@ class PeerCoordinator implements PeerListener
             snark.stopTorrent();
             throw new RuntimeException(msg, ioe);
           }
-        wantedPieces.remove(p);
-        wantedBytes -= metainfo.getPieceLength(p.getId());
+        if (p != null) {
+            wantedPieces.remove(p);
+            unindexWantedPiece(piece);
+        }
+        wantedBytes -= metainfo.getPieceLength(piece);
       }
 
     // just in case
@@ -1213,28 +1255,27 @@ class PeerCoordinator implements PeerListener
               if (havePieces.get(savedPiece)) {
                  // this is just a double-check, it should be in there
                  boolean skipped = false;
-                 for(Piece piece : wantedPieces) {
-                     if (piece.getId() == savedPiece) {
-                         if (peer.isCompleted() && piece.getPeerCount() > 1) {
-                             // Try to preserve rarest-first
-                             // by not requesting a partial piece that non-seeders also have
-                             // from a seeder
-                             boolean nonSeeds = false;
-                             for (Peer pr : peers) {
-                                 PeerState state = pr.state;
-                                 if (state == null) continue;
-                                 BitField bf = state.bitfield;
-                                 if (bf == null) continue;
-                                 if (bf.get(savedPiece) && !pr.isCompleted()) {
-                                     nonSeeds = true;
-                                     break;
-                                 }
-                             }
-                             if (nonSeeds) {
-                                 skipped = true;
+                 Piece piece = getWantedPiece(savedPiece);
+                 if (piece != null) {
+                     if (peer.isCompleted() && piece.getPeerCount() > 1) {
+                         // Try to preserve rarest-first
+                         // by not requesting a partial piece that non-seeders also have
+                         // from a seeder
+                         boolean nonSeeds = false;
+                         for (Peer pr : peers) {
+                             PeerState state = pr.state;
+                             if (state == null) continue;
+                             BitField bf = state.bitfield;
+                             if (bf == null) continue;
+                             if (bf.get(savedPiece) && !pr.isCompleted()) {
+                                 nonSeeds = true;
                                  break;
                              }
                          }
+                         if (nonSeeds)
+                             skipped = true;
+                     }
+                     if (!skipped) {
                          iter.remove();
                          piece.setRequested(peer, true);
                          if (_log.shouldLog(Log.INFO)) {
@@ -1242,8 +1283,8 @@ class PeerCoordinator implements PeerListener
                                        " Partial list size now: " + partialPieces.size());
                          }
                          return pp;
-                      }
-                  }
+                     }
+                 }
                   if (_log.shouldLog(Log.INFO)) {
                       if (skipped)
                           _log.info("Partial piece " + pp + " with multiple peers skipped for seeder");
@@ -1281,16 +1322,12 @@ class PeerCoordinator implements PeerListener
       synchronized(wantedPieces) {
           for (PartialPiece pp : partialPieces) {
               int savedPiece = pp.getPiece();
-              if (havePieces.get(savedPiece)) {
-                 // this is just a double-check, it should be in there
-                 for(Piece piece : wantedPieces) {
-                     if (piece.getId() == savedPiece) {
-                         if (_log.shouldLog(Log.INFO)) {
-                             _log.info("We could restore orphaned partial piece " + pp);
-                         }
-                         return true;
-                      }
+              // this is just a double-check, it should be in there
+              if (havePieces.get(savedPiece) && getWantedPiece(savedPiece) != null) {
+                  if (_log.shouldLog(Log.INFO)) {
+                      _log.info("We could restore orphaned partial piece " + pp);
                   }
+                  return true;
               }
           }
       }
@@ -1322,12 +1359,9 @@ class PeerCoordinator implements PeerListener
   {
     synchronized(wantedPieces)
       {
-        for (Piece pc : wantedPieces) {
-          if (pc.getId() == piece) {
-            pc.setRequested(peer, false);
-            return;
-          }
-        }
+        Piece pc = getWantedPiece(piece);
+        if (pc != null)
+          pc.setRequested(peer, false);
       }
   }
 
@@ -0,0 +1,160 @@
+/*
+ * Released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ */
+package org.klomp.snark;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.i2p.util.LHMCache;
+
+/**
+ *  Remembers the piece hashes of torrents we created from local files,
+ *  along with the name, length, and last modified time of each file,
+ *  so that when the same file or directory is made into a torrent again
+ *  after a few files changed, only the pieces overlapping the changed
+ *  files have to be read and hashed.
+ *
+ *  Keyed by the absolute path of the base file or directory.
+ *  Not persisted.
+ *
+ *  @since 0.9.12
+ */
+class PieceHashCache {
+
+    private final Map<String, Layout> _cache;
+
+    private static final int MAX_ENTRIES = 16;
+
+    public PieceHashCache() {
+        _cache = new LHMCache<String, Layout>(MAX_ENTRIES);
+    }
+
+    /**
+     *  Copy the hashes of all pieces that are unchanged from the
+     *  previous layout for this key into hashes.
+     *
+     *  @param hashes out parameter, 20 * pieces bytes
+     *  @return the pieces copied, or null if none
+     */
+    public BitField getUnchanged(String key, Layout current, byte[] hashes) {
+        Layout old;
+        synchronized(_cache) {
+            old = _cache.get(key);
+        }
+        if (old == null || old.pieceSize != current.pieceSize)
+            return null;
+        return old.copyUnchanged(current, hashes);
+    }
+
+    /**
+     *  @param current must have the hashes set
+     */
+    public void put(String key, Layout current) {
+        synchronized(_cache) {
+            _cache.put(key, current);
+        }
+    }
+
+    public void clear() {
+        synchronized(_cache) {
+            _cache.clear();
+        }
+    }
+
+    /**
+     *  The files and piece hashes of a torrent.
+     *  Files are in torrent order.
+     */
+    public static class Layout {
+        private final int pieceSize;
+        private final String[] names;
+        private final long[] lengths;
+        /** 0 if unknown or too recent to trust */
+        private final long[] mtimes;
+        private final long total;
+        private byte[] hashes;
+
+        public Layout(int pieceSize, String[] names, long[] lengths, long[] mtimes) {
+            this.pieceSize = pieceSize;
+            this.names = names;
+            this.lengths = lengths;
+            this.mtimes = mtimes;
+            long t = 0;
+            for (int i = 0; i < lengths.length; i++)
+                t += lengths[i];
+            total = t;
+        }
+
+        public void setHashes(byte[] hashes) {
+            this.hashes = hashes;
+        }
+
+        /**
+         *  A piece may be copied if every file overlapping it is at the
+         *  same offset with the same name, length, and modification time,
+         *  and the piece itself has the same length.
+         *
+         *  @param hashes out parameter
+         *  @return the pieces copied, or null if none
+         */
+        private BitField copyUnchanged(Layout cur, byte[] out) {
+            if (hashes == null)
+                return null;
+            Map<String, Integer> oldIndex = new HashMap<String, Integer>(names.length);
+            long[] oldOffsets = new long[names.length];
+            long off = 0;
+            for (int i = 0; i < names.length; i++) {
+                oldIndex.put(names[i], Integer.valueOf(i));
+                oldOffsets[i] = off;
+                off += lengths[i];
+            }
+            int files = cur.names.length;
+            boolean[] unchanged = new boolean[files];
+            off = 0;
+            for (int j = 0; j < files; j++) {
+                Integer i = oldIndex.get(cur.names[j]);
+                unchanged[j] = i != null &&
+                               oldOffsets[i.intValue()] == off &&
+                               lengths[i.intValue()] == cur.lengths[j] &&
+                               mtimes[i.intValue()] > 0 &&
+                               mtimes[i.intValue()] == cur.mtimes[j];
+                off += cur.lengths[j];
+            }
+
+            int oldPieces = hashes.length / 20;
+            int pieces = out.length / 20;
+            BitField rv = null;
+            int file = 0;
+            long fileStart = 0;
+            for (int p = 0; p < pieces && p < oldPieces; p++) {
+                long start = ((long) p) * pieceSize;
+                long end = Math.min(start + pieceSize, cur.total);
+                if (end != Math.min(start + pieceSize, total))
+                    continue;
+                // skip files entirely before this piece
+                while (file < files && fileStart + cur.lengths[file] <= start) {
+                    fileStart += cur.lengths[file];
+                    file++;
+                }
+                boolean ok = true;
+                long fs = fileStart;
+                for (int j = file; j < files && fs < end; j++) {
+                    if (cur.lengths[j] > 0 && !unchanged[j]) {
+                        ok = false;
+                        break;
+                    }
+                    fs += cur.lengths[j];
+                }
+                if (ok) {
+                    System.arraycopy(hashes, 20 * p, out, 20 * p, 20);
+                    if (rv == null)
+                        rv = new BitField(pieces);
+                    rv.set(p);
+                }
+            }
+            return rv;
+        }
+    }
+}
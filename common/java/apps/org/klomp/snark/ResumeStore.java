@@ -0,0 +1,182 @@
+/*
+ * Released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ */
+package org.klomp.snark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.Base32;
+import net.i2p.util.FileUtil;
+import net.i2p.util.Log;
+import net.i2p.util.SecureDirectory;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ *  Saves the completion status of each torrent in its own small file,
+ *  so that updating one torrent does not rewrite the whole config file,
+ *  and so that the storage check at startup may be skipped for torrents
+ *  whose files have not changed since the status was saved.
+ *
+ *  File format, one per info hash, named by the Base32 of the info hash:
+ *<pre>
+ *    int magic
+ *    long time the status was saved
+ *    int pieces
+ *    byte 1 if complete, 0 if not
+ *    bitfield bytes, only if not complete
+ *</pre>
+ *
+ *  The files themselves are checked against the saved time
+ *  and the metainfo lengths by Storage.check().
+ *
+ *  @since 0.9.12
+ */
+class ResumeStore {
+
+    private final Log _log;
+    private final File _dir;
+    /** Base32 info hash to last save time */
+    private final Map<String, Long> _lastSaved;
+
+    private static final int MAGIC = 0x4e575231;  // "NWR1"
+    private static final String SUFFIX = ".dat";
+    /** Don't save more often than this on piece completion */
+    private static final long MIN_PIECE_SAVE_INTERVAL = 60*1000;
+
+    public ResumeStore(I2PAppContext ctx, File dir) {
+        _log = ctx.logManager().getLog(ResumeStore.class);
+        _dir = dir;
+        _lastSaved = new ConcurrentHashMap<String, Long>();
+    }
+
+    /**
+     *  @return time, or 0 if none saved
+     */
+    public long getSavedTime(byte[] ih) {
+        File f = getFile(ih);
+        if (!f.exists())
+            return 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(f));
+            if (in.readInt() != MAGIC)
+                return 0;
+            return in.readLong();
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Error reading " + f, ioe);
+            return 0;
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  @return bitfield, or null if none saved or it does not match the metainfo
+     */
+    public BitField getSavedBitField(MetaInfo meta) {
+        File f = getFile(meta.getInfoHash());
+        if (!f.exists())
+            return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if (in.readInt() != MAGIC)
+                return null;
+            in.readLong();
+            int len = meta.getPieces();
+            if (in.readInt() != len)
+                return null;
+            BitField rv;
+            if (in.readBoolean()) {
+                rv = new BitField(len);
+                for (int i = 0; i < len; i++)
+                    rv.set(i);
+            } else {
+                byte[] bf = new byte[(len + 7) / 8];
+                in.readFully(bf);
+                rv = new BitField(bf, len);
+            }
+            return rv;
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Error reading " + f, ioe);
+            return null;
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  Write to a temp file and rename, so a crash leaves the old status.
+     *  Synchronized as peer threads and the completion callback may save
+     *  the same torrent at once, and would share the temp file.
+     *
+     *  @param bitfield non-null
+     */
+    public synchronized void save(MetaInfo meta, BitField bitfield) {
+        byte[] ih = meta.getInfoHash();
+        long now = System.currentTimeMillis();
+        _lastSaved.put(Base32.encode(ih), Long.valueOf(now));
+        if (!_dir.exists() && !new SecureDirectory(_dir.getAbsolutePath()).mkdirs()) {
+            _log.error("Unable to create " + _dir);
+            return;
+        }
+        File f = getFile(ih);
+        File tmp = new File(_dir, f.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new SecureFileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeLong(now);
+            out.writeInt(bitfield.size());
+            boolean complete = bitfield.complete();
+            out.writeBoolean(complete);
+            if (!complete) {
+                byte[] bf = bitfield.getFieldBytes();
+                out.write(bf, 0, (bitfield.size() + 7) / 8);
+            }
+            out.close();
+            out = null;
+            if (!FileUtil.rename(tmp, f))
+                _log.error("Unable to rename " + tmp + " to " + f);
+        } catch (IOException ioe) {
+            _log.error("Error writing " + tmp, ioe);
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+            tmp.delete();
+        }
+    }
+
+    /**
+     *  Save unless we already saved this torrent recently.
+     *  For piece completion.
+     *
+     *  @param bitfield non-null
+     */
+    public void saveIfStale(MetaInfo meta, BitField bitfield) {
+        Long last = _lastSaved.get(Base32.encode(meta.getInfoHash()));
+        if (last != null && System.currentTimeMillis() - last.longValue() < MIN_PIECE_SAVE_INTERVAL)
+            return;
+        save(meta, bitfield);
+    }
+
+    public synchronized void remove(byte[] ih) {
+        _lastSaved.remove(Base32.encode(ih));
+        getFile(ih).delete();
+    }
+
+    private File getFile(byte[] ih) {
+        return new File(_dir, Base32.encode(ih) + SUFFIX);
+    }
+}
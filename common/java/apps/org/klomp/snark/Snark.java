@@ -396,6 +396,7 @@ public class Snark
           {
             activity = "Checking storage";
             storage = new Storage(_util, meta, slistener);
+            long begin = _util.getContext().clock().now();
             if (completeListener != null) {
                 storage.check(rootDataDir,
                               completeListener.getSavedTorrentTime(this),
@@ -403,6 +404,9 @@ public class Snark
             } else {
                 storage.check(rootDataDir);
             }
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Checked storage for " + torrent + " in " +
+                          (_util.getContext().clock().now() - begin) + " ms");
             // have to figure out when to reopen
             // if (!start)
             //    storage.close();
@@ -55,6 +55,7 @@ public class SnarkManager implements CompleteListener {
     private final Object _addSnarkLock;
     private /* FIXME final FIXME */ File _configFile;
     private Properties _config;
+    private final ResumeStore _resumeStore;
     private final I2PAppContext _context;
     private final String _contextPath;
     private final String _contextName;
@@ -85,6 +86,8 @@ public class SnarkManager implements CompleteListener {
     public static final String PROP_META_MAGNET_PREFIX = "i2psnark.magnet.";
 
     private static final String CONFIG_FILE_SUFFIX = ".config";
+    /** @since 0.9.12 */
+    private static final String RESUME_DIR_SUFFIX = ".resume";
     public static final String PROP_FILES_PUBLIC = "i2psnark.filesPublic";
     public static final String PROP_AUTO_START = "i2snark.autoStart";   // oops
     public static final String DEFAULT_AUTO_START = "false";
@@ -170,6 +173,11 @@ public class SnarkManager implements CompleteListener {
         _configFile = new File(cfile);
         if (!_configFile.isAbsolute())
             _configFile = new File(_context.getConfigDir(), cfile);
+        String rdir = ctxName + RESUME_DIR_SUFFIX;
+        File resumeDir = new File(rdir);
+        if (!resumeDir.isAbsolute())
+            resumeDir = new File(_context.getConfigDir(), rdir);
+        _resumeStore = new ResumeStore(_context, resumeDir);
         _trackerMap = new ConcurrentHashMap<String, Tracker>(4);
         loadConfig(null);
     }
@@ -1233,11 +1241,15 @@ public class SnarkManager implements CompleteListener {
     }
 
     /**
-     * Get the timestamp for a torrent from the config file.
+     * Get the timestamp for a torrent from the resume store,
+     * or from the config file if saved by an older version.
      * A Snark.CompleteListener method.
      */
     public long getSavedTorrentTime(Snark snark) {
         byte[] ih = snark.getInfoHash();
+        long rv = _resumeStore.getSavedTime(ih);
+        if (rv > 0)
+            return rv;
         String infohash = Base64.encode(ih);
         infohash = infohash.replace('=', '$');
         String time = _config.getProperty(PROP_META_PREFIX + infohash + PROP_META_BITFIELD_SUFFIX);
@@ -1252,7 +1264,8 @@ public class SnarkManager implements CompleteListener {
     }
     
     /**
-     * Get the saved bitfield for a torrent from the config file.
+     * Get the saved bitfield for a torrent from the resume store,
+     * or from the config file if saved by an older version.
      * Convert "." to a full bitfield.
      * A Snark.CompleteListener method.
      */
@@ -1260,6 +1273,9 @@ public class SnarkManager implements CompleteListener {
         MetaInfo metainfo = snark.getMetaInfo();
         if (metainfo == null)
             return null;
+        BitField rv = _resumeStore.getSavedBitField(metainfo);
+        if (rv != null)
+            return rv;
         byte[] ih = snark.getInfoHash();
         String infohash = Base64.encode(ih);
         infohash = infohash.replace('=', '$');
@@ -1316,30 +1332,24 @@ public class SnarkManager implements CompleteListener {
     }
     
     /**
-     * Save the completion status of a torrent and the current time in the config file
-     * in the form "i2psnark.zmeta.$base64infohash=$time,$base64bitfield".
+     * Save the completion status of a torrent and the current time in the resume store,
+     * and the file priorities in the config file.
+     * Older versions saved the status in the config file
+     * in the form "i2psnark.zmeta.$base64infohash=$time,$base64bitfield",
+     * that property is removed here.
      * The config file property key is appended with the Base64 of the infohash,
      * with the '=' changed to '$' since a key can't contain '='.
-     * The time is a standard long converted to string.
-     * The status is either a bitfield converted to Base64 or "." for a completed
-     * torrent to save space in the config file and in memory.
+     * The config file is only rewritten if the priorities changed.
      *
      * @param bitfield non-null
      * @param priorities may be null
      */
     public void saveTorrentStatus(MetaInfo metainfo, BitField bitfield, int[] priorities) {
+        _resumeStore.save(metainfo, bitfield);
         byte[] ih = metainfo.getInfoHash();
         String infohash = Base64.encode(ih);
         infohash = infohash.replace('=', '$');
-        String now = "" + System.currentTimeMillis();
-        String bfs;
-        if (bitfield.complete()) {
-          bfs = ".";
-        } else {
-          byte[] bf = bitfield.getFieldBytes();
-          bfs = Base64.encode(bf);
-        }
-        _config.setProperty(PROP_META_PREFIX + infohash + PROP_META_BITFIELD_SUFFIX, now + "," + bfs);
+        boolean changed = _config.remove(PROP_META_PREFIX + infohash + PROP_META_BITFIELD_SUFFIX) != null;
 
         // now the file priorities
         String prop = PROP_META_PREFIX + infohash + PROP_META_PRIORITY_SUFFIX;
@@ -1360,17 +1370,20 @@ public class SnarkManager implements CompleteListener {
                     if (i != priorities.length - 1)
                         buf.append(',');
                 }
-                _config.setProperty(prop, buf.toString());
-            } else {
-                _config.remove(prop);
+                String pri = buf.toString();
+                if (!pri.equals(_config.setProperty(prop, pri)))
+                    changed = true;
+            } else if (_config.remove(prop) != null) {
+                changed = true;
             }
-        } else {
-            _config.remove(prop);
+        } else if (_config.remove(prop) != null) {
+            changed = true;
         }
 
         // TODO save closest DHT nodes too
 
-        saveConfig();
+        if (changed)
+            saveConfig();
     }
     
     /**
@@ -1379,6 +1392,7 @@ public class SnarkManager implements CompleteListener {
      */
     public void removeTorrentStatus(MetaInfo metainfo) {
         byte[] ih = metainfo.getInfoHash();
+        _resumeStore.remove(ih);
         String infohash = Base64.encode(ih);
         infohash = infohash.replace('=', '$');
         _config.remove(PROP_META_PREFIX + infohash + PROP_META_BITFIELD_SUFFIX);
@@ -1532,8 +1546,10 @@ public class SnarkManager implements CompleteListener {
             boolean doMagnets = true;
             while (_running) {
                 File dir = getDataDir();
-                if (_log.shouldLog(Log.DEBUG))
+                if (_log.shouldLog(Log.DEBUG)) {
                     _log.debug("Directory Monitor loop over " + dir.getAbsolutePath());
+                    _log.debug(_util.getFilePool().toString());
+                }
                 try {
                     // Don't let this interfere with .torrent files being added or deleted
                     synchronized (_snarks) {
@@ -1656,9 +1672,16 @@ public class SnarkManager implements CompleteListener {
 
     /**
      * A Snark.CompleteListener method.
+     * Saves the status at most once a minute per torrent,
+     * so a restart does not have to check the whole torrent again.
      * @since 0.9.4
      */
-    public void gotPiece(Snark snark) {}
+    public void gotPiece(Snark snark) {
+        MetaInfo meta = snark.getMetaInfo();
+        Storage storage = snark.getStorage();
+        if (meta != null && storage != null)
+            _resumeStore.saveIfStale(meta, storage.getBitField());
+    }
 
     // End Snark.CompleteListeners
 
@@ -24,6 +24,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.security.MessageDigest;
@@ -34,6 +36,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.I2PAppContext;
@@ -82,6 +90,22 @@ public class Storage
   private static final int BUFSIZE = PeerState.PARTSIZE;
   private static final ByteCache _cache = ByteCache.getInstance(16, BUFSIZE);
 
+  /** piece hashes of torrents we created, to avoid rehashing unchanged files */
+  private static final PieceHashCache _hashCache = new PieceHashCache();
+  /** don't trust modification times this recent, the file system may be coarse */
+  private static final long MTIME_GRANULARITY = 2*1000;
+
+  /** check pieces in parallel if there are at least this many */
+  private static final int MIN_PARALLEL_CHECK_PIECES = 32;
+  /** pieces taken by a check thread at a time, so reads are mostly sequential */
+  private static final int CHECK_CHUNK_PIECES = 16;
+  private static final int MAX_CHECK_THREADS = 4;
+  private static final int CHECK_THREADS =
+      Math.max(1, Math.min(MAX_CHECK_THREADS, Runtime.getRuntime().availableProcessors()));
+  /** shared by all storages so concurrent checks don't multiply the thread count */
+  private static ThreadPoolExecutor _checkExecutor;
+  private static final AtomicInteger _checkThreadCount = new AtomicInteger();
+
   /**
    * Creates a new storage based on the supplied MetaInfo.  This will
    * try to create and/or check all needed files in the MetaInfo.
@@ -180,7 +204,7 @@ public class Storage
       }
 
     // TODO thread this so we can return and show something on the UI
-    byte[] piece_hashes = fast_digestCreate();
+    byte[] piece_hashes = fast_digestCreate(baseFile);
     metainfo = new MetaInfo(announce, baseFile.getName(), null, files,
                             lengthsList, piece_size, piece_hashes, total, privateTorrent,
                             announce_list);
@@ -192,28 +216,76 @@ public class Storage
    * This does NOT create the files, just the hashes.
    * Also sets all the bitfield bits.
    *
+   * Pieces that only overlap files unchanged since the last time
+   * we created a torrent from the same base file are not read,
+   * the previous hashes are used.
+   *
    *  FIXME we can run out of fd's doing this,
    *  maybe some sort of global close-RAF-right-away flag
    *  would do the trick
    */
-  private byte[] fast_digestCreate() throws IOException {
+  private byte[] fast_digestCreate(File baseFile) throws IOException {
     // Calculate piece_hashes
     MessageDigest digest = SHA1.getInstance();
 
     byte[] piece_hashes = new byte[20 * pieces];
 
-    byte[] piece = new byte[piece_size];
+    String key = baseFile.getAbsolutePath();
+    PieceHashCache.Layout layout = getLayout();
+    BitField unchanged = _hashCache.getUnchanged(key, layout, piece_hashes);
+
+    byte[] piece = null;
+    int hashed = 0;
     for (int i = 0; i < pieces; i++)
       {
+        bitfield.set(i);
+        if (unchanged != null && unchanged.get(i))
+          continue;
+        if (piece == null)
+          piece = new byte[piece_size];
         int length = getUncheckedPiece(i, piece);
         digest.update(piece, 0, length);
         byte[] hash = digest.digest();
         System.arraycopy(hash, 0, piece_hashes, 20 * i, 20);
-        bitfield.set(i);
+        hashed++;
       }
+    for (TorrentFile tf : _torrentFiles) {
+        synchronized(tf) {
+            try {
+                tf.closeRAF();
+            } catch (IOException ioe) {}
+        }
+    }
+    layout.setHashes(piece_hashes);
+    _hashCache.put(key, layout);
+    if (_log.shouldLog(Log.INFO))
+        _log.info("Hashed " + hashed + " of " + pieces + " pieces for " + baseFile);
     return piece_hashes;
   }
 
+  /**
+   *  The current names, lengths, and modification times of our files.
+   *  Times too recent to be trusted are recorded as 0.
+   *  @since 0.9.12
+   */
+  private PieceHashCache.Layout getLayout() {
+    int sz = _torrentFiles.size();
+    String[] names = new String[sz];
+    long[] lengths = new long[sz];
+    long[] mtimes = new long[sz];
+    long cutoff = System.currentTimeMillis() - MTIME_GRANULARITY;
+    for (int i = 0; i < sz; i++) {
+        TorrentFile tf = _torrentFiles.get(i);
+        names[i] = tf.name;
+        lengths[i] = tf.length;
+        long lm = tf.RAFfile.lastModified();
+        // the file length is checked separately, but the file may have been
+        // modified again within the same clock tick
+        mtimes[i] = lm < cutoff ? lm : 0;
+    }
+    return new PieceHashCache.Layout(piece_size, names, lengths, mtimes);
+  }
+
   private List<TorrentFile> getFiles(File base) throws IOException
   {
     if (base.getAbsolutePath().equals("/"))
@@ -810,7 +882,11 @@ public class Storage
       }
 
     // Check which pieces match and which don't
-    if (resume)
+    if (resume && CHECK_THREADS > 1 && pieces >= MIN_PARALLEL_CHECK_PIECES)
+      {
+        need -= parallelCheck(bfield);
+      }
+    else if (resume)
       {
         byte[] piece = new byte[piece_size];
         int file = 0;
@@ -872,6 +948,179 @@ public class Storage
     }
   }
 
+  /**
+   *  Check all pieces using up to CHECK_THREADS threads, including this one.
+   *  Each thread reads with its own file channels, buffer, and digest,
+   *  so the TorrentFile RAFs and locks are not used.
+   *  Sets the good pieces in bfield and calls listener.storageChecked()
+   *  for every piece, not in order.
+   *  Caller must synchronize on this.
+   *
+   *  @return the number of good pieces
+   *  @since 0.9.12
+   */
+  private int parallelCheck(BitField bfield) throws IOException {
+    ParallelCheck check = new ParallelCheck(bfield);
+    int threads = CHECK_THREADS;
+    CountDownLatch done = new CountDownLatch(threads - 1);
+    ThreadPoolExecutor executor = getCheckExecutor();
+    for (int i = 0; i < threads - 1; i++) {
+        executor.execute(new CheckRunner(check, done));
+    }
+    // the pool may be busy checking another storage, so do our share here
+    check.run();
+    try {
+        done.await();
+    } catch (InterruptedException ie) {
+        check.fail(new IOException("Interrupted while checking"));
+    }
+    check.throwIfFailed();
+    if (_log.shouldLog(Log.INFO))
+        _log.info("Checked " + pieces + " pieces with " + threads + " threads, " + check.good + " good");
+    return check.good;
+  }
+
+  private static synchronized ThreadPoolExecutor getCheckExecutor() {
+    if (_checkExecutor == null) {
+        // use unbounded queue, so maximumPoolSize has no effect
+        _checkExecutor = new ThreadPoolExecutor(CHECK_THREADS, CHECK_THREADS, 60, TimeUnit.SECONDS,
+                                                new LinkedBlockingQueue<Runnable>(), new CheckThreadFactory());
+        _checkExecutor.allowCoreThreadTimeOut(true);
+    }
+    return _checkExecutor;
+  }
+
+  private static class CheckThreadFactory implements ThreadFactory {
+    public Thread newThread(Runnable r) {
+        Thread rv = Executors.defaultThreadFactory().newThread(r);
+        rv.setName("Snark checker " + _checkThreadCount.incrementAndGet() + '/' + CHECK_THREADS);
+        rv.setDaemon(true);
+        return rv;
+    }
+  }
+
+  /**
+   *  Runs a ParallelCheck in a pool thread and counts down when done.
+   *  @since 0.9.12
+   */
+  private static class CheckRunner implements Runnable {
+    private final ParallelCheck check;
+    private final CountDownLatch done;
+
+    public CheckRunner(ParallelCheck check, CountDownLatch done) {
+        this.check = check;
+        this.done = done;
+    }
+
+    public void run() {
+        try {
+            check.run();
+        } finally {
+            done.countDown();
+        }
+    }
+  }
+
+  /**
+   *  Shared state of a parallel check. Each thread calling run()
+   *  takes chunks of pieces until there are none left or one fails.
+   *  @since 0.9.12
+   */
+  private class ParallelCheck implements Runnable {
+    private final BitField bfield;
+    /** start offset of each file in the torrent */
+    private final long[] offsets;
+    private final AtomicInteger nextChunk = new AtomicInteger();
+    /** locking: this */
+    private int good;
+    private volatile IOException error;
+
+    public ParallelCheck(BitField bfield) {
+        this.bfield = bfield;
+        offsets = new long[_torrentFiles.size()];
+        long off = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = off;
+            off += _torrentFiles.get(i).length;
+        }
+    }
+
+    public void run() {
+        byte[] piece = new byte[piece_size];
+        ByteBuffer buf = ByteBuffer.wrap(piece);
+        MessageDigest digest = SHA1.getInstance();
+        // the one file we have open
+        int openFile = -1;
+        RandomAccessFile raf = null;
+        FileChannel fc = null;
+        // file containing the start of the current piece, only increases
+        int file = 0;
+        try {
+            int chunk;
+            while (error == null && (chunk = nextChunk.getAndIncrement()) * CHECK_CHUNK_PIECES < pieces) {
+                int end = Math.min(pieces, (chunk + 1) * CHECK_CHUNK_PIECES);
+                for (int p = chunk * CHECK_CHUNK_PIECES; p < end && error == null; p++) {
+                    long start = ((long) p) * piece_size;
+                    int length = metainfo.getPieceLength(p);
+                    while (file < offsets.length - 1 && offsets[file + 1] <= start)
+                        file++;
+                    int read = 0;
+                    for (int f = file; read < length; f++) {
+                        TorrentFile tf = _torrentFiles.get(f);
+                        long pos = start + read - offsets[f];
+                        int len = (int) Math.min(length - read, tf.length - pos);
+                        if (len <= 0)
+                            continue;
+                        if (f != openFile) {
+                            if (raf != null)
+                                raf.close();
+                            raf = new RandomAccessFile(tf.RAFfile, "r");
+                            fc = raf.getChannel();
+                            openFile = f;
+                        }
+                        buf.limit(read + len);
+                        buf.position(read);
+                        while (buf.hasRemaining()) {
+                            if (fc.read(buf, pos + buf.position() - read) < 0)
+                                throw new IOException("EOF reading " + tf.RAFfile.getAbsolutePath());
+                        }
+                        read += len;
+                    }
+                    digest.update(piece, 0, length);
+                    byte[] hash = digest.digest();
+                    boolean correctHash = metainfo.checkPiece(p, hash);
+                    synchronized(this) {
+                        if (correctHash) {
+                            bfield.set(p);
+                            good++;
+                        }
+                        if (listener != null)
+                            listener.storageChecked(Storage.this, p, correctHash);
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            fail(ioe);
+        } catch (RuntimeException re) {
+            IOException ioe = new IOException("Error checking");
+            ioe.initCause(re);
+            fail(ioe);
+        } finally {
+            if (raf != null) try { raf.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    public void fail(IOException ioe) {
+        if (error == null)
+            error = ioe;
+    }
+
+    public void throwIfFailed() throws IOException {
+        if (error != null)
+            throw error;
+    }
+  }
+
   /**
    *  This creates a (presumably) sparse file so that reads won't fail with IOE.
    *  Sets isSparse[nr] = true. balloonFile(nr) should be called later to
@@ -1016,6 +1265,7 @@ public class Storage
                   start = 0;
               }
           }
+          _util.getFilePool().trim();
       } finally {
           pp.release();
       }
@@ -1103,17 +1353,27 @@ public class Storage
         int need = length - read;
         int len = (start + need < raflen) ? need : (int)(raflen - start);
         TorrentFile tf = _torrentFiles.get(i);
-        synchronized(tf) {
+        // Positional reads, so peers reading the same file
+        // don't wait for each other or for a writer's seek
+        try {
+            FileChannel fc = tf.acquireChannel();
             try {
-                RandomAccessFile raf = tf.checkRAF();
-                raf.seek(start);
-                raf.readFully(bs, read, len);
-            } catch (IOException ioe) {
-                // get the file name in the logs
-                IOException ioe2 = new IOException("Error reading " + tf.RAFfile.getAbsolutePath());
-                ioe2.initCause(ioe);
-                throw ioe2;
+                ByteBuffer buf = ByteBuffer.wrap(bs, read, len);
+                long pos = start;
+                while (buf.hasRemaining()) {
+                    int rd = fc.read(buf, pos);
+                    if (rd < 0)
+                        throw new IOException("EOF");
+                    pos += rd;
+                }
+            } finally {
+                tf.releaseChannel();
             }
+        } catch (IOException ioe) {
+            // get the file name in the logs
+            IOException ioe2 = new IOException("Error reading " + tf.RAFfile.getAbsolutePath());
+            ioe2.initCause(ioe);
+            throw ioe2;
         }
         read += len;
         if (need - len > 0)
@@ -1123,6 +1383,7 @@ public class Storage
             start = 0;
           }
       }
+    _util.getFilePool().trim();
 
     return length;
   }
@@ -1145,7 +1406,7 @@ public class Storage
    *  A single file in a torrent.
    *  @since 0.9.9
    */
-  private class TorrentFile implements Comparable<TorrentFile> {
+  private class TorrentFile implements Comparable<TorrentFile>, FilePool.PooledFile {
       public final long length;
       public final String name;
       public final File RAFfile;
@@ -1159,6 +1420,18 @@ public class Storage
        * locking: this
        */
       private RandomAccessFile raf;
+      /**
+       * positional reads in progress on the channel of raf
+       * locking: this
+       * @since 0.9.12
+       */
+      private int readers;
+      /**
+       * closeRAF() was called while being read, the last releaseChannel() closes
+       * locking: this
+       * @since 0.9.12
+       */
+      private boolean closePending;
       /**
        * is the file empty and sparse?
        * locking: this
@@ -1199,13 +1472,42 @@ public class Storage
        * locking: this
        */
       public synchronized RandomAccessFile checkRAF() throws IOException {
-          if (raf != null)
+          if (raf != null) {
             RAFtime = System.currentTimeMillis();
-          else
+            _util.getFilePool().accessed(this);
+          } else {
             openRAF();
+          }
           return raf;
       }
 
+      /**
+       * Open if necessary and keep the file open until releaseChannel().
+       * Positional reads on the returned channel need no further locking.
+       * locking: this
+       * @since 0.9.12
+       */
+      public synchronized FileChannel acquireChannel() throws IOException {
+          FileChannel rv = checkRAF().getChannel();
+          readers++;
+          return rv;
+      }
+
+      /**
+       * locking: this
+       * @since 0.9.12
+       */
+      public synchronized void releaseChannel() {
+          readers--;
+          if (readers <= 0 && closePending) {
+              try {
+                  closeRAF();
+              } catch (IOException ioe) {}
+          } else {
+              RAFtime = System.currentTimeMillis();
+          }
+      }
+
       /**
        * locking: this
        */
@@ -1219,14 +1521,15 @@ public class Storage
       private synchronized void openRAF(boolean readonly) throws IOException {
           raf = new RandomAccessFile(RAFfile, (readonly || !RAFfile.canWrite()) ? "r" : "rw");
           RAFtime = System.currentTimeMillis();
+          _util.getFilePool().opened(this);
       }
 
       /**
-       * Close if last used time older than cutoff.
+       * Close if last used time older than cutoff and not being read.
        * locking: this
        */
       public synchronized void closeRAF(long cutoff) {
-          if (RAFtime > 0 && RAFtime < cutoff) {
+          if (RAFtime > 0 && RAFtime < cutoff && readers <= 0) {
               try {
                   closeRAF();
               } catch (IOException ioe) {}
@@ -1234,15 +1537,39 @@ public class Storage
       }
 
       /**
-       * Can be called even if not open
+       * Can be called even if not open.
+       * If being read, the close is deferred to the last releaseChannel().
        * locking: this
        */
       public synchronized void closeRAF() throws IOException {
+          if (readers > 0) {
+              closePending = true;
+              return;
+          }
+          closePending = false;
           RAFtime = 0;
           if (raf == null)
               return;
-          raf.close();
-          raf = null;
+          try {
+              raf.close();
+          } finally {
+              raf = null;
+              _util.getFilePool().closed(this);
+          }
+      }
+
+      /**
+       * A FilePool.PooledFile method.
+       * locking: this
+       * @since 0.9.12
+       */
+      public synchronized boolean closeIfIdle() {
+          if (raf == null || readers > 0)
+              return false;
+          try {
+              closeRAF();
+          } catch (IOException ioe) {}
+          return true;
       }
 
 
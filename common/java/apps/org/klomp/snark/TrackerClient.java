@@ -30,7 +30,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Random;
@@ -41,7 +40,6 @@ import net.i2p.data.Hash;
 import net.i2p.util.ConvertToHash;
 import net.i2p.util.I2PAppThread;
 import net.i2p.util.Log;
-import net.i2p.util.SimpleTimer2;
 
 import org.klomp.snark.bencode.InvalidBEncodingException;
 import org.klomp.snark.dht.DHT;
@@ -50,15 +48,14 @@ import org.klomp.snark.dht.DHT;
  * Informs metainfo tracker of events and gets new peers for peer
  * coordinator.
  *
- * start() creates a thread and starts it.
- * At the end of each run, a TimedEvent is queued on the SimpleTimer2 queue.
- * The TimedEvent creates a new thread and starts it, so it does not
- * clog SimpleTimer2.
+ * start() queues a pass on the AnnounceScheduler shared by all torrents.
+ * The pass runs through the trackers, the PEX, and the DHT.
+ * Nothing sleeps: the DHT lookup continues in another step when it is done,
+ * the peers found are added one step at a time, a few seconds apart,
+ * and the last step queues the next pass.
  *
- * The thread runs one pass through the trackers, the PEX, and the DHT,
- * then queues a new TimedEvent and exits.
- *
- * Thus there are only threads that are actively announcing, not one thread per torrent forever.
+ * Thus there are no threads or timer events per torrent, only a few
+ * shared threads that are actively announcing.
  *
  * start() may be called again after halt().
  *
@@ -83,6 +80,14 @@ public class TrackerClient implements Runnable {
   private final static int LONG_SLEEP = 30*60*1000; // sleep a while after lots of fails
   private final static long MIN_TRACKER_ANNOUNCE_INTERVAL = 15*60*1000;
   private final static long MIN_DHT_ANNOUNCE_INTERVAL = 10*60*1000;
+  /** retry after this if we could not connect */
+  private final static long CONNECT_RETRY = 30*1000;
+  /** check again after this if another torrent is connecting */
+  private final static long CONNECTING_RETRY = 5*1000;
+  /** what run() does next */
+  private final static int STEP_PASS = 0;
+  private final static int STEP_DHT_DONE = 1;
+  private final static int STEP_ADD_PEERS = 2;
   public static final int PORT = 6881;
   public static final boolean DHT_ONLY = true;
 
@@ -102,8 +107,6 @@ public class TrackerClient implements Runnable {
   private volatile int _runCount;
   // running thread so it can be interrupted
   private volatile Thread _thread;
-  // queued event so it can be cancelled
-  private volatile SimpleTimer2.TimedEvent _event;
   // these 2 used in loop()
   private volatile boolean runStarted;
   private volatile  int consecutiveFails;
@@ -113,6 +116,16 @@ public class TrackerClient implements Runnable {
   private final List<TCTracker> trackers;
   private final List<TCTracker> backupTrackers;
   private long _startedOn;
+  // these used by the steps of one pass
+  private volatile int _step;
+  /** changes on start(), so a lookup from before a halt() is ignored */
+  private volatile int _generation;
+  private volatile Collection<Hash> _dhtResult;
+  private int _oldSeenPeers;
+  private int _maxSeenPeers;
+  /** peers to add, a few seconds apart, before the next pass */
+  private final List<Peer> _pendingPeers = new ArrayList<Peer>();
+  private long _nextPassTime;
 
   /**
    * Call start() to start it.
@@ -151,8 +164,13 @@ public class TrackerClient implements Runnable {
       consecutiveFails = 0;
       runStarted = false;
       _fastUnannounce = false;
-      _thread = new I2PAppThread(this, _threadName + " #" + (++_runCount), true);
-      _thread.start();
+      _step = STEP_PASS;
+      _generation++;
+      _dhtResult = null;
+      synchronized(_pendingPeers) {
+          _pendingPeers.clear();
+      }
+      _util.getAnnounceScheduler().schedule(this, snark.getInfoHash(), 0);
       started = true;
   }
   
@@ -173,13 +191,9 @@ public class TrackerClient implements Runnable {
             _log.warn("Stopping: " + _threadName);
         stop = true;
     }
-    SimpleTimer2.TimedEvent e = _event;
-    if (e != null) {
-        if (_log.shouldLog(Log.DEBUG))
-            _log.debug("Cancelling next announce " + _threadName);
-        e.cancel();
-        _event = null;
-    }
+    if (_log.shouldLog(Log.DEBUG))
+        _log.debug("Cancelling next announce " + _threadName);
+    _util.getAnnounceScheduler().cancel(this);
     Thread t = _thread;
     if (t != null) {
         if (_log.shouldLog(Log.DEBUG))
@@ -191,41 +205,44 @@ public class TrackerClient implements Runnable {
         unannounce();
   }
 
+  /**
+   *  Run another pass after the delay, on the shared announce pool.
+   *  @since 0.9.12 was a SimpleTimer2 event per torrent starting a new thread
+   */
   private void queueLoop(long delay) {
-      _event = new Runner(delay);
-  }
-
-  private class Runner extends SimpleTimer2.TimedEvent {
-      public Runner(long delay) {
-          super(_util.getContext().simpleTimer2(), delay);
-      }
-
-      public void timeReached() {
-          _event = null;
-          _thread = new I2PAppThread(TrackerClient.this, _threadName + " #" + (++_runCount), true);
-          _thread.start();
-      }
+      _util.getAnnounceScheduler().schedule(this, snark.getInfoHash(), delay);
   }
 
+  /**
+   *  Connect if we aren't, or queue this step to try again later.
+   *  @return true if connected
+   */
   private boolean verifyConnected() {
-    while (!stop && !_util.connected()) {
-        boolean ok = _util.connect();
-        if (!ok) {
-            try { Thread.sleep(30*1000); } catch (InterruptedException ie) {}
-        }
+    if (_util.connected())
+        return true;
+    if (_util.isConnecting()) {
+        queueLoop(CONNECTING_RETRY);
+        return false;
     }
-    return !stop && _util.connected();
+    if (_util.connect())
+        return true;
+    if (!stop)
+        queueLoop(CONNECT_RETRY);
+    return false;
   }
   
   /**
    *  Setup the first time only,
-   *  then one pass (usually) through the trackers, PEX, and DHT.
-   *  This will take several seconds to several minutes.
+   *  then the next step of a pass through the trackers, PEX, and DHT.
+   *  Steps don't wait, except to connect, and on trackers if not DHT_ONLY.
    */
   public void run() {
+      if (stop)
+          return;
+      _thread = Thread.currentThread();
       long begin = _util.getContext().clock().now();
       if (_log.shouldLog(Log.DEBUG))
-          _log.debug("Start " + Thread.currentThread().getName());
+          _log.debug("Start " + _threadName + " #" + _runCount + " step " + _step);
       try {
           if (!_initialized) {
               setup();
@@ -242,16 +259,31 @@ public class TrackerClient implements Runnable {
               _initialized = true;
               // FIXME only when starting everybody at once, not for a single torrent
               long delay = _util.getContext().random().nextInt(30*1000);
-              try {
-                  Thread.sleep(delay);
-              } catch (InterruptedException ie) {}
+              queueLoop(delay);
+              return;
           }
-          loop();
+          switch (_step) {
+            case STEP_DHT_DONE:
+              dhtDone();
+              break;
+            case STEP_ADD_PEERS:
+              addPendingPeers();
+              break;
+            default:
+              loop();
+          }
+      } catch (Throwable t) {
+          _log.error("TrackerClient: " + t, t);
+          if (t instanceof OutOfMemoryError)
+              throw (OutOfMemoryError)t;
       } finally {
-          // don't hold ref
-          _thread = null;
+          // don't hold ref, and don't let halt() interrupt the next pass on this thread
+          synchronized(this) {
+              _thread = null;
+              Thread.interrupted();
+          }
           if (_log.shouldLog(Log.DEBUG))
-              _log.debug("Finish " + Thread.currentThread().getName() +
+              _log.debug("Finish " + _threadName + " #" + _runCount +
                          " after " + DataHelper.formatDuration(_util.getContext().clock().now() - begin));
       }
   }
@@ -358,91 +390,142 @@ public class TrackerClient implements Runnable {
   }
 
   /**
-   *  Announce to all the trackers, get peers from PEX and DHT, then queue up a SimpleTimer2 event.
-   *  This will take several seconds to several minutes.
+   *  Announce to all the trackers, get peers from PEX,
+   *  and start the DHT lookup, which continues in dhtDone().
    *  @since 0.9.1
    */
   private void loop() {
-    try
-      {
-        // normally this will only go once, then call queueLoop() and return
-        while(!stop)
-          {
-            if (!verifyConnected()) {
-                stop = true;
-                return;
-            }
+    if (!verifyConnected())
+        return;
+    if (stop)
+        return;
+    _runCount++;
+
+    // Local DHT tracker announce
+    DHT dht = _util.getDHT();
+    if (dht != null && (meta == null || !meta.isPrivate()))
+        dht.announce(snark.getInfoHash());
+
+    _oldSeenPeers = snark.getTrackerSeenPeers();
+    _maxSeenPeers = 0;
+    if (!trackers.isEmpty()) {
+        _maxSeenPeers = getPeersFromTrackers(trackers);
+        // fast update for UI at startup
+        if (_maxSeenPeers > _oldSeenPeers)
+            snark.setTrackerSeenPeers(_maxSeenPeers);
+    }
+    int p = getPeersFromPEX();
+    if (p > _maxSeenPeers)
+        _maxSeenPeers = p;
+    if (!startDHTLookup())
+        endPass();
+  }
 
-            // Local DHT tracker announce
-            DHT dht = _util.getDHT();
-            if (dht != null && (meta == null || !meta.isPrivate()))
-                dht.announce(snark.getInfoHash());
+  /**
+   *  The DHT lookup is done, use the peers, and finish the pass.
+   *  @since 0.9.12
+   */
+  private void dhtDone() {
+    _step = STEP_PASS;
+    Collection<Hash> hashes = _dhtResult;
+    _dhtResult = null;
+    if (hashes == null)
+        hashes = Collections.emptyList();
+    int p = getPeersFromDHT(hashes);
+    if (p > _maxSeenPeers) {
+        _maxSeenPeers = p;
+        // fast update for UI at startup
+        if (_maxSeenPeers > _oldSeenPeers)
+            snark.setTrackerSeenPeers(_maxSeenPeers);
+    }
+    endPass();
+  }
 
-            int oldSeenPeers = snark.getTrackerSeenPeers();
-            int maxSeenPeers = 0;
-            if (!trackers.isEmpty()) {
-                maxSeenPeers = getPeersFromTrackers(trackers);
-                // fast update for UI at startup
-                if (maxSeenPeers > oldSeenPeers)
-                    snark.setTrackerSeenPeers(maxSeenPeers);
-            }
-            int p = getPeersFromPEX();
-            if (p > maxSeenPeers)
-                maxSeenPeers = p;
-            p = getPeersFromDHT();
-            if (p > maxSeenPeers) {
-                maxSeenPeers = p;
-                // fast update for UI at startup
-                if (maxSeenPeers > oldSeenPeers)
-                    snark.setTrackerSeenPeers(maxSeenPeers);
-            }
-            // backup if DHT needs bootstrapping
-            if (trackers.isEmpty() && !backupTrackers.isEmpty() && dht != null && dht.size() < 16) {
-                p = getPeersFromTrackers(backupTrackers);
-                if (p > maxSeenPeers)
-                    maxSeenPeers = p;
-            }
+  /**
+   *  Backup trackers if needed, set the time of the next pass,
+   *  and start adding the peers found.
+   *  @since 0.9.12 split from loop()
+   */
+  private void endPass() {
+    // backup if DHT needs bootstrapping
+    DHT dht = _util.getDHT();
+    if (trackers.isEmpty() && !backupTrackers.isEmpty() && dht != null && dht.size() < 16) {
+        int p = getPeersFromTrackers(backupTrackers);
+        if (p > _maxSeenPeers)
+            _maxSeenPeers = p;
+    }
 
-            // we could try and total the unique peers but that's too hard for now
-            snark.setTrackerSeenPeers(maxSeenPeers);
-
-            if (stop)
-                return;
-
-            try {
-                // Sleep some minutes...
-                // Sleep the minimum interval for all the trackers, but 60s minimum
-                int delay;
-                Random r = _util.getContext().random();
-                int random = r.nextInt(120*1000);
-                if (completed && runStarted)
-                  delay = 3*SLEEP*60*1000 + random;
-                else if (snark.getTrackerProblems() != null && ++consecutiveFails < MAX_CONSEC_FAILS)
-                  delay = INITIAL_SLEEP;
-                else if ((!runStarted) && _runCount < MAX_CONSEC_FAILS)
-                  delay = INITIAL_SLEEP;
-                else
-                  // sleep a while, when we wake up we will contact only the trackers whose intervals have passed
-                  delay = SLEEP*60*1000 + random;
-
-                if (delay > 20*1000) {
-                  // put ourselves on SimpleTimer2
-                  if (_log.shouldLog(Log.DEBUG))
-                      _log.debug("Requeueing in " + DataHelper.formatDuration(delay) + ": " + Thread.currentThread().getName());
-                  queueLoop(delay);
-                  return;
-                } else if (delay > 0) {
-                  Thread.sleep(delay);
-                }
-              } catch(InterruptedException interrupt) {}
-          } // *** end of while loop
-      } // try
-    catch (Throwable t)
-      {
-        _log.error("TrackerClient: " + t, t);
-        if (t instanceof OutOfMemoryError)
-            throw (OutOfMemoryError)t;
-      }
+    // we could try and total the unique peers but that's too hard for now
+    snark.setTrackerSeenPeers(_maxSeenPeers);
+
+    if (stop)
+        return;
+
+    // Wait some minutes...
+    // Wait the minimum interval for all the trackers, but 60s minimum
+    int delay;
+    Random r = _util.getContext().random();
+    int random = r.nextInt(120*1000);
+    if (completed && runStarted)
+      delay = 3*SLEEP*60*1000 + random;
+    else if (snark.getTrackerProblems() != null && ++consecutiveFails < MAX_CONSEC_FAILS)
+      delay = INITIAL_SLEEP;
+    else if ((!runStarted) && _runCount < MAX_CONSEC_FAILS)
+      delay = INITIAL_SLEEP;
+    else
+      // wait a while, when we wake up we will contact only the trackers whose intervals have passed
+      delay = SLEEP*60*1000 + random;
+    _nextPassTime = _util.getContext().clock().now() + delay;
+    addPendingPeers();
+  }
+
+  /**
+   *  Add a pending peer, and queue this step again a few seconds later
+   *  if it was added and there are more.
+   *  When done, queue the next pass.
+   *  @since 0.9.12 was a sleep between peers in each of the getPeersFrom methods
+   */
+  private void addPendingPeers() {
+    while (!stop && coordinator.needOutboundPeers()) {
+        Peer cur;
+        boolean more;
+        synchronized(_pendingPeers) {
+            if (_pendingPeers.isEmpty())
+                break;
+            cur = _pendingPeers.remove(0);
+            more = !_pendingPeers.isEmpty();
+        }
+        // FIXME if id == us || dest == us continue;
+        // only delay if we actually make an attempt to add peer
+        if (coordinator.addPeer(cur) && more) {
+            _step = STEP_ADD_PEERS;
+            int delay = _util.getContext().random().nextInt(DELAY_RAND) + DELAY_MIN;
+            queueLoop(delay);
+            return;
+        }
+    }
+    synchronized(_pendingPeers) {
+        _pendingPeers.clear();
+    }
+    _step = STEP_PASS;
+    if (stop)
+        return;
+    long delay = Math.max(0, _nextPassTime - _util.getContext().clock().now());
+    // put ourselves back on the announce queue
+    if (_log.shouldLog(Log.DEBUG))
+        _log.debug("Requeueing in " + DataHelper.formatDuration(delay) + ": " + _threadName);
+    queueLoop(delay);
+  }
+
+  /**
+   *  Shuffle the peers and add them to the ones to try
+   *  @since 0.9.12
+   */
+  private void addToPending(List<Peer> peers) {
+    Collections.shuffle(peers, _util.getContext().random());
+    synchronized(_pendingPeers) {
+        _pendingPeers.addAll(peers);
+    }
   }
 
   /**
@@ -535,19 +618,8 @@ public class TrackerClient implements Runnable {
                     if (coordinator.needOutboundPeers()) {
                         // we only want to talk to new people if we need things
                         // from them (duh)
-                        List<Peer> ordered = new ArrayList<Peer>(peers);
-                        Random r = _util.getContext().random();
-                        Collections.shuffle(ordered, r);
-                        Iterator<Peer> it = ordered.iterator();
-                        while ((!stop) && it.hasNext() && coordinator.needOutboundPeers()) {
-                          Peer cur = it.next();
-                          // FIXME if id == us || dest == us continue;
-                          // only delay if we actually make an attempt to add peer
-                          if(coordinator.addPeer(cur) && it.hasNext()) {
-                            int delay = r.nextInt(DELAY_RAND) + DELAY_MIN;
-                            try { Thread.sleep(delay); } catch (InterruptedException ie) {}
-                          }
-                        }
+                        // added after the DHT lookup, see addPendingPeers()
+                        addToPending(new ArrayList<Peer>(peers));
                     }
                   }
                 catch (IOException ioe)
@@ -608,16 +680,7 @@ public class TrackerClient implements Runnable {
                     for (PeerID pID : pids) {
                         peers.add(new Peer(pID, snark.getID(), snark.getInfoHash(), snark.getMetaInfo()));
                     }
-                    Random r = _util.getContext().random();
-                    Collections.shuffle(peers, r);
-                    Iterator<Peer> it = peers.iterator();
-                    while ((!stop) && it.hasNext() && coordinator.needOutboundPeers()) {
-                        Peer cur = it.next();
-                        if (coordinator.addPeer(cur) && it.hasNext()) {
-                            int delay = r.nextInt(DELAY_RAND) + DELAY_MIN;
-                            try { Thread.sleep(delay); } catch (InterruptedException ie) {}
-                         }
-                    }
+                    addToPending(peers);
                     rv = pids.size();
                     pids.clear();
                 }
@@ -629,12 +692,13 @@ public class TrackerClient implements Runnable {
     }
 
   /**
-   *  @return max peers seen
+   *  Start a DHT lookup, shared with other torrents, see AnnounceScheduler.
+   *  When done, dhtDone() runs as the next step.
+   *
+   *  @return true if started
+   *  @since 0.9.12 split from getPeersFromDHT()
    */
-  private int getPeersFromDHT() {
-            // Get peers from DHT
-            // FIXME this needs to be in its own thread
-            int rv = 0;
+  private boolean startDHTLookup() {
             DHT dht = _util.getDHT();
             if (dht != null &&
                 (meta == null || !meta.isPrivate()) &&
@@ -645,40 +709,52 @@ public class TrackerClient implements Runnable {
                     numwant = 1;
                 else
                     numwant = _util.getMaxConnections();
-                Collection<Hash> hashes = dht.getPeersAndAnnounce(snark.getInfoHash(), numwant, 5*60*1000, 1, 3*60*1000);
-                if (!hashes.isEmpty()) {
-                    runStarted = true;
-                    lastDHTAnnounce = _util.getContext().clock().now();
-                    rv = hashes.size();
-                } else {
-                    lastDHTAnnounce = 0;
-                }
-                if (_log.shouldLog(Log.INFO))
-                    _log.info("Got " + hashes + " from DHT");
-
-                // now try these peers
-                if ((!stop) && !hashes.isEmpty()) {
-                    List<Peer> peers = new ArrayList<Peer>(hashes.size());
-                    for (Hash h : hashes) {
-                        try {
-                            PeerID pID = new PeerID(h.getData(), _util);
-                            peers.add(new Peer(pID, snark.getID(), snark.getInfoHash(), snark.getMetaInfo()));
-                        } catch (InvalidBEncodingException ibe) {}
+                _step = STEP_DHT_DONE;
+                final int generation = _generation;
+                _util.getAnnounceScheduler().getPeersAndAnnounce(dht, snark.getInfoHash(),
+                                                                 numwant, 5*60*1000, 1, 3*60*1000,
+                                                                 new AnnounceScheduler.LookupListener() {
+                    public void lookupDone(Collection<Hash> peers) {
+                        if (stop || generation != _generation)
+                            return;
+                        _dhtResult = peers;
+                        queueLoop(0);
                     }
-                    Random r = _util.getContext().random();
-                    Collections.shuffle(peers, r);
-                    Iterator<Peer> it = peers.iterator();
-                    while ((!stop) && it.hasNext() && coordinator.needOutboundPeers()) {
-                        Peer cur = it.next();
-                        if (coordinator.addPeer(cur) && it.hasNext()) {
-                            int delay = r.nextInt(DELAY_RAND) + DELAY_MIN;
-                            try { Thread.sleep(delay); } catch (InterruptedException ie) {}
-                         }
-                    }
-                }
+                });
+                return true;
             } else {
                 if (_log.shouldLog(Log.INFO))
                     _log.info("Not getting DHT peers");
+                return false;
+            }
+  }
+
+  /**
+   *  @param hashes from the DHT lookup
+   *  @return max peers seen
+   */
+  private int getPeersFromDHT(Collection<Hash> hashes) {
+            int rv = 0;
+            if (!hashes.isEmpty()) {
+                runStarted = true;
+                lastDHTAnnounce = _util.getContext().clock().now();
+                rv = hashes.size();
+            } else {
+                lastDHTAnnounce = 0;
+            }
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Got " + hashes + " from DHT");
+
+            // now try these peers
+            if ((!stop) && !hashes.isEmpty()) {
+                List<Peer> peers = new ArrayList<Peer>(hashes.size());
+                for (Hash h : hashes) {
+                    try {
+                        PeerID pID = new PeerID(h.getData(), _util);
+                        peers.add(new Peer(pID, snark.getID(), snark.getInfoHash(), snark.getMetaInfo()));
+                    } catch (InvalidBEncodingException ibe) {}
+                }
+                addToPending(peers);
             }
             return rv;
   }
@@ -27,6 +27,7 @@ import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -45,9 +46,16 @@ import java.util.Map;
  */
 public class BDecoder
 {
-  // The InputStream to BDecode.
+  // The InputStream to BDecode, or null if decoding from buf.
   private final InputStream in;
 
+  // The array to BDecode, or null if decoding from in.
+  // Reading from the array directly avoids a synchronized
+  // ByteArrayInputStream.read() call per byte.
+  private final byte[] buf;
+  private int pos;
+  private final int end;
+
   // The last indicator read.
   // Zero if unknown.
   // '0'..'9' indicates a byte[].
@@ -92,6 +100,33 @@ public class BDecoder
   public BDecoder(InputStream in)
   {
     this.in = in;
+    buf = null;
+    end = 0;
+  }
+
+  /**
+   * Initalizes a new BDecoder that decodes directly from an array,
+   * without copying it.
+   *
+   * @since 0.9.12
+   */
+  public BDecoder(byte[] data)
+  {
+    this(data, 0, data.length);
+  }
+
+  /**
+   * Initalizes a new BDecoder that decodes directly from part of an array,
+   * without copying it.
+   *
+   * @since 0.9.12
+   */
+  public BDecoder(byte[] data, int offset, int length)
+  {
+    in = null;
+    buf = data;
+    pos = offset;
+    end = offset + length;
   }
 
   /**
@@ -111,6 +146,18 @@ public class BDecoder
     return new BDecoder(in).bdecode();
   }
 
+  /**
+   * Creates a new BDecoder and immediatly decodes the first value
+   * in the array.
+   *
+   * @return The first BEValue in the array or null when the array is empty
+   * @since 0.9.12
+   */
+  public static BEValue bdecode(byte[] data) throws IOException
+  {
+    return new BDecoder(data).bdecode();
+  }
+
   /**
    *  Used for SHA1 hack
    *  @since 0.8.5
@@ -129,6 +176,21 @@ public class BDecoder
       }
   }
 
+  /**
+   * The number of bytes after the last value decoded from an array,
+   * for messages where raw data follows a bencoded value.
+   *
+   * @throws IllegalStateException if decoding from an InputStream
+   * @since 0.9.12
+   */
+  public int remaining()
+  {
+    if (buf == null)
+      throw new IllegalStateException();
+    // don't count a peeked indicator as consumed
+    return end - pos + (indicator > 0 ? 1 : 0);
+  }
+
   /**
    * Returns what the next bencoded object will be on the stream or -1
    * when the end of stream has been reached. Can return something
@@ -141,7 +203,10 @@ public class BDecoder
   {
     if (indicator == 0)
       {
-        indicator = in.read();
+        if (buf != null)
+          indicator = pos < end ? buf[pos++] & 0xff : -1;
+        else
+          indicator = in.read();
         // XXX - Used for ugly hack
         if (in_special_map) sha_digest.update((byte)indicator);
       }
@@ -184,13 +249,27 @@ public class BDecoder
     if (num < 0 || num > 9)
       throw new InvalidBEncodingException("Number expected, not '"
                                           + (char)c + "'");
+
+    return new BEValue(read(bdecodeLength()));
+  }
+
+  /**
+   * Reads the length prefix of a byte array, up to and including the colon.
+   * The current indicator must be its first digit.
+   *
+   * @since 0.9.12
+   */
+  private int bdecodeLength() throws IOException
+  {
+    int num = indicator - '0';
     indicator = 0;
 
-    c = read();
+    int c = read();
     int i = c - '0';
     while (i >= 0 && i <= 9)
       {
-        // XXX - This can overflow!
+        if (num > (Integer.MAX_VALUE - 9) / 10)
+          throw new InvalidBEncodingException("Length too big");
         num = num*10 + i;
         c = read();
         i = c - '0';
@@ -199,8 +278,7 @@ public class BDecoder
     if (c != ':')
       throw new InvalidBEncodingException("Colon expected, not '"
                                           + (char)c + "'");
-
-    return new BEValue(read(num));
+    return num;
   }
 
   /**
@@ -227,44 +305,62 @@ public class BDecoder
                                               + " not '" + (char)c + "'");
       }
 
-    // XXX - We don't support more the 255 char big integers
-    StringBuilder chars = new StringBuilder(16);
-
-    if (c == '-')
+    boolean negative = c == '-';
+    if (negative)
       {
         c = read();
         if (c == '0')
           throw new InvalidBEncodingException("Negative zero not allowed");
-        chars.append((char)c);
       }
 
     if (c < '1' || c > '9')
       throw new InvalidBEncodingException("Invalid Integer start '"
                                           + (char)c + "'");
-    chars.append((char)c);
 
-    c = read();
+    // Accumulate up to 18 digits in a long, which can't overflow,
+    // and only build a String for the rare BigInteger.
+    // XXX - We don't support more the 255 char big integers
+    long val = 0;
+    int len = 0;
+    StringBuilder chars = null;
     while(c >= '0' && c <= '9')
       {
-        chars.append((char)c);
+        if (len < 18)
+          {
+            val = val * 10 + (c - '0');
+          }
+        else
+          {
+            if (chars == null)
+              {
+                chars = new StringBuilder(32);
+                if (negative)
+                  chars.append('-');
+                chars.append(val);
+              }
+            else if (len >= 256)
+              {
+                throw new InvalidBEncodingException("Too many digits: " + len);
+              }
+            chars.append((char)c);
+          }
+        len++;
         c = read();
       }
 
     if (c != 'e')
       throw new InvalidBEncodingException("Integer should end with 'e'");
 
-    String s = chars.toString();
-    int len = s.length();
     // save a little space if we're sure it will fit
     Number num;
+    if (negative)
+        val = -val;
     if (len < 10)
-        num = Integer.valueOf(s);
+        num = Integer.valueOf((int) val);
     else if (len < 19)
-        num = Long.valueOf(s);
-    else if (len > 256)
-        throw new InvalidBEncodingException("Too many digits: " + len);
+        num = Long.valueOf(val);
     else
-        num = new BigInteger(s);
+        num = new BigInteger(chars.toString());
     return new BEValue(num);
   }
 
@@ -338,15 +434,149 @@ public class BDecoder
     return new BEValue(result);
   }
 
+  /**
+   * Decodes the next map, but only builds the values for the given keys.
+   * The values for all other keys are skipped over without being
+   * decoded, so a caller that needs a few keys of a message doesn't
+   * pay for the rest. Afterwards the decoder is positioned after the
+   * map, as with bdecodeMap(), so remaining() still works.
+   *
+   * @param keys the keys to decode
+   * @return the decoded values, keys that aren't in the map are absent
+   * @since 0.9.12
+   */
+  public Map<String, BEValue> bdecodeMapKeys(String... keys) throws IOException
+  {
+    int c = getNextIndicator();
+    if (c != 'd')
+      throw new InvalidBEncodingException("Expected 'd', not '"
+                                          + (char)c + "'");
+    indicator = 0;
+
+    Map<String, BEValue> result = new HashMap<String, BEValue>(keys.length);
+    c = getNextIndicator();
+    while (c != 'e')
+      {
+        String key = bdecodeBytes().getString();
+        boolean wanted = false;
+        for (int i = 0; i < keys.length; i++)
+          {
+            if (keys[i].equals(key))
+              {
+                wanted = true;
+                break;
+              }
+          }
+
+        if (wanted)
+          {
+            // same ugly hack as in bdecodeMap()
+            boolean special = (!in_special_map) && special_map.equals(key);
+            if (special) {
+              createDigest();
+              in_special_map = true;
+            }
+            result.put(key, bdecode());
+            if (special)
+              in_special_map = false;
+          }
+        else
+          {
+            skipValue();
+          }
+
+        c = getNextIndicator();
+      }
+    indicator = 0;
+
+    return result;
+  }
+
+  /**
+   * Skips over the next bencoded value on the stream without building it.
+   * When decoding from an array, byte arrays are skipped without being
+   * copied. Numbers are only checked for their terminating 'e'.
+   *
+   * @exception EOFException when the stream ends before the value does
+   * @since 0.9.12
+   */
+  public void skipValue() throws IOException
+  {
+    int c = getNextIndicator();
+    if (c == -1)
+      throw new EOFException();
+
+    if (c >= '0' && c <= '9')
+      {
+        skip(bdecodeLength());
+      }
+    else if (c == 'i')
+      {
+        indicator = 0;
+        do
+          {
+            c = read();
+            if (c != 'e' && c != '-' && (c < '0' || c > '9'))
+              throw new InvalidBEncodingException("Invalid Integer char '"
+                                                  + (char)c + "'");
+          }
+        while (c != 'e');
+      }
+    else if (c == 'l' || c == 'd')
+      {
+        // map keys are skipped like any other value
+        indicator = 0;
+        c = getNextIndicator();
+        while (c != 'e')
+          {
+            skipValue();
+            c = getNextIndicator();
+          }
+        indicator = 0;
+      }
+    else
+      throw new InvalidBEncodingException
+        ("Unknown indicator '" + c + "'");
+  }
+
+  /**
+   * Skips length bytes, updating the digest for the ugly hack.
+   * Throws EOFException if there are fewer than length bytes left.
+   *
+   * @since 0.9.12
+   */
+  private void skip(int length) throws IOException
+  {
+    if (buf == null)
+      {
+        read(length);
+        return;
+      }
+    if (length > end - pos)
+      throw new EOFException();
+    if (in_special_map) sha_digest.update(buf, pos, length);
+    pos += length;
+  }
+
   /**
    * Returns the next byte read from the InputStream (as int).
    * Throws EOFException if InputStream.read() returned -1.
    */
   private int read() throws IOException
   {
-    int c = in.read();
-    if (c == -1)
-      throw new EOFException();
+    int c;
+    if (buf != null)
+      {
+        if (pos >= end)
+          throw new EOFException();
+        c = buf[pos++] & 0xff;
+      }
+    else
+      {
+        c = in.read();
+        if (c == -1)
+          throw new EOFException();
+      }
     if (in_special_map) sha_digest.update((byte)c);
     return c;
   }
@@ -361,6 +591,17 @@ public class BDecoder
    */
   private byte[] read(int length) throws IOException
   {
+    if (buf != null)
+      {
+        // check before allocating, the length came from the data
+        if (length > end - pos)
+          throw new EOFException();
+        byte[] result = Arrays.copyOfRange(buf, pos, pos + length);
+        if (in_special_map) sha_digest.update(buf, pos, length);
+        pos += length;
+        return result;
+      }
+
     byte[] result = new byte[length];
     
     int read = 0;
@@ -30,6 +30,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import net.i2p.data.DataHelper;
+
 public class BEncoder
 {
 
@@ -106,7 +108,7 @@ public class BEncoder
   {
     out.write('i');
     String s = n.toString();
-    out.write(s.getBytes("UTF-8"));
+    out.write(DataHelper.getASCII(s));
     out.write('e');
   }
 
@@ -150,7 +152,7 @@ public class BEncoder
   public static void bencode(byte[] bs, OutputStream out) throws IOException
   {
     String l = Integer.toString(bs.length);
-    out.write(l.getBytes("UTF-8"));
+    out.write(DataHelper.getASCII(l));
     out.write(':');
     out.write(bs);
   }
@@ -0,0 +1,108 @@
+package org.klomp.snark.dht;
+/*
+ *  Released into the public domain
+ *  with no warranty of any kind, either expressed or implied.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataFormatException;
+import net.i2p.util.Log;
+
+/**
+ *  Collects node additions and removals between saves,
+ *  and appends them to the DHT file on flush(),
+ *  so the whole table is not rewritten each time.
+ *  The file is compacted with a new snapshot when the journal
+ *  gets large compared to the table.
+ *
+ *  @since 0.9.12
+ */
+class DHTJournal {
+
+    private final Log _log;
+    private final DHTNodes _nodes;
+    private final File _file;
+    /** locking: this */
+    private final ByteArrayOutputStream _pending;
+    /** records in the file and in _pending since the last snapshot, locking: this */
+    private int _records;
+    /** locking: this */
+    private boolean _needSnapshot;
+
+    /** compact when the journal has this many more records than there are nodes */
+    private static final int MIN_COMPACT_RECORDS = 500;
+
+    public DHTJournal(I2PAppContext ctx, DHTNodes nodes, File file) {
+        _log = ctx.logManager().getLog(DHTJournal.class);
+        _nodes = nodes;
+        _file = file;
+        _pending = new ByteArrayOutputStream(4096);
+    }
+
+    /**
+     *  Call after loading.
+     *  Forgets what was journaled during the load,
+     *  and snapshots at the next flush if the file is missing or in the old format.
+     */
+    public synchronized void start() {
+        _pending.reset();
+        _records = 0;
+        _needSnapshot = !PersistDHT.isBinary(_file);
+    }
+
+    public synchronized void added(NodeInfo ni) {
+        try {
+            PersistDHT.writeNode(_pending, ni);
+            _records++;
+        } catch (DataFormatException dfe) {
+            _needSnapshot = true;
+        } catch (IOException ioe) {}
+    }
+
+    public synchronized void removed(NID nid) {
+        try {
+            PersistDHT.writeRemove(_pending, nid);
+            _records++;
+        } catch (IOException ioe) {}
+    }
+
+    /**
+     *  Append what we have, or write a snapshot if needed.
+     */
+    public void flush() {
+        byte[] records;
+        synchronized(this) {
+            if (_needSnapshot || _records > _nodes.size() + MIN_COMPACT_RECORDS) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Compacting DHT file after " + _records + " journal records");
+                snapshot(false);
+                return;
+            }
+            if (_pending.size() <= 0)
+                return;
+            records = _pending.toByteArray();
+            _pending.reset();
+        }
+        if (!PersistDHT.appendDHT(_file, records)) {
+            synchronized(this) {
+                _needSnapshot = true;
+            }
+        }
+    }
+
+    /**
+     *  Write the whole table, replacing the journal.
+     *
+     *  @param saveAll if true, don't check last seen time
+     */
+    public synchronized void snapshot(boolean saveAll) {
+        _pending.reset();
+        _records = 0;
+        _needSnapshot = false;
+        PersistDHT.saveDHT(_nodes, saveAll, _file);
+    }
+}
@@ -4,10 +4,8 @@ package org.klomp.snark.dht;
  *  GPLv2
  */
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -15,7 +13,6 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -30,6 +27,7 @@ import net.i2p.client.SendMessageOptions;
 import net.i2p.client.datagram.I2PDatagramDissector;
 import net.i2p.client.datagram.I2PDatagramMaker;
 import net.i2p.client.datagram.I2PInvalidDatagramException;
+import net.i2p.crypto.SHA1Hash;
 import net.i2p.data.DataFormatException;
 import net.i2p.data.DataHelper;
 import net.i2p.data.Destination;
@@ -114,6 +112,8 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
     private final int _qPort;
     private final File _dhtFile;
     private final File _backupDhtFile;
+    /** @since 0.9.12 */
+    private final DHTJournal _journal;
     private volatile boolean _isRunning;
     private volatile boolean _hasBootstrapped;
     /** stats */
@@ -121,7 +121,13 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
     private final AtomicLong _txPkts = new AtomicLong();
     private final AtomicLong _rxBytes = new AtomicLong();
     private final AtomicLong _txBytes = new AtomicLong();
+    private final AtomicLong _lookups = new AtomicLong();
+    private final AtomicLong _lookupTime = new AtomicLong();
+    private final AtomicLong _lookupQueries = new AtomicLong();
+    private final AtomicLong _lookupHops = new AtomicLong();
     private long _started;
+    /** max outstanding queries per iterative lookup */
+    private final int _lookupAlpha;
 
     /** all-zero NID used for pings */
     public static final NID FAKE_NID = new NID(new byte[NID.HASH_LENGTH]);
@@ -155,6 +161,13 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
     private static final long BLACKLIST_CLEAN_TIME = 17*60*1000;
     private static final String DHT_FILE_SUFFIX = ".dht.dat";
 
+    /** Kademlia alpha, number of queries outstanding at once in a lookup */
+    public static final String PROP_LOOKUP_ALPHA = "i2psnark.dht.lookupAlpha";
+    private static final int DEFAULT_LOOKUP_ALPHA = 3;
+    private static final int MAX_LOOKUP_ALPHA = 8;
+    /** after this long, a lookup query no longer counts against alpha, but a reply is still accepted */
+    private static final long LOOKUP_STALL_TIME = 15*1000;
+
     private static final int SEND_CRYPTO_TAGS = 8;
     private static final int LOW_CRYPTO_TAGS = 4;
 
@@ -176,6 +189,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         _outgoingTokens = new ConcurrentHashMap<Token, NodeInfo>();
         _incomingTokens = new ConcurrentHashMap<NID, Token>();
         _blacklist = new ConcurrentHashSet<NID>();
+        _lookupAlpha = Math.max(1, Math.min(MAX_LOOKUP_ALPHA, ctx.getProperty(PROP_LOOKUP_ALPHA, DEFAULT_LOOKUP_ALPHA)));
 
         // Construct my NodeInfo
         // Pick ports over a big range to marginally increase security
@@ -201,6 +215,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         _dhtFile = new File(ctx.getConfigDir(), baseName + DHT_FILE_SUFFIX);
         _backupDhtFile = baseName.equals("i2psnark") ? null : new File(ctx.getConfigDir(), "i2psnark" + DHT_FILE_SUFFIX);
         _knownNodes = new DHTNodes(ctx, _myNID);
+        _journal = new DHTJournal(ctx, _knownNodes, _dhtFile);
 
         start();
     }
@@ -264,7 +279,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
      *  @param target the key we are searching for
      *  @param maxNodes how many to contact
      *  @param maxWait how long to wait for each to reply (not total) must be > 0
-     *  @param parallel how many outstanding at once (unimplemented, always 1)
+     *  @param parallel how many outstanding at once
      */
     private void explore(NID target, int maxNodes, long maxWait, int parallel) {
         List<NodeInfo> nodes = _knownNodes.findClosest(target, maxNodes);
@@ -273,55 +288,13 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
                 _log.info("DHT is empty, cannot explore");
             return;
         }
-        SortedSet<NodeInfo> toTry = new TreeSet<NodeInfo>(new NodeInfoComparator(target));
-        toTry.addAll(nodes);
-        Set<NodeInfo> tried = new HashSet<NodeInfo>();
-
         if (_log.shouldLog(Log.INFO))
             _log.info("Starting explore of " + target);
-        for (int i = 0; i < maxNodes; i++) {
-            if (!_isRunning)
-                break;
-            NodeInfo nInfo;
-            try {
-                nInfo = toTry.first();
-            } catch (NoSuchElementException nsee) {
-                break;
-            }
-            toTry.remove(nInfo);
-            tried.add(nInfo);
-
-            ReplyWaiter waiter = sendFindNode(nInfo, target);
-            if (waiter == null)
-                continue;
-            synchronized(waiter) {
-                try {
-                    waiter.wait(maxWait);
-                } catch (InterruptedException ie) {}
-            }
-
-            int replyType = waiter.getReplyCode();
-            if (replyType == REPLY_NONE) {
-                 if (_log.shouldLog(Log.DEBUG))
-                     _log.debug("Got no reply");
-            } else if (replyType == REPLY_NODES) {
-                 List<NodeInfo> reply = (List<NodeInfo>) waiter.getReplyObject();
-                 // It seems like we are just going to get back ourselves all the time
-                 if (_log.shouldLog(Log.DEBUG))
-                     _log.debug("Got " + reply.size() + " nodes");
-                 for (NodeInfo ni : reply) {
-                     if (! (ni.equals(_myNodeInfo) || (toTry.contains(ni) && tried.contains(ni))))
-                         toTry.add(ni);
-                 }
-            } else if (replyType == REPLY_NETWORK_FAIL) {
-                 break;
-            } else {
-                 if (_log.shouldLog(Log.INFO))
-                     _log.info("Got unexpected reply " + replyType + ": " + waiter.getReplyObject());
-            }
-        }
+        Lookup lookup = new Lookup(target, null, nodes, maxNodes, parallel, maxWait,
+                                   _context.clock().now() + (maxNodes * maxWait / Math.max(1, parallel)));
+        lookup.run();
         if (_log.shouldLog(Log.INFO))
-            _log.info("Finished explore of " + target);
+            _log.info("Finished explore of " + target + ": " + lookup);
     }
 
     /**
@@ -363,87 +336,18 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         int maxNodes = 30;
         // Initial set to try, will get added to as we go
         List<NodeInfo> nodes = _knownNodes.findClosest(iHash, maxNodes);
-        NodeInfoComparator comp = new NodeInfoComparator(iHash);
-        SortedSet<NodeInfo> toTry = new TreeSet<NodeInfo>(comp);
-        SortedSet<NodeInfo> heardFrom = new TreeSet<NodeInfo>(comp);
-        toTry.addAll(nodes);
-        SortedSet<NodeInfo> tried = new TreeSet<NodeInfo>(comp);
 
         if (_log.shouldLog(Log.INFO))
             _log.info("Starting getPeers for " + iHash + " (b64: " + new NID(ih) + ") " + " with " + nodes.size() + " to try");
-        for (int i = 0; i < maxNodes; i++) {
-            if (!_isRunning)
-                break;
-            if (_log.shouldLog(Log.DEBUG))
-                _log.debug("Now to try: " + toTry);
-            NodeInfo nInfo;
-            try {
-                nInfo = toTry.first();
-            } catch (NoSuchElementException nsee) {
-                break;
-            }
-            toTry.remove(nInfo);
-            tried.add(nInfo);
-            if (_log.shouldLog(Log.DEBUG))
-                _log.debug("Try " + i + ": " + nInfo);
-
-            ReplyWaiter waiter = sendGetPeers(nInfo, iHash);
-            if (waiter == null)
-                continue;
-            synchronized(waiter) {
-                try {
-                    waiter.wait(Math.max(30*1000, (Math.min(45*1000, endTime - _context.clock().now()))));
-                } catch (InterruptedException ie) {}
-            }
-
-            int replyType = waiter.getReplyCode();
-            if (replyType == REPLY_NONE) {
-                 if (_log.shouldLog(Log.DEBUG))
-                     _log.debug("Got no reply");
-            } else if (replyType == REPLY_PONG) {
-                 if (_log.shouldLog(Log.DEBUG))
-                     _log.debug("Got pong");
-            } else if (replyType == REPLY_PEERS) {
-                 heardFrom.add(waiter.getSentTo());
-                 if (_log.shouldLog(Log.DEBUG))
-                     _log.debug("Got peers");
-                 List<Hash> reply = (List<Hash>) waiter.getReplyObject();
-                 // shouldn't send us an empty peers list but through
-                 // 0.9.8.1 it will
-                 if (!reply.isEmpty()) {
-                     for (int j = 0; j < reply.size() && rv.size() < max; j++) {
-                          Hash h = reply.get(j);
-                          if (!h.equals(_myNodeInfo.getHash()))
-                              rv.add(h);
-                     }
-                 }
-                 if (_log.shouldLog(Log.INFO))
-                     _log.info("Finished get Peers, got " + reply.size() + " from DHT, returning " + rv.size());
-                 break;
-            } else if (replyType == REPLY_NODES) {
-                 heardFrom.add(waiter.getSentTo());
-                 List<NodeInfo> reply = (List<NodeInfo>) waiter.getReplyObject();
-                 if (_log.shouldLog(Log.DEBUG))
-                     _log.debug("Got " + reply.size() + " nodes");
-                 for (NodeInfo ni : reply) {
-                     if (! (ni.equals(_myNodeInfo) || tried.contains(ni) || toTry.contains(ni)))
-                         toTry.add(ni);
-                 }
-            } else if (replyType == REPLY_NETWORK_FAIL) {
-                 break;
-            } else {
-                 if (_log.shouldLog(Log.INFO))
-                     _log.info("Got unexpected reply " + replyType + ": " + waiter.getReplyObject());
-            }
-            if (_context.clock().now() > endTime)
-                break;
-            if (!toTry.isEmpty() && !heardFrom.isEmpty() &&
-                comp.compare(toTry.first(), heardFrom.first()) >= 0) {
-                if (_log.shouldLog(Log.INFO))
-                    _log.info("Finished get Peers, nothing closer to try after " + (i+1));
+        Lookup lookup = new Lookup(null, iHash, nodes, maxNodes, _lookupAlpha, LOOKUP_STALL_TIME, endTime);
+        lookup.run();
+        for (Hash h : lookup.getPeers()) {
+            if (rv.size() >= max)
                 break;
-            }
+            if (!h.equals(_myNodeInfo.getHash()))
+                rv.add(h);
         }
+        SortedSet<NodeInfo> heardFrom = lookup.getHeardFrom();
         // now announce
         if (!heardFrom.isEmpty()) {
             announce(ih);
@@ -471,10 +375,8 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
             announce(ih, annMax, annMaxWait);
         }
         if (_log.shouldLog(Log.INFO)) {
-            _log.info("Finished get Peers, returning " + rv.size());
-            _log.info("Tried: " + tried);
-            _log.info("Heard from: " + heardFrom);
-            _log.info("Not tried: " + toTry);
+            _log.info("Finished get Peers, returning " + rv.size() + ": " + lookup);
+            lookup.logState();
         }
         return rv;
     }
@@ -637,6 +539,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         _knownNodes.start();
         _tracker.start();
         PersistDHT.loadDHT(this, _dhtFile, _backupDhtFile);
+        _journal.start();
         // start the explore thread
         _isRunning = true;
         // no need to keep ref, it will eventually stop
@@ -646,6 +549,10 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         _rxPkts.set(0);
         _txBytes.set(0);
         _rxBytes.set(0);
+        _lookups.set(0);
+        _lookupTime.set(0);
+        _lookupQueries.set(0);
+        _lookupHops.set(0);
         _started = _context.clock().now();
     }
 
@@ -664,7 +571,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         _tracker.stop();
         // don't lose all our peers if we didn't have time to check them
         boolean saveAll = _context.clock().now() - _started < 20*60*1000;
-        PersistDHT.saveDHT(_knownNodes, saveAll, _dhtFile);
+        _journal.snapshot(saveAll);
         _knownNodes.stop();
         for (Iterator<ReplyWaiter> iter = _sentQueries.values().iterator(); iter.hasNext(); ) {
             ReplyWaiter waiter = iter.next();
@@ -702,6 +609,14 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
                    "Sent tokens: ").append(_outgoingTokens.size()).append("<br>" +
                    "Rcvd tokens: ").append(_incomingTokens.size()).append("<br>" +
                    "Pending queries: ").append(_sentQueries.size()).append("<br>");
+        long lookups = _lookups.get();
+        if (lookups > 0) {
+            buf.append("Lookups: ").append(lookups)
+               .append(" / avg. time ").append(DataHelper.formatDuration2(_lookupTime.get() / lookups))
+               .append(" / avg. queries ").append(_lookupQueries.get() / lookups)
+               .append(" / avg. hops ").append(_lookupHops.get() / lookups)
+               .append(" / alpha ").append(_lookupAlpha).append("<br>");
+        }
         _tracker.renderStatusHTML(buf);
         _knownNodes.renderStatusHTML(buf);
         return buf.toString();
@@ -739,6 +654,19 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
      *  @return null on error
      */
     private ReplyWaiter sendFindNode(NodeInfo nInfo, NID tID) {
+        return sendFindNode(nInfo, tID, null);
+    }
+
+    /**
+     *  Blocking if we have to look up the dest for the nodeinfo
+     *
+     *  @param nInfo who to send it to
+     *  @param tID target ID we are looking for
+     *  @param onDone if non-null, run on reply or timeout, must be fast
+     *  @return null on error
+     *  @since 0.9.12
+     */
+    private ReplyWaiter sendFindNode(NodeInfo nInfo, NID tID, Runnable onDone) {
         if (_log.shouldLog(Log.INFO))
             _log.info("Sending find node of " + tID + " to: " + nInfo);
         Map<String, Object> map = new HashMap<String, Object>();
@@ -746,7 +674,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         Map<String, Object> args = new HashMap<String, Object>();
         args.put("target", tID.getData());
         map.put("a", args);
-        return sendQuery(nInfo, map, true);
+        return sendQuery(nInfo, map, true, onDone, onDone);
     }
 
     /**
@@ -756,6 +684,18 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
      *  @return null on error
      */
     private ReplyWaiter sendGetPeers(NodeInfo nInfo, InfoHash ih) {
+        return sendGetPeers(nInfo, ih, null);
+    }
+
+    /**
+     *  Blocking if we have to look up the dest for the nodeinfo
+     *
+     *  @param nInfo who to send it to
+     *  @param onDone if non-null, run on reply or timeout, must be fast
+     *  @return null on error
+     *  @since 0.9.12
+     */
+    private ReplyWaiter sendGetPeers(NodeInfo nInfo, InfoHash ih, Runnable onDone) {
         if (_log.shouldLog(Log.INFO))
             _log.info("Sending get peers of " + ih + " to: " + nInfo);
         Map<String, Object> map = new HashMap<String, Object>();
@@ -763,7 +703,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         Map<String, Object> args = new HashMap<String, Object>();
         args.put("info_hash", ih.getData());
         map.put("a", args);
-        ReplyWaiter rv = sendQuery(nInfo, map, true);
+        ReplyWaiter rv = sendQuery(nInfo, map, true, onDone, onDone);
         // save the InfoHash so we can get it later
         if (rv != null)
             rv.setSentObject(ih);
@@ -859,14 +799,25 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
 
     // Low-level send methods
 
-    // TODO sendQuery with onReply / onTimeout args
-
     /**
      *  Blocking if repliable and we must lookup b32
      *  @param repliable true for all but announce
      *  @return null on error
      */
     public ReplyWaiter sendQuery(NodeInfo nInfo, Map<String, Object> map, boolean repliable) {
+        return sendQuery(nInfo, map, repliable, null, null);
+    }
+
+    /**
+     *  Blocking if repliable and we must lookup b32
+     *  @param repliable true for all but announce
+     *  @param onReply if non-null, run when the reply is received, must be fast
+     *  @param onTimeout if non-null, run on timeout, must be fast
+     *  @return null on error
+     *  @since 0.9.12
+     */
+    private ReplyWaiter sendQuery(NodeInfo nInfo, Map<String, Object> map, boolean repliable,
+                                  Runnable onReply, Runnable onTimeout) {
         if (nInfo.equals(_myNodeInfo))
             throw new IllegalArgumentException("wtf don't send to ourselves");
         if (_log.shouldLog(Log.DEBUG))
@@ -904,7 +855,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         boolean success = sendMessage(nInfo.getDestination(), port, map, repliable);
         if (success) {
             // save for the caller to get
-            ReplyWaiter rv = new ReplyWaiter(mID, nInfo, null, null);
+            ReplyWaiter rv = new ReplyWaiter(mID, nInfo, onReply, onTimeout);
             _sentQueries.put(mID, rv);
             return rv;
         }
@@ -1007,9 +958,8 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
             throw new IllegalArgumentException("wtf don't send to ourselves");
         byte[] payload = BEncoder.bencode(map);
         if (_log.shouldLog(Log.DEBUG)) {
-            ByteArrayInputStream bais = new ByteArrayInputStream(payload);
             try {
-                _log.debug("Sending to: " + dest.calculateHash() + ' ' + BDecoder.bdecode(bais).toString());
+                _log.debug("Sending to: " + dest.calculateHash() + ' ' + BDecoder.bdecode(payload).toString());
             } catch (IOException ioe) {}
         }
 
@@ -1057,8 +1007,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
      */
     private void receiveMessage(Destination from, int fromPort, byte[] payload) {
         try {
-            InputStream is = new ByteArrayInputStream(payload);
-            BDecoder dec = new BDecoder(is);
+            BDecoder dec = new BDecoder(payload);
             BEValue bev = dec.bdecodeMap();
             Map<String, BEValue> map = bev.getMap();
             if (_log.shouldLog(Log.DEBUG))
@@ -1184,6 +1133,8 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
             NodeInfo nInfo2 = _knownNodes.putIfAbsent(nInfo);
             if (nInfo2 != null)
                 oldInfo = nInfo2;
+            else
+                _journal.added(nInfo);
         } else {
             if (oldInfo.getDestination() == null && nInfo.getDestination() != null)
                 oldInfo.setDestination(nInfo.getDestination());
@@ -1212,6 +1163,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
             // if we didn't know about it before, set the timestamp
             // so it isn't immediately removed by the DHTNodes cleaner
             rv.getNID().setLastSeen();
+            _journal.added(rv);
         }
         return rv;
     }
@@ -1224,6 +1176,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         boolean remove = nid.timeout();
         if (remove) {
             if (_knownNodes.remove(nid) != null) {
+                _journal.removed(nid);
                 if (_log.shouldLog(Log.INFO))
                     _log.info("Removed after consecutive timeouts: " + nInfo);
             }
@@ -1463,6 +1416,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         private final Runnable onReply;
         private final Runnable onTimeout;
         private volatile int replyCode;
+        private volatile boolean timedOut;
         private Object sentObject;
         private Object replyObject;
 
@@ -1470,8 +1424,8 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
          *  Either wait on this object with a timeout, or use non-null Runnables.
          *  Any sent data to be remembered may be stored by setSentObject().
          *  Reply object may be in getReplyObject().
-         *  @param onReply must be fast, otherwise set to null and wait on this UNUSED
-         *  @param onTimeout must be fast, otherwise set to null and wait on this UNUSED
+         *  @param onReply must be fast, otherwise set to null and wait on this
+         *  @param onTimeout must be fast, otherwise set to null and wait on this
          */
         public ReplyWaiter(MsgID mID, NodeInfo nInfo, Runnable onReply, Runnable onTimeout) {
             super(SimpleTimer2.getInstance(), DEFAULT_QUERY_TIMEOUT);
@@ -1514,6 +1468,14 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
             return replyCode;
         }
 
+        /**
+         *  @return true if the timer expired before a reply was received
+         *  @since 0.9.12
+         */
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
         /**
          *  Will notify this and run onReply.
          *  Also removes from _sentQueries and calls heardFrom().
@@ -1536,6 +1498,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         /** timer callback on timeout */
         public void timeReached() {
             _sentQueries.remove(mid);
+            timedOut = true;
             if (onTimeout != null)
                 onTimeout.run();
             timeout(sentTo);
@@ -1559,6 +1522,273 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         }
     }
 
+    /**
+     *  Iterative Kademlia lookup for get_peers (or find_node if ih is null)
+     *  with up to alpha queries outstanding at once.
+     *
+     *  The ReplyWaiter callbacks only record the event and wake the lookup;
+     *  all processing and sending is done by the thread calling run(),
+     *  as a send may block on a dest lookup.
+     *
+     *  A query outstanding for longer than the stall time no longer counts
+     *  against alpha, but a late reply is still processed.
+     *  The lookup finishes when we get peers, when the K closest nodes
+     *  we know about have all replied, when there is nothing left to try,
+     *  or when we run out of queries or time.
+     *
+     *  Not thread safe. Call run() once.
+     *
+     *  @since 0.9.12
+     */
+    private class Lookup implements Runnable {
+        private final SHA1Hash target;
+        private final NID tID;
+        private final InfoHash ih;
+        private final NodeInfoComparator comp;
+        private final SortedSet<NodeInfo> toTry;
+        private final SortedSet<NodeInfo> tried;
+        private final SortedSet<NodeInfo> heardFrom;
+        /** hop count for each node we know, the initial nodes are hop 1 */
+        private final Map<NodeInfo, Integer> hops;
+        /** outstanding queries, with the time they were sent */
+        private final Map<ReplyWaiter, Long> pending;
+        private final List<Hash> peers;
+        private final int maxQueries;
+        private final int alpha;
+        private final long stallTime;
+        private final long endTime;
+        /** incremented by the callbacks, protected by this */
+        private int events;
+        private int queries;
+        private int maxHop;
+        private boolean gotPeers;
+        private boolean networkFail;
+        private long elapsed;
+
+        /**
+         *  @param tID the target to send find_node for, ignored if ih is non-null
+         *  @param ih the Info Hash to send get_peers for, or null to send find_node
+         *  @param nodes the initial nodes to query
+         *  @param maxQueries max total queries to send
+         *  @param alpha max queries outstanding at once
+         *  @param stallTime after this long (ms) a query no longer counts against alpha
+         *  @param endTime absolute time to give up
+         */
+        public Lookup(NID tID, InfoHash ih, List<NodeInfo> nodes, int maxQueries,
+                      int alpha, long stallTime, long endTime) {
+            this.tID = tID;
+            this.ih = ih;
+            target = ih != null ? ih : tID;
+            comp = new NodeInfoComparator(target);
+            toTry = new TreeSet<NodeInfo>(comp);
+            tried = new TreeSet<NodeInfo>(comp);
+            heardFrom = new TreeSet<NodeInfo>(comp);
+            hops = new HashMap<NodeInfo, Integer>();
+            pending = new HashMap<ReplyWaiter, Long>();
+            peers = new ArrayList<Hash>();
+            this.maxQueries = maxQueries;
+            this.alpha = Math.max(1, alpha);
+            this.stallTime = stallTime;
+            this.endTime = endTime;
+            for (NodeInfo ni : nodes) {
+                if (!ni.equals(_myNodeInfo)) {
+                    toTry.add(ni);
+                    hops.put(ni, Integer.valueOf(1));
+                }
+            }
+        }
+
+        /** the callback for both reply and timeout */
+        private final Runnable wakeup = new Runnable() {
+            public void run() {
+                synchronized(Lookup.this) {
+                    events++;
+                    Lookup.this.notifyAll();
+                }
+            }
+        };
+
+        /**
+         *  Blocking!
+         */
+        public void run() {
+            long start = _context.clock().now();
+            while (_isRunning) {
+                int seen;
+                synchronized(this) {
+                    seen = events;
+                }
+                long now = _context.clock().now();
+                int active = processReplies(now);
+                if (isDone())
+                    break;
+                // fill up the window
+                while (active < alpha && queries < maxQueries && !toTry.isEmpty() && _isRunning) {
+                    NodeInfo nInfo = toTry.first();
+                    toTry.remove(nInfo);
+                    tried.add(nInfo);
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("Try " + queries + ": " + nInfo);
+                    queries++;
+                    ReplyWaiter waiter = ih != null ? sendGetPeers(nInfo, ih, wakeup)
+                                                    : sendFindNode(nInfo, tID, wakeup);
+                    if (waiter == null)
+                        continue;
+                    pending.put(waiter, Long.valueOf(_context.clock().now()));
+                    active++;
+                }
+                if (pending.isEmpty())
+                    break;
+                now = _context.clock().now();
+                if (now >= endTime)
+                    break;
+                // wake up when something happens or the oldest active query stalls
+                long toWait = endTime - now;
+                for (Long sent : pending.values()) {
+                    long stall = sent.longValue() + stallTime - now;
+                    if (stall > 0 && stall < toWait)
+                        toWait = stall;
+                }
+                synchronized(this) {
+                    if (events == seen) {
+                        try {
+                            wait(Math.max(toWait, 10));
+                        } catch (InterruptedException ie) {
+                            break;
+                        }
+                    }
+                }
+            }
+            // don't need callbacks for the rest, they will time out on their own
+            elapsed = _context.clock().now() - start;
+            _lookups.incrementAndGet();
+            _lookupTime.addAndGet(elapsed);
+            _lookupQueries.addAndGet(queries);
+            _lookupHops.addAndGet(maxHop);
+        }
+
+        /**
+         *  Process all completed queries.
+         *  @return the number of outstanding queries that are not stalled
+         */
+        private int processReplies(long now) {
+            int active = 0;
+            for (Iterator<Map.Entry<ReplyWaiter, Long>> iter = pending.entrySet().iterator(); iter.hasNext(); ) {
+                Map.Entry<ReplyWaiter, Long> e = iter.next();
+                ReplyWaiter waiter = e.getKey();
+                int replyType = waiter.getReplyCode();
+                if (replyType != REPLY_NONE) {
+                    iter.remove();
+                    processReply(waiter, replyType);
+                } else if (waiter.isTimedOut()) {
+                    iter.remove();
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("Got no reply from " + waiter.getSentTo());
+                } else if (now - e.getValue().longValue() < stallTime) {
+                    active++;
+                }
+            }
+            return active;
+        }
+
+        private void processReply(ReplyWaiter waiter, int replyType) {
+            NodeInfo sentTo = waiter.getSentTo();
+            if (replyType == REPLY_PONG) {
+                 if (_log.shouldLog(Log.DEBUG))
+                     _log.debug("Got pong");
+            } else if (replyType == REPLY_PEERS) {
+                 heardFrom.add(sentTo);
+                 gotHop(sentTo);
+                 gotPeers = true;
+                 List<Hash> reply = (List<Hash>) waiter.getReplyObject();
+                 // shouldn't send us an empty peers list but through
+                 // 0.9.8.1 it will
+                 peers.addAll(reply);
+                 if (_log.shouldLog(Log.INFO))
+                     _log.info("Got " + reply.size() + " peers from " + sentTo);
+            } else if (replyType == REPLY_NODES) {
+                 heardFrom.add(sentTo);
+                 int hop = gotHop(sentTo);
+                 List<NodeInfo> reply = (List<NodeInfo>) waiter.getReplyObject();
+                 if (_log.shouldLog(Log.DEBUG))
+                     _log.debug("Got " + reply.size() + " nodes");
+                 for (NodeInfo ni : reply) {
+                     if (! (ni.equals(_myNodeInfo) || tried.contains(ni) || toTry.contains(ni))) {
+                         toTry.add(ni);
+                         if (!hops.containsKey(ni))
+                             hops.put(ni, Integer.valueOf(hop + 1));
+                     }
+                 }
+            } else if (replyType == REPLY_NETWORK_FAIL) {
+                 networkFail = true;
+            } else {
+                 if (_log.shouldLog(Log.INFO))
+                     _log.info("Got unexpected reply " + replyType + ": " + waiter.getReplyObject());
+            }
+        }
+
+        /** @return the hop count of the node */
+        private int gotHop(NodeInfo nInfo) {
+            Integer h = hops.get(nInfo);
+            int hop = h != null ? h.intValue() : 1;
+            if (hop > maxHop)
+                maxHop = hop;
+            return hop;
+        }
+
+        /**
+         *  Done if we have peers, or if the K closest nodes we know about
+         *  have all replied, i.e. nothing untried or outstanding is closer
+         *  than the Kth closest we heard from.
+         */
+        private boolean isDone() {
+            if (gotPeers || networkFail)
+                return true;
+            if (heardFrom.size() < K)
+                return false;
+            NodeInfo kth = null;
+            int i = 0;
+            for (NodeInfo ni : heardFrom) {
+                if (++i >= K) {
+                    kth = ni;
+                    break;
+                }
+            }
+            if (!toTry.isEmpty() && queries < maxQueries && comp.compare(toTry.first(), kth) < 0)
+                return false;
+            for (ReplyWaiter waiter : pending.keySet()) {
+                if (comp.compare(waiter.getSentTo(), kth) < 0)
+                    return false;
+            }
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Lookup of " + target + " done, " + K + " closest replied after " + queries + " queries");
+            return true;
+        }
+
+        /** @return peers received, may contain duplicates and ourselves */
+        public List<Hash> getPeers() {
+            return peers;
+        }
+
+        /** @return nodes that replied, sorted closest first */
+        public SortedSet<NodeInfo> getHeardFrom() {
+            return heardFrom;
+        }
+
+        public void logState() {
+            _log.info("Tried: " + tried);
+            _log.info("Heard from: " + heardFrom);
+            _log.info("Not tried: " + toTry);
+        }
+
+        @Override
+        public String toString() {
+            return "lookup of " + target + ": " + queries + " queries, " + maxHop + " hops, " +
+                   heardFrom.size() + " replies, " + peers.size() + " peers in " +
+                   DataHelper.formatDuration(elapsed);
+        }
+    }
+
     // I2PSessionMuxedListener interface ----------------
 
     /**
@@ -1664,6 +1894,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
                 if (nid.lastSeen() < expire)
                     iter.remove();
             }
+            _journal.flush();
             // TODO sent queries?
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("KRPC cleaner done, now with " +
@@ -1706,7 +1937,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
             if (!_hasBootstrapped) {
                 if (_log.shouldLog(Log.INFO))
                     _log.info("Bootstrap start, size: " + _knownNodes.size());
-                explore(_myNID, 8, 60*1000, 1);
+                explore(_myNID, 8, 60*1000, _lookupAlpha);
                 if (_log.shouldLog(Log.INFO))
                     _log.info("Bootstrap done, size: " + _knownNodes.size());
                 _hasBootstrapped = true;
@@ -1717,7 +1948,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
                 _log.info("Explore start. size: " + _knownNodes.size());
             List<NID> keys = _knownNodes.getExploreKeys();
             for (NID nid : keys) {
-                explore(nid, 8, 60*1000, 1);
+                explore(nid, 8, 60*1000, _lookupAlpha);
                 if (!_isRunning)
                     return;
             }
@@ -1,27 +1,48 @@
 package org.klomp.snark.dht;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import net.i2p.I2PAppContext;
 import net.i2p.data.DataFormatException;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Destination;
+import net.i2p.util.FileUtil;
 import net.i2p.util.Log;
 import net.i2p.util.SecureFileOutputStream;
 
 /**
  *  Retrieve / Store the local DHT in a file
  *
+ *  Since 0.9.12 the file is binary, a snapshot of the nodes
+ *  followed by records appended by DHTJournal as nodes come and go:
+ *<pre>
+ *    int magic
+ *    records:
+ *      byte 1, 54 byte compact NodeInfo, 2 byte Destination length (may be 0), Destination
+ *      byte 2, 20 byte NID removed
+ *</pre>
+ *  The old text format, one NID:Hash:Destination:port line per node,
+ *  is still read, and is replaced by the binary format at the next save.
+ *
  *  @since 0.9.2
  */
 abstract class PersistDHT {
 
     private static final long MAX_AGE = 60*60*1000;
+    private static final int MAGIC = 0x4e574431;  // "NWD1"
+    private static final int REC_NODE = 1;
+    private static final int REC_REMOVE = 2;
 
     /**
      *  @param backupFile may be null
@@ -36,11 +57,105 @@ abstract class PersistDHT {
 
     public static synchronized void loadDHT(KRPC krpc, File file) {
         Log log = I2PAppContext.getGlobalContext().logManager().getLog(PersistDHT.class);
+        byte[] data;
+        DataInputStream in = null;
+        try {
+            long len = file.length();
+            if (len <= 0 || len > Integer.MAX_VALUE)
+                return;
+            data = new byte[(int) len];
+            in = new DataInputStream(new FileInputStream(file));
+            in.readFully(data);
+        } catch (IOException ioe) {
+            if (log.shouldLog(Log.WARN) && file.exists())
+                log.warn("Error reading the DHT File", ioe);
+            return;
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+        int count;
+        if (isBinary(data))
+            count = loadBinary(krpc, data, log);
+        else
+            count = loadText(krpc, data, log);
+        if (log.shouldLog(Log.INFO))
+            log.info("Loaded " + count + " nodes from " + file);
+    }
+
+    /**
+     *  @since 0.9.12
+     */
+    private static boolean isBinary(byte[] data) {
+        return data.length >= 4 && (int) DataHelper.fromLong(data, 0, 4) == MAGIC;
+    }
+
+    /**
+     *  Replays the snapshot and journal, then adds what's left.
+     *  A truncated last record, from a crash during an append, is ignored.
+     *
+     *  @return number of nodes
+     *  @since 0.9.12
+     */
+    private static int loadBinary(KRPC krpc, byte[] data, Log log) {
+        Map<NID, NodeInfo> nodes = new LinkedHashMap<NID, NodeInfo>(data.length / 400);
+        int off = 4;
+        while (off < data.length) {
+            int type = data[off++] & 0xff;
+            if (type == REC_NODE) {
+                if (off + NodeInfo.LENGTH + 2 > data.length)
+                    break;
+                int dlen = (int) DataHelper.fromLong(data, off + NodeInfo.LENGTH, 2);
+                int end = off + NodeInfo.LENGTH + 2 + dlen;
+                if (end > data.length)
+                    break;
+                try {
+                    NodeInfo ni = new NodeInfo(data, off);
+                    if (dlen > 0) {
+                        Destination dest = Destination.create(new ByteArrayInputStream(data, off + NodeInfo.LENGTH + 2, dlen));
+                        ni.setDestination(dest);
+                    }
+                    nodes.put(ni.getNID(), ni);
+                } catch (IllegalArgumentException iae) {
+                    if (log.shouldLog(Log.WARN))
+                        log.warn("Error reading DHT entry", iae);
+                } catch (DataFormatException dfe) {
+                    if (log.shouldLog(Log.WARN))
+                        log.warn("Error reading DHT entry", dfe);
+                } catch (IOException ioe) {
+                    if (log.shouldLog(Log.WARN))
+                        log.warn("Error reading DHT entry", ioe);
+                }
+                off = end;
+            } else if (type == REC_REMOVE) {
+                if (off + NID.HASH_LENGTH > data.length)
+                    break;
+                byte[] nid = new byte[NID.HASH_LENGTH];
+                System.arraycopy(data, off, nid, 0, NID.HASH_LENGTH);
+                nodes.remove(new NID(nid));
+                off += NID.HASH_LENGTH;
+            } else {
+                if (log.shouldLog(Log.WARN))
+                    log.warn("Bad DHT record type " + type + " at " + (off - 1));
+                break;
+            }
+        }
+        for (NodeInfo ni : nodes.values()) {
+            krpc.heardAbout(ni);
+        }
+        return nodes.size();
+    }
+
+    /**
+     *  The format before 0.9.12
+     *
+     *  @return number of nodes
+     */
+    private static int loadText(KRPC krpc, byte[] data, Log log) {
         int count = 0;
         BufferedReader br = null;
         try {
             br = new BufferedReader(new InputStreamReader(
-            		new FileInputStream(file), "ISO-8859-1"));
+            		new ByteArrayInputStream(data), "ISO-8859-1"));
             String line = null;
             while ( (line = br.readLine()) != null) {
                 if (line.startsWith("#"))
@@ -58,16 +173,18 @@ abstract class PersistDHT {
                 }
             }
         } catch (IOException ioe) {
-            if (log.shouldLog(Log.WARN) && file.exists())
+            if (log.shouldLog(Log.WARN))
                 log.warn("Error reading the DHT File", ioe);
         } finally {
             if (br != null) try { br.close(); } catch (IOException ioe) {}
         }
-        if (log.shouldLog(Log.INFO))
-            log.info("Loaded " + count + " nodes from " + file);
+        return count;
     }
 
     /**
+     *  Write a snapshot, replacing the file and any journal records in it.
+     *  Writes to a temp file and renames, so a crash leaves the old file.
+     *
      *  @param saveAll if true, don't check last seen time
      */
     public static synchronized void saveDHT(DHTNodes nodes, boolean saveAll, File file) {
@@ -76,24 +193,101 @@ abstract class PersistDHT {
         Log log = I2PAppContext.getGlobalContext().logManager().getLog(PersistDHT.class);
         int count = 0;
         long maxAge = saveAll ? 0 : I2PAppContext.getGlobalContext().clock().now() - MAX_AGE;
-        PrintWriter out = null;
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
         try {
-            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new SecureFileOutputStream(file), "ISO-8859-1")));
-            out.println("# DHT nodes, format is NID:Hash:Destination:port");
+            out = new BufferedOutputStream(new SecureFileOutputStream(tmp));
+            DataHelper.writeLong(out, 4, MAGIC);
             for (NodeInfo ni : nodes.values()) {
                  if (ni.lastSeen() < maxAge)
                      continue;
                  // DHTNodes shouldn't contain us, if that changes check here
-                 out.println(ni.toPersistentString());
+                 writeNode(out, ni);
                  count++;
             }
+            out.close();
+            out = null;
+            if (!FileUtil.rename(tmp, file)) {
+                if (log.shouldLog(Log.WARN))
+                    log.warn("Error renaming " + tmp + " to " + file);
+            }
         } catch (IOException ioe) {
             if (log.shouldLog(Log.WARN))
                 log.warn("Error writing the DHT File", ioe);
+        } catch (DataFormatException dfe) {
+            if (log.shouldLog(Log.WARN))
+                log.warn("Error writing the DHT File", dfe);
         } finally {
-            if (out != null) out.close();
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+            tmp.delete();
         }
         if (log.shouldLog(Log.INFO))
             log.info("Stored " + count + " nodes to " + file);
     }
+
+    /**
+     *  Append journal records to a binary file.
+     *
+     *  @param records from writeNode() and writeRemove()
+     *  @return success, false if the file is missing or not binary and needs a snapshot instead
+     *  @since 0.9.12
+     */
+    static synchronized boolean appendDHT(File file, byte[] records) {
+        if (!isBinary(file))
+            return false;
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file, true);
+            out.write(records);
+            return true;
+        } catch (IOException ioe) {
+            Log log = I2PAppContext.getGlobalContext().logManager().getLog(PersistDHT.class);
+            if (log.shouldLog(Log.WARN))
+                log.warn("Error appending to the DHT File", ioe);
+            return false;
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  @since 0.9.12
+     */
+    static synchronized boolean isBinary(File file) {
+        if (!file.exists())
+            return false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            return in.readInt() == MAGIC;
+        } catch (IOException ioe) {
+            return false;
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  @since 0.9.12
+     */
+    static void writeNode(OutputStream out, NodeInfo ni) throws DataFormatException, IOException {
+        out.write(REC_NODE);
+        out.write(ni.getData());
+        Destination dest = ni.getDestination();
+        if (dest != null) {
+            byte[] d = dest.toByteArray();
+            DataHelper.writeLong(out, 2, d.length);
+            out.write(d);
+        } else {
+            DataHelper.writeLong(out, 2, 0);
+        }
+    }
+
+    /**
+     *  @since 0.9.12
+     */
+    static void writeRemove(OutputStream out, NID nid) throws IOException {
+        out.write(REC_REMOVE);
+        out.write(nid.getData());
+    }
 }
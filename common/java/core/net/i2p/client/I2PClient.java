@@ -14,6 +14,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Properties;
 
+import net.i2p.I2PAppContext;
 import net.i2p.I2PException;
 import net.i2p.data.Certificate;
 import net.i2p.data.Destination;
@@ -73,6 +74,19 @@ public interface I2PClient {
      */
     public I2PSession createSession(InputStream destKeyStream, Properties options) throws I2PSessionException;
 
+    /** Same as createSession(destKeyStream, options), but the session uses the given context.
+     * If it is a RouterContext, the session connects to the router in the same JVM
+     * through the internal I2CP queue instead of a socket.
+     *
+     * @param context non-null
+     * @param destKeyStream location from which to read the Destination, PrivateKey, and SigningPrivateKey from,
+     *                      format is specified in {@link net.i2p.data.PrivateKeyFile PrivateKeyFile}
+     * @param options set of options to configure the router with, if null will use System properties
+     * @return new session allowing a Destination to recieve all of its messages and send messages to any other Destination.
+     * @since 0.9.12
+     */
+    public I2PSession createSession(I2PAppContext context, InputStream destKeyStream, Properties options) throws I2PSessionException;
+
     /** Create a new destination with the default certificate creation properties and store
      * it, along with the private encryption and signing keys at the specified location
      *
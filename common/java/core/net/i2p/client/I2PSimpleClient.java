@@ -37,6 +37,14 @@ public class I2PSimpleClient implements I2PClient {
     public I2PSession createSession(InputStream destKeyStream, Properties options) throws I2PSessionException {
         return createSession(I2PAppContext.getGlobalContext(), options);
     }
+
+    /**
+     * Create a new session (though do not connect it yet)
+     * @since 0.9.12
+     */
+    public I2PSession createSession(I2PAppContext context, InputStream destKeyStream, Properties options) throws I2PSessionException {
+        return createSession(context, options);
+    }
     /**
      * Create a new session (though do not connect it yet)
      *
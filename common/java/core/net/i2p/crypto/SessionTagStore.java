@@ -0,0 +1,331 @@
+package net.i2p.crypto;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.i2p.data.SessionTag;
+
+/**
+ *  Inbound session tags, mapped to the tag set they came in and when they expire.
+ *
+ *  The 32 tag bytes are packed into a long[] open addressing table with
+ *  linear probing, so a tag costs a 48 byte slot instead of a SessionTag,
+ *  its byte[], and entries in two hash tables.
+ *  The caller's SessionTag is not retained.
+ *
+ *  The table is split into stripes, each with its own lock, so lookups
+ *  from several threads rarely contend. Slots are chosen with the tag's
+ *  hashCode(), a SipHash keyed at random, so peers can't send us tags
+ *  that pile up in one stripe or one run of slots.
+ *
+ *  @since 0.9.12
+ */
+class SessionTagStore<V> {
+
+    private final Stripe[] _stripes;
+    private final int _stripeMask;
+
+    private static final int DEFAULT_STRIPES = 16;
+    private static final int MIN_CAPACITY = 64;
+
+    public SessionTagStore() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     *  @param stripes rounded up to a power of 2, max 256
+     */
+    public SessionTagStore(int stripes) {
+        int n = 1;
+        while (n < stripes && n < 256)
+            n <<= 1;
+        _stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            _stripes[i] = new Stripe(MIN_CAPACITY);
+        }
+        _stripeMask = n - 1;
+    }
+
+    /**
+     *  @param expires absolute time
+     *  @return the value previously stored for the tag, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(SessionTag tag, V value, long expires) {
+        if (value == null)
+            throw new IllegalArgumentException();
+        int hash = tag.hashCode();
+        Stripe s = stripe(hash);
+        synchronized (s) {
+            return (V) s.put(hash, tag.getData(), value, expires);
+        }
+    }
+
+    /**
+     *  @return the value stored for the tag, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(SessionTag tag) {
+        int hash = tag.hashCode();
+        Stripe s = stripe(hash);
+        synchronized (s) {
+            return (V) s.remove(hash, tag.getData());
+        }
+    }
+
+    /**
+     *  Remove all tags that expire at or before now.
+     *
+     *  @return number of tags removed
+     */
+    public int expire(long now) {
+        int rv = 0;
+        for (Stripe s : _stripes) {
+            synchronized (s) {
+                rv += s.removeAll(null, now);
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  Remove all tags stored with any of the values.
+     *
+     *  @return number of tags removed
+     */
+    @SuppressWarnings("unchecked")
+    public int removeAll(Collection<V> values) {
+        if (values.isEmpty())
+            return 0;
+        Set<V> set = (values instanceof Set) ? (Set<V>) values : new HashSet<V>(values);
+        int rv = 0;
+        for (Stripe s : _stripes) {
+            synchronized (s) {
+                rv += s.removeAll(set, Long.MIN_VALUE);
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  @return the distinct values, a copy
+     */
+    @SuppressWarnings("unchecked")
+    public Set<V> getValues() {
+        Set<V> rv = new HashSet<V>(64);
+        for (Stripe s : _stripes) {
+            synchronized (s) {
+                Object[] values = s.values;
+                for (int i = 0; i < values.length; i++) {
+                    if (values[i] != null)
+                        rv.add((V) values[i]);
+                }
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  Number of tags. Not a snapshot, the stripes are counted one at a time.
+     */
+    public int size() {
+        int rv = 0;
+        for (Stripe s : _stripes) {
+            synchronized (s) {
+                rv += s.size;
+            }
+        }
+        return rv;
+    }
+
+    public void clear() {
+        for (Stripe s : _stripes) {
+            synchronized (s) {
+                s.init(MIN_CAPACITY);
+            }
+        }
+    }
+
+    /** the high bits of the hash pick the stripe, the low bits the slot */
+    private Stripe stripe(int hash) {
+        return _stripes[(hash >>> 24) & _stripeMask];
+    }
+
+    /**
+     *  Reads the tag as 4 longs, big endian
+     */
+    private static long toLong(byte[] data, int off) {
+        long rv = 0;
+        for (int i = off; i < off + 8; i++) {
+            rv = (rv << 8) | (data[i] & 0xff);
+        }
+        return rv;
+    }
+
+    /**
+     *  One open addressing table. A slot is empty if its value is null.
+     *  All methods, and access to the fields, must synch on this.
+     */
+    private static class Stripe {
+        /** 4 per slot */
+        long[] keys;
+        long[] expires;
+        Object[] values;
+        /** so we don't need a SessionTag to find the home slot when moving slots */
+        int[] hashes;
+        int size;
+
+        /** grow past this many */
+        private int _maxSize;
+
+        public Stripe(int capacity) {
+            init(capacity);
+        }
+
+        /**
+         *  @param capacity a power of 2
+         */
+        public void init(int capacity) {
+            keys = new long[capacity * 4];
+            expires = new long[capacity];
+            values = new Object[capacity];
+            hashes = new int[capacity];
+            size = 0;
+            _maxSize = capacity * 3 / 4;
+        }
+
+        public Object put(int hash, byte[] data, Object value, long expire) {
+            int i = find(hash, data);
+            if (values[i] != null) {
+                Object rv = values[i];
+                values[i] = value;
+                expires[i] = expire;
+                return rv;
+            }
+            if (size >= _maxSize) {
+                resize(values.length * 2);
+                i = find(hash, data);
+            }
+            set(i, hash, toLong(data, 0), toLong(data, 8), toLong(data, 16), toLong(data, 24), value, expire);
+            size++;
+            return null;
+        }
+
+        public Object remove(int hash, byte[] data) {
+            int i = find(hash, data);
+            Object rv = values[i];
+            if (rv != null)
+                delete(i);
+            return rv;
+        }
+
+        /**
+         *  Removes those with a value in the set or an expiration at or before now,
+         *  by rebuilding the table, which may then shrink.
+         *
+         *  @param set may be null
+         *  @return number removed
+         */
+        public int removeAll(Set<?> set, long now) {
+            int removed = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null && (expires[i] <= now || (set != null && set.contains(values[i]))))
+                    removed++;
+            }
+            if (removed == 0)
+                return 0;
+            int capacity = values.length;
+            int left = size - removed;
+            while (capacity > MIN_CAPACITY && left < capacity / 4)
+                capacity /= 2;
+            long[] oldKeys = keys;
+            long[] oldExpires = expires;
+            Object[] oldValues = values;
+            int[] oldHashes = hashes;
+            init(capacity);
+            for (int i = 0; i < oldValues.length; i++) {
+                Object v = oldValues[i];
+                if (v == null || oldExpires[i] <= now || (set != null && set.contains(v)))
+                    continue;
+                insert(oldHashes[i], oldKeys, i * 4, v, oldExpires[i]);
+            }
+            return removed;
+        }
+
+        /**
+         *  @return the slot with the tag, or the empty slot where it would go
+         */
+        private int find(int hash, byte[] data) {
+            int mask = values.length - 1;
+            int i = hash & mask;
+            while (values[i] != null) {
+                if (hashes[i] == hash) {
+                    int k = i * 4;
+                    if (keys[k] == toLong(data, 0) && keys[k+1] == toLong(data, 8) &&
+                        keys[k+2] == toLong(data, 16) && keys[k+3] == toLong(data, 24))
+                        return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            long[] oldExpires = expires;
+            Object[] oldValues = values;
+            int[] oldHashes = hashes;
+            init(capacity);
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null)
+                    insert(oldHashes[i], oldKeys, i * 4, oldValues[i], oldExpires[i]);
+            }
+        }
+
+        /** for rebuilding, the key is known not to be there */
+        private void insert(int hash, long[] k, int off, Object value, long expire) {
+            int mask = values.length - 1;
+            int i = hash & mask;
+            while (values[i] != null)
+                i = (i + 1) & mask;
+            set(i, hash, k[off], k[off+1], k[off+2], k[off+3], value, expire);
+            size++;
+        }
+
+        private void set(int i, int hash, long k0, long k1, long k2, long k3, Object value, long expire) {
+            int k = i * 4;
+            keys[k] = k0;
+            keys[k+1] = k1;
+            keys[k+2] = k2;
+            keys[k+3] = k3;
+            hashes[i] = hash;
+            values[i] = value;
+            expires[i] = expire;
+        }
+
+        /**
+         *  Empty slot i, and shift back any later slots in the run
+         *  that would no longer be found past the hole.
+         */
+        private void delete(int i) {
+            int mask = values.length - 1;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (values[j] == null)
+                    break;
+                int home = hashes[j] & mask;
+                // move j to i unless its home is cyclically in (i, j]
+                boolean stays = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+                if (stays)
+                    continue;
+                int from = j * 4;
+                set(i, hashes[j], keys[from], keys[from+1], keys[from+2], keys[from+3], values[j], expires[j]);
+                i = j;
+            }
+            values[i] = null;
+            size--;
+        }
+    }
+}
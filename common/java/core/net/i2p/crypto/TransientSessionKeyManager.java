@@ -21,6 +21,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.I2PAppContext;
@@ -69,15 +70,19 @@ import net.i2p.util.SimpleTimer;
  *
  * Should the tag threshold and quantity be adaptive?
  *
- * Todo: Switch to ConcurrentHashMaps and ReadWriteLocks, only get write lock during cleanup
+ * Inbound tags are kept in a SessionTagStore, which is striped,
+ * so consumeTag() does not take a global lock.
  *
  */
 public class TransientSessionKeyManager extends SessionKeyManager {
     private final Log _log;
-    /** Map allowing us to go from the targeted PublicKey to the OutboundSession used */
+    /**
+     *  Map allowing us to go from the targeted PublicKey to the OutboundSession used.
+     *  Concurrent; synch on it only to create a session in getCurrentOrNewKey().
+     */
     private final Map<PublicKey, OutboundSession> _outboundSessions;
-    /** Map allowing us to go from a SessionTag to the containing TagSet */
-    private final Map<SessionTag, TagSet> _inboundTagSets;
+    /** Allowing us to go from a SessionTag to the containing TagSet */
+    private final SessionTagStore<TagSet> _inboundTagSets;
     protected final I2PAppContext _context;
     private volatile boolean _alive;
     /** for debugging */
@@ -108,7 +113,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
 
     /**
      * a few MB? how about 16MB!
-     * This is the max size of _inboundTagSets.
+     * This is the max number of tags in _inboundTagSets.
      */
     public final static int MAX_INBOUND_SESSION_TAGS = 500 * 1000; // this will consume at most a few MB
 
@@ -175,8 +180,8 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         _lowThreshold = lowThreshold;
         _log = context.logManager().getLog(TransientSessionKeyManager.class);
         _context = context;
-        _outboundSessions = new HashMap<PublicKey, OutboundSession>(64);
-        _inboundTagSets = new HashMap<SessionTag, TagSet>(128);
+        _outboundSessions = new ConcurrentHashMap<PublicKey, OutboundSession>(64);
+        _inboundTagSets = new SessionTagStore<TagSet>();
         context.statManager().createRateStat("crypto.sessionTagsExpired", "How many tags/sessions are expired?", "Encryption", new long[] { 10*60*1000, 60*60*1000, 3*60*60*1000 });
         context.statManager().createRateStat("crypto.sessionTagsRemaining", "How many tags/sessions are remaining after a cleanup?", "Encryption", new long[] { 10*60*1000, 60*60*1000, 3*60*60*1000 });
          _alive = true;
@@ -186,12 +191,8 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     @Override
     public void shutdown() {
          _alive = false;
-        synchronized (_inboundTagSets) {
-            _inboundTagSets.clear();
-        }
-        synchronized (_outboundSessions) {
-            _outboundSessions.clear();
-        }
+        _inboundTagSets.clear();
+        _outboundSessions.clear();
     }
 
     private class CleanupEvent implements SimpleTimer.TimedEvent {
@@ -209,16 +210,12 @@ public class TransientSessionKeyManager extends SessionKeyManager {
 
     /** TagSet - used only by HTML */
     private Set<TagSet> getInboundTagSets() {
-        synchronized (_inboundTagSets) {
-            return new HashSet<TagSet>(_inboundTagSets.values());
-        }
+        return _inboundTagSets.getValues();
     }
 
     /** OutboundSession - used only by HTML */
     private Set<OutboundSession> getOutboundSessions() {
-        synchronized (_outboundSessions) {
-            return new HashSet<OutboundSession>(_outboundSessions.values());
-        }
+        return new HashSet<OutboundSession>(_outboundSessions.values());
     }
 
 /****** leftover from when we had the persistent SKM
@@ -282,6 +279,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
      */
     @Override
     public SessionKey getCurrentOrNewKey(PublicKey target) {
+        // lock so two callers can't both create a session
         synchronized (_outboundSessions) {
             OutboundSession sess = _outboundSessions.get(target);
             if (sess != null) {
@@ -514,7 +512,8 @@ public class TransientSessionKeyManager extends SessionKeyManager {
      */
     @Override
     public void tagsReceived(SessionKey key, Set<SessionTag> sessionTags, long expire) {
-        TagSet tagSet = new TagSet(sessionTags, key, _context.clock().now() + expire,
+        long expiration = _context.clock().now() + expire;
+        TagSet tagSet = new TagSet(sessionTags.size(), key, expiration,
                                    _rcvTagSetID.incrementAndGet());
         if (_log.shouldLog(Log.INFO)) {
             _log.info("Received " + tagSet);
@@ -523,31 +522,26 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         }
         TagSet old = null;
         SessionTag dupTag = null;
-        synchronized (_inboundTagSets) {
-            for (SessionTag tag : sessionTags) {
-                old = _inboundTagSets.put(tag, tagSet);
-                if (old != null) {
-                    if (!old.getAssociatedKey().equals(tagSet.getAssociatedKey())) {
-                        _inboundTagSets.remove(tag);
-                        dupTag = tag;
-                        break;
-                    } else {
-                        old = null; // ignore the dup
-                    }
+        for (SessionTag tag : sessionTags) {
+            old = _inboundTagSets.put(tag, tagSet, expiration);
+            if (old != null) {
+                if (!old.getAssociatedKey().equals(tagSet.getAssociatedKey())) {
+                    _inboundTagSets.remove(tag);
+                    dupTag = tag;
+                    break;
+                } else {
+                    old.consume(); // ignore the dup, it's ours now
+                    old = null;
                 }
             }
         }
 
         if (old != null) {
             // drop both old and tagSet tags
-            synchronized (_inboundTagSets) {
-                for (SessionTag tag : old.getTags()) {
-                    _inboundTagSets.remove(tag);
-                }
-                for (SessionTag tag : sessionTags) {
-                    _inboundTagSets.remove(tag);
-                }
-            }
+            List<TagSet> drop = new ArrayList<TagSet>(2);
+            drop.add(old);
+            drop.add(tagSet);
+            _inboundTagSets.removeAll(drop);
 
             if (_log.shouldLog(Log.WARN)) {
                 _log.warn("Multiple tags matching!  tagSet: " + tagSet + " and old tagSet: " + old + " tag: " + dupTag + "/" + dupTag);
@@ -583,29 +577,21 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         int toRemove = overage * 2;
         _log.log(Log.CRIT, "TOO MANY SESSION TAGS! Starting cleanup, overage = " + overage);
         List<TagSet> removed = new ArrayList<TagSet>(toRemove);
-        synchronized (_inboundTagSets) {
-            for (TagSet set : _inboundTagSets.values()) {
-                int size = set.getTags().size();
-                if (size > 1000)
-                    absurd++;
-                if (size > 100)
-                    large++;
-                if (now >= set.getDate())
-                    old++;
-                else if (set.getDate() - now > 10*60*1000)
-                    recent++;
-
-                if ((removed.size() < (toRemove)) || (now >= set.getDate()))
-                    removed.add(set);
-            }
-            for (int i = 0; i < removed.size(); i++) {
-                TagSet cur = removed.get(i);
-                for (SessionTag tag : cur.getTags()) {
-                    _inboundTagSets.remove(tag);
-                    tags++;
-                }
-            }
+        for (TagSet set : _inboundTagSets.getValues()) {
+            int size = set.size();
+            if (size > 1000)
+                absurd++;
+            if (size > 100)
+                large++;
+            if (now >= set.getDate())
+                old++;
+            else if (set.getDate() - now > 10*60*1000)
+                recent++;
+
+            if ((removed.size() < (toRemove)) || (now >= set.getDate()))
+                removed.add(set);
         }
+        tags = _inboundTagSets.removeAll(removed);
         if (_log.shouldLog(Log.CRIT))
             _log.log(Log.CRIT, "TOO MANY SESSION TAGS!  removing " + removed 
                      + " tag sets arbitrarily, with " + tags + " tags,"
@@ -625,16 +611,13 @@ public class TransientSessionKeyManager extends SessionKeyManager {
      */
     @Override
     public SessionKey consumeTag(SessionTag tag) {
-        TagSet tagSet;
-        synchronized (_inboundTagSets) {
-            tagSet = _inboundTagSets.remove(tag);
-            if (tagSet == null) {
-                if (_log.shouldLog(Log.DEBUG))
-                    _log.debug("Cannot consume IB " + tag + " as it is not known");
-                return null;
-            }
-            tagSet.consume(tag);
+        TagSet tagSet = _inboundTagSets.remove(tag);
+        if (tagSet == null) {
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Cannot consume IB " + tag + " as it is not known");
+            return null;
         }
+        tagSet.consume();
 
         SessionKey key = tagSet.getAssociatedKey();
         if (_log.shouldLog(Log.DEBUG))
@@ -643,23 +626,16 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     }
 
     private OutboundSession getSession(PublicKey target) {
-        synchronized (_outboundSessions) {
-            return _outboundSessions.get(target);
-        }
+        return _outboundSessions.get(target);
     }
 
     private void addSession(OutboundSession sess) {
-        synchronized (_outboundSessions) {
-            _outboundSessions.put(sess.getTarget(), sess);
-        }
+        _outboundSessions.put(sess.getTarget(), sess);
     }
 
     private void removeSession(PublicKey target) {
         if (target == null) return;
-        OutboundSession session = null;
-        synchronized (_outboundSessions) {
-            session = _outboundSessions.remove(target);
-        }
+        OutboundSession session = _outboundSessions.remove(target);
         if ( (session != null) && (_log.shouldLog(Log.WARN)) )
             _log.warn("Removing session tags with " + session.availableTags() + " available for "
                        + (session.getLastExpirationDate()-_context.clock().now())
@@ -676,32 +652,21 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         int remaining = 0;
         long now = _context.clock().now();
 
-        synchronized (_inboundTagSets) {
-            for (Iterator<TagSet> iter = _inboundTagSets.values().iterator(); iter.hasNext();) {
-                TagSet ts = iter.next();
-                // for inbound tagsets, getDate() is the expire time
-                if (ts.getDate() <= now) {
-                    iter.remove();
-                    // bug, this counts inbound tags, not tag sets
-                    removed++;
-                }
-            }
-            remaining = _inboundTagSets.size();
-        }
+        // bug, this counts inbound tags, not tag sets
+        removed = _inboundTagSets.expire(now);
+        remaining = _inboundTagSets.size();
         _context.statManager().addRateData("crypto.sessionTagsRemaining", remaining, 0);
         if (removed > 0 && _log.shouldLog(Log.DEBUG))
             _log.debug("Expired inbound: " + removed);
 
-        synchronized (_outboundSessions) {
-            for (Iterator<OutboundSession> iter = _outboundSessions.values().iterator(); iter.hasNext();) {
-                OutboundSession sess = iter.next();
-                removed += sess.expireTags();
-                // don't kill a new session or one that's temporarily out of tags
-                if (sess.getLastUsedDate() < now - (SESSION_LIFETIME_MAX_MS / 2) &&
-                    sess.availableTags() <= 0) {
-                    iter.remove();
-                    removed++;   // just to have a non-zero return value?
-                }
+        for (Iterator<OutboundSession> iter = _outboundSessions.values().iterator(); iter.hasNext();) {
+            OutboundSession sess = iter.next();
+            removed += sess.expireTags();
+            // don't kill a new session or one that's temporarily out of tags
+            if (sess.getLastUsedDate() < now - (SESSION_LIFETIME_MAX_MS / 2) &&
+                sess.availableTags() <= 0) {
+                iter.remove();
+                removed++;   // just to have a non-zero return value?
             }
         }
         return removed;
@@ -733,7 +698,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
                        "<td><b># Sets:</b> ").append(sets.size()).append("</td></tr>" +
                        "<tr><td colspan=\"2\"><ul>");
             for (TagSet ts : sets) {
-                int size = ts.getTags().size();
+                int size = ts.size();
                 total += size;
                 buf.append("<li><b>ID: ").append(ts.getID());
                 long expires = ts.getDate() - now;
@@ -1079,7 +1044,10 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     }
 
     private static class TagSet implements TagSetHandle {
+        /** outbound only, null for inbound */
         private final Set<SessionTag> _sessionTags;
+        /** inbound only, the tags themselves are in the SessionTagStore */
+        private final AtomicInteger _remaining;
         private final SessionKey _key;
         private final long _date;
         private final int _id;
@@ -1095,6 +1063,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
             if (key == null) throw new IllegalArgumentException("Missing key");
             if (tags == null) throw new IllegalArgumentException("Missing tags");
             _sessionTags = tags;
+            _remaining = null;
             _key = key;
             _date = date;
             _id = id;
@@ -1107,6 +1076,22 @@ public class TransientSessionKeyManager extends SessionKeyManager {
             //}
         }
 
+        /**
+         *  For inbound only. The tags are kept in the SessionTagStore, we just count them.
+         *
+         *  @param date when the TagSet will expire
+         *  @since 0.9.12
+         */
+        public TagSet(int size, SessionKey key, long date, int id) {
+            if (key == null) throw new IllegalArgumentException("Missing key");
+            _sessionTags = null;
+            _remaining = new AtomicInteger(size);
+            _key = key;
+            _date = date;
+            _id = id;
+            _origSize = size;
+        }
+
         /**
          *  For inbound: when the TagSet will expire; for outbound: creation time
          */
@@ -1123,20 +1108,35 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         //    _date = when;
         //}
 
-        /** tags still available */
+        /**
+         *  For outbound only.
+         *  @return tags still available
+         */
         public Set<SessionTag> getTags() {
             return _sessionTags;
         }
 
+        /**
+         *  @return number of tags still available
+         *  @since 0.9.12
+         */
+        public int size() {
+            if (_sessionTags != null)
+                return _sessionTags.size();
+            return _remaining.get();
+        }
+
         public SessionKey getAssociatedKey() {
             return _key;
         }
 
         /**
-         *  Caller must synch.
+         *  For inbound only.
+         *  The tag was removed from the SessionTagStore.
+         *  @since 0.9.12, was consume(tag)
          */
-        public void consume(SessionTag tag) {
-            _sessionTags.remove(tag);
+        public void consume() {
+            _remaining.decrementAndGet();
         }
 
         /**
@@ -1195,7 +1195,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
             StringBuilder buf = new StringBuilder(256);
             buf.append("TagSet #").append(_id).append(" created: ").append(new Date(_date));
             buf.append(" Session key: ").append(_key);
-            buf.append(" Size: ").append(_sessionTags.size());
+            buf.append(" Size: ").append(size());
             buf.append(" Acked? ").append(_acked);
             return buf.toString();
         }
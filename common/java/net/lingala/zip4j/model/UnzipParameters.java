@@ -24,6 +24,7 @@ public class UnzipParameters {
 	private boolean ignoreSystemFileAttribute;
 	private boolean ignoreAllFileAttributes;
 	private boolean ignoreDateTimeAttributes;
+	private int numberOfThreads;
 	
 	public boolean isIgnoreReadOnlyFileAttribute() {
 		return ignoreReadOnlyFileAttribute;
@@ -72,6 +73,18 @@ public class UnzipParameters {
 	public void setIgnoreDateTimeAttributes(boolean ignoreDateTimeAttributes) {
 		this.ignoreDateTimeAttributes = ignoreDateTimeAttributes;
 	}
-	
+
+	public int getNumberOfThreads() {
+		return numberOfThreads;
+	}
+
+	/**
+	 * Sets the number of threads used to decrypt and extract
+	 * the files of a zip file that is not split
+	 * @param numberOfThreads
+	 */
+	public void setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = numberOfThreads;
+	}
 
 }
@@ -38,6 +38,8 @@ public class ZipParameters implements Cloneable {
 	private String defaultFolderPath;
 	private String fileNameInZip;
 	private boolean isSourceExternalStream;
+	private boolean storeCompressedFiles;
+	private int numberOfThreads;
 	
 	public ZipParameters() {
 		compressionMethod = Zip4jConstants.COMP_DEFLATE;
@@ -47,6 +49,7 @@ public class ZipParameters implements Cloneable {
 		aesKeyStrength = -1;
 		includeRootFolder = true;
 		timeZone = TimeZone.getDefault();
+		numberOfThreads = 1;
 	}
 
 	public int getCompressionMethod() {
@@ -192,4 +195,30 @@ public class ZipParameters implements Cloneable {
 		this.isSourceExternalStream = isSourceExternalStream;
 	}
 	
+	public boolean isStoreCompressedFiles() {
+		return storeCompressedFiles;
+	}
+
+	/**
+	 * If set, files that are already compressed, such as images,
+	 * are stored instead of being deflated again
+	 * @param storeCompressedFiles
+	 */
+	public void setStoreCompressedFiles(boolean storeCompressedFiles) {
+		this.storeCompressedFiles = storeCompressedFiles;
+	}
+
+	public int getNumberOfThreads() {
+		return numberOfThreads;
+	}
+
+	/**
+	 * Sets the number of threads used to compress and encrypt files when
+	 * creating a new zip file. Entries are still written in order.
+	 * @param numberOfThreads
+	 */
+	public void setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = numberOfThreads;
+	}
+	
 }
@@ -27,7 +27,8 @@ public class ProgressMonitor {
 	private int state;
 	private long totalWork;
 	private long workCompleted;
-	private int percentDone;
+	// read by other threads while the work is in progress
+	private volatile int percentDone;
 	private int currentOperation;
 	private String fileName;
 	private int result;
@@ -79,10 +80,15 @@ public class ProgressMonitor {
 	}
 
 	public void updateWorkCompleted(long workCompleted) {
-		this.workCompleted += workCompleted;
-		percentDone = (int)((this.workCompleted*100/totalWork));
-		if (percentDone > 100) {
-			percentDone = 100;
+		// may be called by several threads when zipping or unzipping in parallel
+		synchronized (this) {
+			this.workCompleted += workCompleted;
+			if (totalWork > 0) {
+				percentDone = (int)((this.workCompleted*100/totalWork));
+			}
+			if (percentDone > 100) {
+				percentDone = 100;
+			}
 		}
 		while (pause) {
 			try {
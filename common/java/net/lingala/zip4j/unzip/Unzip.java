@@ -18,6 +18,12 @@ package net.lingala.zip4j.unzip;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import net.lingala.zip4j.exception.ZipException;
 import net.lingala.zip4j.io.ZipInputStream;
@@ -78,6 +84,12 @@ public class Unzip {
 	private void initExtractAll(ArrayList fileHeaders, UnzipParameters unzipParameters, 
 			ProgressMonitor progressMonitor, String outPath) throws ZipException {
 		
+		if (unzipParameters != null && unzipParameters.getNumberOfThreads() > 1 &&
+				!zipModel.isSplitArchive()) {
+			initExtractAllParallel(fileHeaders, unzipParameters, progressMonitor, outPath);
+			return;
+		}
+		
 		for (int i = 0; i < fileHeaders.size(); i++) {
 			FileHeader fileHeader = (FileHeader)fileHeaders.get(i);
 			initExtractFile(fileHeader, outPath, unzipParameters, null, progressMonitor);
@@ -89,6 +101,69 @@ public class Unzip {
 		}
 	}
 	
+	/**
+	 * Extracts the files on a pool of threads, each with its own handle on the zip file.
+	 * Folders are created first, so files never race to create them.
+	 */
+	private void initExtractAllParallel(ArrayList fileHeaders, final UnzipParameters unzipParameters, 
+			final ProgressMonitor progressMonitor, final String outPath) throws ZipException {
+		
+		ExecutorService executor = Executors.newFixedThreadPool(unzipParameters.getNumberOfThreads(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, InternalZipConstants.THREAD_NAME);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		try {
+			ArrayList futures = new ArrayList(fileHeaders.size());
+			for (int i = 0; i < fileHeaders.size(); i++) {
+				final FileHeader fileHeader = (FileHeader)fileHeaders.get(i);
+				if (fileHeader.isDirectory()) {
+					initExtractFile(fileHeader, outPath, unzipParameters, null, progressMonitor);
+				} else {
+					checkOutputDirectoryStructure(fileHeader, 
+							outPath.endsWith(InternalZipConstants.FILE_SEPARATOR) ? outPath :
+								outPath + InternalZipConstants.FILE_SEPARATOR, null);
+				}
+			}
+			for (int i = 0; i < fileHeaders.size(); i++) {
+				final FileHeader fileHeader = (FileHeader)fileHeaders.get(i);
+				if (fileHeader.isDirectory()) {
+					continue;
+				}
+				futures.add(executor.submit(new Callable() {
+					public Object call() throws Exception {
+						if (!progressMonitor.isCancelAllTasks()) {
+							initExtractFile(fileHeader, outPath, unzipParameters, null, progressMonitor);
+						}
+						return null;
+					}
+				}));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				((Future)futures.get(i)).get();
+			}
+			if (progressMonitor.isCancelAllTasks()) {
+				progressMonitor.setResult(ProgressMonitor.RESULT_CANCELLED);
+				progressMonitor.setState(ProgressMonitor.STATE_READY);
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			progressMonitor.endProgressMonitorError(cause);
+			if (cause instanceof ZipException) {
+				throw (ZipException)cause;
+			}
+			throw new ZipException(cause);
+		} catch (InterruptedException e) {
+			progressMonitor.endProgressMonitorError(e);
+			throw new ZipException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
 	public void extractFile(final FileHeader fileHeader, final String outPath,
 			final UnzipParameters unzipParameters, final String newFileName, 
 			final ProgressMonitor progressMonitor, boolean runInThread) throws ZipException {
@@ -17,7 +17,9 @@
 package net.lingala.zip4j.util;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -253,6 +255,67 @@ public class Zip4jUtil {
 		return file.length();
 	}
 	
+	/**
+	 * Checks the first bytes of a file for the signature of a format
+	 * that is already compressed, so deflating it again gains nothing
+	 * @param file
+	 * @return true if the file is an image, archive or media file
+	 */
+	public static boolean isCompressedFile(File file) {
+		if (file == null || !file.isFile()) {
+			return false;
+		}
+		
+		byte[] head = new byte[12];
+		int len = 0;
+		InputStream inputStream = null;
+		try {
+			inputStream = new FileInputStream(file);
+			int readLen;
+			while (len < head.length &&
+					(readLen = inputStream.read(head, len, head.length - len)) != -1) {
+				len += readLen;
+			}
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (inputStream != null) {
+				try {
+					inputStream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		
+		if (len < 4) {
+			return false;
+		}
+		int b0 = head[0] & 0xff, b1 = head[1] & 0xff, b2 = head[2] & 0xff, b3 = head[3] & 0xff;
+		// jpeg
+		if (b0 == 0xff && b1 == 0xd8 && b2 == 0xff) return true;
+		// png
+		if (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G') return true;
+		// gif
+		if (b0 == 'G' && b1 == 'I' && b2 == 'F' && b3 == '8') return true;
+		// zip
+		if (b0 == 'P' && b1 == 'K' && b2 == 3 && b3 == 4) return true;
+		// gzip
+		if (b0 == 0x1f && b1 == 0x8b) return true;
+		// ogg
+		if (b0 == 'O' && b1 == 'g' && b2 == 'g' && b3 == 'S') return true;
+		// mp3 with id3 tag
+		if (b0 == 'I' && b1 == 'D' && b2 == '3') return true;
+		if (len < 12) {
+			return false;
+		}
+		// webp
+		if (b0 == 'R' && b1 == 'I' && b2 == 'F' && b3 == 'F' &&
+				head[8] == 'W' && head[9] == 'E' && head[10] == 'B' && head[11] == 'P') return true;
+		// mp4, 3gp, mov
+		if (head[4] == 'f' && head[5] == 't' && head[6] == 'y' && head[7] == 'p') return true;
+		return false;
+	}
+	
 	/**
 	 * Converts input time from Java to DOS format
 	 * @param time
@@ -16,6 +16,7 @@
 
 package net.lingala.zip4j.zip;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -24,12 +25,21 @@ import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+import net.lingala.zip4j.core.HeaderWriter;
 import net.lingala.zip4j.exception.ZipException;
 import net.lingala.zip4j.io.SplitOutputStream;
 import net.lingala.zip4j.io.ZipOutputStream;
 import net.lingala.zip4j.model.EndCentralDirRecord;
 import net.lingala.zip4j.model.FileHeader;
+import net.lingala.zip4j.model.LocalFileHeader;
 import net.lingala.zip4j.model.ZipModel;
 import net.lingala.zip4j.model.ZipParameters;
 import net.lingala.zip4j.progress.ProgressMonitor;
@@ -43,6 +53,14 @@ public class ZipEngine {
 	
 	private ZipModel zipModel;
 	
+	/** larger files are not buffered in memory when adding files in parallel */
+	private static final long MAX_PARALLEL_FILE_SIZE = 4 * 1024 * 1024;
+	/**
+	 * the most bytes of finished entries buffered in memory at once when adding files
+	 * in parallel, further limited to 1/8 of the heap, which may be small on Android
+	 */
+	private static final long MAX_PARALLEL_BYTES = 32 * 1024 * 1024;
+	
 	public ZipEngine(ZipModel zipModel) throws ZipException {
 		
 		if (zipModel == null) {
@@ -100,6 +118,12 @@ public class ZipEngine {
 			zipModel.setEndCentralDirRecord(createEndOfCentralDirectoryRecord());
 		}
 		
+		if (parameters.getNumberOfThreads() > 1 && zipModel.getSplitLength() == -1 &&
+				!Zip4jUtil.checkFileExists(zipModel.getZipFile())) {
+			initAddFilesParallel(fileList, parameters, progressMonitor);
+			return;
+		}
+		
 		ZipOutputStream outputStream  = null;
 		InputStream inputStream = null;
 		try {
@@ -135,6 +159,11 @@ public class ZipEngine {
 					if (Zip4jUtil.getFileLengh((File)fileList.get(i)) == 0) {
 						fileParameters.setCompressionMethod(Zip4jConstants.COMP_STORE);
 					}
+					
+					if (fileParameters.isStoreCompressedFiles() &&
+							Zip4jUtil.isCompressedFile((File)fileList.get(i))) {
+						fileParameters.setCompressionMethod(Zip4jConstants.COMP_STORE);
+					}
 				}
 				
 				outputStream.putNextEntry((File)fileList.get(i), fileParameters);
@@ -182,6 +211,225 @@ public class ZipEngine {
 		}
 	}
 	
+	/**
+	 * Adds files to a new zip file, compressing and encrypting each file that is small
+	 * enough into memory on a pool of threads, while this thread writes the finished
+	 * entries to the zip file in order. Larger files are written by this thread
+	 * directly, as in initAddFiles, while the pool works on the files after them.
+	 */
+	private void initAddFilesParallel(ArrayList fileList, ZipParameters parameters,
+			final ProgressMonitor progressMonitor) throws ZipException {
+		
+		SplitOutputStream splitOutputStream = null;
+		ExecutorService executor = null;
+		try {
+			checkParameters(parameters);
+			
+			splitOutputStream = new SplitOutputStream(new File(zipModel.getZipFile()), zipModel.getSplitLength());
+			ZipOutputStream outputStream = new ZipOutputStream(splitOutputStream, this.zipModel);
+			
+			long maxBytes = Math.min(MAX_PARALLEL_BYTES, Runtime.getRuntime().maxMemory() / 8);
+			long maxFileSize = Math.min(MAX_PARALLEL_FILE_SIZE, maxBytes / 2);
+			int threads = parameters.getNumberOfThreads();
+			executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, InternalZipConstants.THREAD_NAME);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			
+			LinkedList pending = new LinkedList();
+			long pendingBytes = 0;
+			int next = 0;
+			byte[] readBuff = new byte[InternalZipConstants.BUFF_SIZE];
+			for (int i = 0; i < fileList.size(); i++) {
+				// keep the pool busy with the files after this one, within the memory limit
+				while (next < fileList.size() && pending.size() < threads * 2) {
+					File file = (File)fileList.get(next);
+					long fileLength = Zip4jUtil.getFileLengh(file);
+					if (file.isDirectory() || fileLength > maxFileSize) {
+						pending.add(file);
+					} else {
+						long bufferSize = getEntryBufferSize(fileLength);
+						if (pendingBytes > 0 && pendingBytes + bufferSize > maxBytes) {
+							break;
+						}
+						pending.add(executor.submit(new EntryTask(file, fileLength,
+								getFileParameters(file, parameters, progressMonitor), progressMonitor)));
+						pendingBytes += bufferSize;
+					}
+					next++;
+				}
+				
+				Object entry = pending.removeFirst();
+				if (entry instanceof File) {
+					File file = (File)entry;
+					progressMonitor.setFileName(file.getAbsolutePath());
+					outputStream.putNextEntry(file, getFileParameters(file, parameters, progressMonitor));
+					if (!file.isDirectory()) {
+						InputStream inputStream = new FileInputStream(file);
+						try {
+							int readLen;
+							while ((readLen = inputStream.read(readBuff)) != -1) {
+								outputStream.write(readBuff, 0, readLen);
+								progressMonitor.updateWorkCompleted(readLen);
+							}
+						} finally {
+							inputStream.close();
+						}
+					}
+					outputStream.closeEntry();
+				} else {
+					EntryResult result = (EntryResult)((Future)entry).get();
+					progressMonitor.setFileName(result.file.getAbsolutePath());
+					FileHeader fileHeader = result.fileHeader;
+					fileHeader.setOffsetLocalHeader(splitOutputStream.getFilePointer());
+					splitOutputStream.write(result.data, 0, result.length);
+					zipModel.getLocalFileHeaderList().add(result.localFileHeader);
+					zipModel.getCentralDirectory().getFileHeaders().add(fileHeader);
+					if (result.isZip64Format) {
+						zipModel.setZip64Format(true);
+					}
+					pendingBytes -= getEntryBufferSize(result.sourceLength);
+				}
+				
+				if (progressMonitor.isCancelAllTasks()) {
+					progressMonitor.setResult(ProgressMonitor.RESULT_CANCELLED);
+					progressMonitor.setState(ProgressMonitor.STATE_READY);
+					return;
+				}
+			}
+			
+			new HeaderWriter().finalizeZipFile(zipModel, splitOutputStream);
+			progressMonitor.endProgressMonitorSuccess();
+		} catch (ZipException e) {
+			progressMonitor.endProgressMonitorError(e);
+			throw e;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			progressMonitor.endProgressMonitorError(cause);
+			if (cause instanceof ZipException) {
+				throw (ZipException)cause;
+			}
+			throw new ZipException(cause);
+		} catch (Exception e) {
+			progressMonitor.endProgressMonitorError(e);
+			throw new ZipException(e);
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+			if (splitOutputStream != null) {
+				try {
+					splitOutputStream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Room for an entry's headers and data, so the buffer is not doubled when
+	 * deflate makes incompressible data slightly larger
+	 */
+	private static long getEntryBufferSize(long fileLength) {
+		return fileLength + (fileLength >> 10) + 1024;
+	}
+	
+	/**
+	 * The parameters for one file, as set up in initAddFiles
+	 */
+	private ZipParameters getFileParameters(File file, ZipParameters parameters,
+			ProgressMonitor progressMonitor) throws ZipException, CloneNotSupportedException {
+		ZipParameters fileParameters = (ZipParameters) parameters.clone();
+		if (!file.isDirectory()) {
+			if (fileParameters.isEncryptFiles() && fileParameters.getEncryptionMethod() == Zip4jConstants.ENC_METHOD_STANDARD) {
+				fileParameters.setSourceFileCRC((int)CRCUtil.computeFileCRC(file.getAbsolutePath(), progressMonitor));
+			}
+			
+			if (Zip4jUtil.getFileLengh(file) == 0 ||
+					(fileParameters.isStoreCompressedFiles() && Zip4jUtil.isCompressedFile(file))) {
+				fileParameters.setCompressionMethod(Zip4jConstants.COMP_STORE);
+			}
+		}
+		return fileParameters;
+	}
+	
+	/**
+	 * Writes one complete entry, local header, encrypted data and data descriptor,
+	 * to memory using a zip model of its own
+	 */
+	private class EntryTask implements Callable {
+		
+		private File file;
+		private long fileLength;
+		private ZipParameters fileParameters;
+		private ProgressMonitor progressMonitor;
+		
+		public EntryTask(File file, long fileLength, ZipParameters fileParameters,
+				ProgressMonitor progressMonitor) {
+			this.file = file;
+			this.fileLength = fileLength;
+			this.fileParameters = fileParameters;
+			this.progressMonitor = progressMonitor;
+		}
+		
+		public Object call() throws Exception {
+			ZipModel entryModel = new ZipModel();
+			entryModel.setFileNameCharset(zipModel.getFileNameCharset());
+			ExposedByteArrayOutputStream buffer = new ExposedByteArrayOutputStream(
+					(int)getEntryBufferSize(fileLength));
+			ZipOutputStream outputStream = new ZipOutputStream(buffer, entryModel);
+			outputStream.putNextEntry(file, fileParameters);
+			InputStream inputStream = new FileInputStream(file);
+			try {
+				byte[] readBuff = new byte[InternalZipConstants.BUFF_SIZE];
+				int readLen;
+				while ((readLen = inputStream.read(readBuff)) != -1) {
+					outputStream.write(readBuff, 0, readLen);
+					progressMonitor.updateWorkCompleted(readLen);
+				}
+			} finally {
+				inputStream.close();
+			}
+			outputStream.closeEntry();
+			
+			EntryResult result = new EntryResult();
+			result.file = file;
+			result.sourceLength = fileLength;
+			result.data = buffer.getBuffer();
+			result.length = buffer.size();
+			result.fileHeader = (FileHeader)entryModel.getCentralDirectory().getFileHeaders().get(0);
+			result.localFileHeader = (LocalFileHeader)entryModel.getLocalFileHeaderList().get(0);
+			result.isZip64Format = entryModel.isZip64Format();
+			return result;
+		}
+	}
+	
+	private static class EntryResult {
+		private File file;
+		private long sourceLength;
+		private byte[] data;
+		private int length;
+		private FileHeader fileHeader;
+		private LocalFileHeader localFileHeader;
+		private boolean isZip64Format;
+	}
+	
+	/**
+	 * Gives access to the buffer, to avoid copying each entry once more
+	 */
+	private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+		public ExposedByteArrayOutputStream(int size) {
+			super(size);
+		}
+		
+		public byte[] getBuffer() {
+			return buf;
+		}
+	}
+	
 	public void addStreamToZip(InputStream inputStream, ZipParameters parameters) throws ZipException {
 		if (inputStream == null || parameters == null) {
 			throw new ZipException("one of the input parameters is null, cannot add stream to zip");
@@ -26,15 +26,16 @@ import net.i2p.util.Log;
 /**
  * Manage geoip lookup in a file with the Tor geoip format.
  *
- * The lookup is expensive, so a lookup is queued with add().
- * The actual lookup of multiple IPs is fired with lookup().
+ * As of 0.9.12, the IPv4 file is compiled once to a GeoIPIndex,
+ * which is memory-mapped, so IPv4 lookups are done right away in get().
+ *
+ * The IPv6 lookup is expensive, so a lookup is queued with add().
+ * The actual lookup of multiple IPs is fired with blockingLookup().
  * To get a country for an IP, use get() which returns a lower-case,
  * generally two-letter country code or null.
  *
- * Everything here uses longs, since Java is signed-only, the file is
- * sorted by unsigned, and we don't store the table in memory
- * (unlike in Blocklist.java, where it's in-memory so we want to be
- * space-efficient)
+ * Everything here uses longs, since Java is signed-only, and the files are
+ * sorted by unsigned.
  *
  * @author zzz
  */
@@ -55,6 +56,8 @@ class GeoIP {
     private final Set<Long> _notFound;
     private final AtomicBoolean _lock;
     private int _lookupRunCount;
+    /** null until compiled and mapped, or if disabled */
+    private volatile GeoIPIndex _index;
     
     //public GeoIP(I2PAppContext context) {
     public GeoIP(RouterContext context) {
@@ -68,18 +71,23 @@ class GeoIP {
         _notFound = new ConcurrentHashSet<Long>();
         _lock = new AtomicBoolean();
         readCountryFile();
+        if (_context.getBooleanPropertyDefaultTrue(PROP_GEOIP_ENABLED))
+            _index = GeoIPIndex.load(getIndexFile(), getGeoIPFile(), _codeCache, _log);
     }
     
     static final String PROP_GEOIP_ENABLED = "routerconsole.geoip.enable";
     static final String GEOIP_DIR_DEFAULT = "geoip";
     static final String GEOIP_FILE_DEFAULT = "geoip.txt";
     static final String COUNTRY_FILE_DEFAULT = "countries.txt";
+    /** in the router dir, compiled from GEOIP_FILE_DEFAULT, @since 0.9.12 */
+    private static final String INDEX_FILE_DEFAULT = "geoip.dat";
     public static final String PROP_IP_COUNTRY = "i2np.lastCountry";
 
     /**
      *  @since 0.9.3
      */
     public void shutdown() {
+        _index = null;
         _codeToName.clear();
         _codeCache.clear();
         _IPToCountry.clear();
@@ -107,6 +115,7 @@ class GeoIP {
     /**
      * Blocking lookup of all pending IPs.
      * Results will be added to the table and available via get() after completion.
+     * The first call compiles the IPv4 index if needed.
      */
     public void blockingLookup() {
         if (! _context.getBooleanPropertyDefaultTrue(PROP_GEOIP_ENABLED)) {
@@ -137,21 +146,12 @@ class GeoIP {
                 // clear the negative cache every few runs, to prevent it from getting too big
                 if (((++_lookupRunCount) % CLEAR) == 0)
                     _notFound.clear();
-                // IPv4
-                Long[] search = _pendingSearch.toArray(new Long[_pendingSearch.size()]);
+                // IPv4, nothing to look up once the index is ready
+                if (_index == null)
+                    _index = compileIndex();
                 _pendingSearch.clear();
-                if (search.length > 0) {
-                    Arrays.sort(search);
-                    String[] countries = readGeoIPFile(search);
-                    for (int i = 0; i < countries.length; i++) {
-                        if (countries[i] != null)
-                            _IPToCountry.put(search[i], countries[i]);
-                        else
-                            _notFound.add(search[i]);
-                    }
-                }
                 // IPv6
-                search = _pendingIPv6Search.toArray(new Long[_pendingIPv6Search.size()]);
+                Long[] search = _pendingIPv6Search.toArray(new Long[_pendingIPv6Search.size()]);
                 _pendingIPv6Search.clear();
                 if (search.length > 0) {
                     Arrays.sort(search);
@@ -219,82 +219,43 @@ class GeoIP {
         }
     }
 
-   /**
-    * Read in and parse the geoip file.
-    * The geoip file must be sorted, and may not contain overlapping entries.
-    *
-    * Acceptable formats (IPV4 only):
-    *   #comment (# must be in column 1)
-    *   integer IP,integer IP, country code
-    *
-    * Example:
-    *   121195296,121195327,IT
-    *
-    * This is identical to the Tor geoip file, which can be found in
-    * src/config/geoip in their distribution, or /usr/local/lib/share/tor/geoip
-    * in their installation.
-    * Thanks to Tor for finding a source for the data, and the format script.
-    *
-    * To create:
-    * wget http://ip-to-country.webhosting.info/downloads/ip-to-country.csv.zip
-    * unzip ip-to-country.csv.zip
-    * cut -d, -f0-3 < ip-to-country.csv|sed 's/"//g' > geoip.txt
-    *
-    * @param search a sorted array of IPs to search
-    * @return an array of country codes, same order as the search param,
-    *         or a zero-length array on failure
-    *
-    */
-    private String[] readGeoIPFile(Long[] search) {
+    /**
+     *  The text file, see GeoIPIndex.compile() for the format
+     *  @since 0.9.12
+     */
+    private File getGeoIPFile() {
         File geoFile = new File(_context.getBaseDir(), GEOIP_DIR_DEFAULT);
-        geoFile = new File(geoFile, GEOIP_FILE_DEFAULT);
+        return new File(geoFile, GEOIP_FILE_DEFAULT);
+    }
+
+    /**
+     *  @since 0.9.12
+     */
+    private File getIndexFile() {
+        return new File(_context.getRouterDir(), INDEX_FILE_DEFAULT);
+    }
+
+    /**
+     *  Compile the IPv4 geoip file and map the result.
+     *  Slow, call from the lookup thread.
+     *
+     *  @return null on failure
+     *  @since 0.9.12
+     */
+    private GeoIPIndex compileIndex() {
+        File geoFile = getGeoIPFile();
+        File indexFile = getIndexFile();
+        GeoIPIndex rv = GeoIPIndex.load(indexFile, geoFile, _codeCache, _log);
+        if (rv != null)
+            return rv;
         if (!geoFile.exists()) {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("GeoIP file not found: " + geoFile.getAbsolutePath());
-            return new String[0];
-        }
-        String[] rv = new String[search.length];
-        int idx = 0;
-        long start = _context.clock().now();
-        BufferedReader br = null;
-        try {
-            String buf = null;
-            br = new BufferedReader(new InputStreamReader(
-                    new FileInputStream(geoFile), "ISO-8859-1"));
-            while ((buf = br.readLine()) != null && idx < search.length) {
-                try {
-                    if (buf.charAt(0) == '#') {
-                        continue;
-                    }
-                    String[] s = buf.split(",");
-                    long ip1 = Long.parseLong(s[0]);
-                    long ip2 = Long.parseLong(s[1]);
-                    while (idx < search.length && search[idx].longValue() < ip1) {
-                        idx++;
-                    }
-                    while (idx < search.length && search[idx].longValue() >= ip1 && search[idx].longValue() <= ip2) {
-                        String lc = s[2].toLowerCase(Locale.US);
-                        // replace the new string with the identical one from the cache
-                        String cached = _codeCache.get(lc);
-                        if (cached == null)
-                            cached = lc;
-                        rv[idx++] = cached;
-                    }
-                } catch (IndexOutOfBoundsException ioobe) {
-                } catch (NumberFormatException nfe) {
-                }
-            }
-        } catch (IOException ioe) {
-            if (_log.shouldLog(Log.ERROR))
-                _log.error("Error reading the geoFile", ioe);
-        } finally {
-            if (br != null) try { br.close(); } catch (IOException ioe) {}
+            return null;
         }
-
-        if (_log.shouldLog(Log.INFO)) {
-            _log.info("GeoIP processing finished, time: " + (_context.clock().now() - start));
-        }
-        return rv;
+        if (!GeoIPIndex.compile(geoFile, indexFile, _log))
+            return null;
+        return GeoIPIndex.load(indexFile, geoFile, _codeCache, _log);
     }
 
     /**
@@ -343,9 +304,12 @@ class GeoIP {
 
     /** see above for ip-to-long mapping */
     private void add(long ip) {
+        boolean v4 = ip >= 0 && ip < (1L << 32);
+        if (v4 && _index != null)
+            return;
         Long li = Long.valueOf(ip);
         if (!(_IPToCountry.containsKey(li) || _notFound.contains(li))) {
-            if (ip >= 0 && ip < (1L << 32))
+            if (v4)
                 _pendingSearch.add(li);
             else
                 _pendingIPv6Search.add(li);
@@ -353,7 +317,7 @@ class GeoIP {
     }
 
     /**
-     * Get the country for an IP from the cache.
+     * Get the country for an IP from the index (IPv4) or the cache (IPv6).
      * @param ip IPv4 or IPv6
      * @return lower-case code, generally two letters, or null.
      */
@@ -364,7 +328,7 @@ class GeoIP {
     }
 
     /**
-     * Get the country for an IP from the cache.
+     * Get the country for an IP from the index (IPv4) or the cache (IPv6).
      * @param ip IPv4 or IPv6
      * @return lower-case code, generally two letters, or null.
      */
@@ -374,6 +338,9 @@ class GeoIP {
 
     /** see above for ip-to-long mapping */
     private String get(long ip) {
+        GeoIPIndex index = _index;
+        if (index != null && ip >= 0 && ip < (1L << 32))
+            return index.get(ip);
         return _IPToCountry.get(Long.valueOf(ip));
     }
 
@@ -0,0 +1,343 @@
+package net.i2p.router.transport;
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Use at your own risk.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import net.i2p.data.DataHelper;
+import net.i2p.util.FileUtil;
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ *  The IPv4 geoip.txt file compiled to sorted binary ranges,
+ *  memory-mapped and searched in place.
+ *  A lookup is a binary search, so GeoIP can answer it right away
+ *  instead of queueing the IP for a scan of the text file.
+ *
+ *<pre>
+ *  Format:
+ *    Bytes 0-9: Magic number "I2PGeoIPv4"
+ *    Bytes 10-11: version (0x0001)
+ *    Bytes 12-15: flags (0)
+ *    Bytes 16-23: Date (long)
+ *    Bytes 24-31: Source file length (long)
+ *    Bytes 32-39: Source file last modified (long)
+ *    Bytes 40-43: Number of country codes C (int)
+ *    Bytes 44-47: Number of ranges N (int)
+ *    Bytes 48-:   C * 2 byte country codes, LOWER case (ASCII)
+ *    null padding to a multiple of 4
+ *    N * 4 byte range start IPs
+ *    N * 4 byte range end IPs
+ *    N * 2 byte country code index
+ *  IPs are unsigned, sorted, no overlap
+ *</pre>
+ *
+ *  @since 0.9.12
+ */
+class GeoIPIndex {
+
+    private static final String MAGIC = "I2PGeoIPv4\0\001\0\0\0\0";
+    private static final int HEADER_LEN = 48;
+
+    private final String[] _countries;
+    private final IntBuffer _starts;
+    private final IntBuffer _ends;
+    private final ShortBuffer _codes;
+    private final int _count;
+
+    /**
+     *  @param countries lower case
+     */
+    private GeoIPIndex(String[] countries, IntBuffer starts, IntBuffer ends, ShortBuffer codes, int count) {
+        _countries = countries;
+        _starts = starts;
+        _ends = ends;
+        _codes = codes;
+        _count = count;
+    }
+
+    /**
+     *  Thread safe, the buffers are only read with absolute gets.
+     *
+     *  @param ip 0 to 2**32 - 1
+     *  @return lower-case code, generally two letters, or null
+     */
+    public String get(long ip) {
+        int key = ((int) ip) ^ Integer.MIN_VALUE;
+        int lo = 0;
+        int hi = _count - 1;
+        // find the last range starting at or before ip
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if ((_starts.get(mid) ^ Integer.MIN_VALUE) <= key)
+                lo = mid + 1;
+            else
+                hi = mid - 1;
+        }
+        if (hi < 0 || (_ends.get(hi) ^ Integer.MIN_VALUE) < key)
+            return null;
+        return _countries[_codes.get(hi) & 0xffff];
+    }
+
+    /** number of ranges */
+    public int size() {
+        return _count;
+    }
+
+    /**
+     *  Map the compiled file if it was compiled from the current source.
+     *
+     *  @param source the text file, may not exist
+     *  @param codeCache lower-case code to itself, to prevent String proliferation
+     *  @return null if missing, corrupt, or out of date
+     */
+    public static GeoIPIndex load(File file, File source, Map<String, String> codeCache, Log log) {
+        if (!file.exists())
+            return null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel chan = raf.getChannel();
+            ByteBuffer buf = chan.map(FileChannel.MapMode.READ_ONLY, 0, chan.size());
+            byte[] magic = new byte[MAGIC.length()];
+            if (buf.remaining() < HEADER_LEN)
+                throw new IOException("Short file");
+            buf.get(magic);
+            if (!DataHelper.eq(magic, DataHelper.getASCII(MAGIC)))
+                throw new IOException("Not a IPv4 geoip index file");
+            buf.getLong();
+            long srcLen = buf.getLong();
+            long srcMod = buf.getLong();
+            if (source.exists() && (source.length() != srcLen || source.lastModified() != srcMod)) {
+                if (log.shouldLog(Log.INFO))
+                    log.info("GeoIP index " + file + " is older than " + source);
+                return null;
+            }
+            int ncc = buf.getInt();
+            int count = buf.getInt();
+            int ccLen = (ncc * 2 + 3) & ~3;
+            if (ncc < 0 || count < 0 ||
+                HEADER_LEN + ccLen + (long) count * 10 != buf.capacity())
+                throw new IOException("Bad length");
+            String[] countries = new String[ncc];
+            byte[] cc = new byte[2];
+            for (int i = 0; i < ncc; i++) {
+                buf.get(cc);
+                String lc = new String(cc, "ISO-8859-1");
+                String cached = codeCache.get(lc);
+                countries[i] = cached != null ? cached : lc;
+            }
+            int off = HEADER_LEN + ccLen;
+            IntBuffer starts = slice(buf, off, count * 4).asIntBuffer();
+            off += count * 4;
+            IntBuffer ends = slice(buf, off, count * 4).asIntBuffer();
+            off += count * 4;
+            ShortBuffer codes = slice(buf, off, count * 2).asShortBuffer();
+            for (int i = 0; i < count; i++) {
+                if ((codes.get(i) & 0xffff) >= ncc)
+                    throw new IOException("Bad country index");
+            }
+            if (log.shouldLog(Log.INFO))
+                log.info("Mapped " + count + " GeoIP ranges from " + file);
+            return new GeoIPIndex(countries, starts, ends, codes, count);
+        } catch (IOException ioe) {
+            if (log.shouldLog(Log.WARN))
+                log.warn("Error reading the GeoIP index " + file, ioe);
+            return null;
+        } finally {
+            // the mapping stays valid after the close
+            if (raf != null) try { raf.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int off, int len) {
+        ByteBuffer rv = buf.duplicate();
+        rv.position(off);
+        rv.limit(off + len);
+        return rv.slice();
+    }
+
+   /**
+    * Read in and parse the geoip text file, and write out the binary index.
+    * The geoip file must be sorted, and may not contain overlapping entries.
+    * Lines that are out of order or overlap the previous line are skipped.
+    *
+    * Acceptable formats (IPV4 only):
+    *   #comment (# must be in column 1)
+    *   integer IP,integer IP, country code
+    *
+    * Example:
+    *   121195296,121195327,IT
+    *
+    * This is identical to the Tor geoip file, which can be found in
+    * src/config/geoip in their distribution, or /usr/local/lib/share/tor/geoip
+    * in their installation.
+    * Thanks to Tor for finding a source for the data, and the format script.
+    *
+    * To create:
+    * wget http://ip-to-country.webhosting.info/downloads/ip-to-country.csv.zip
+    * unzip ip-to-country.csv.zip
+    * cut -d, -f0-3 < ip-to-country.csv|sed 's/"//g' > geoip.txt
+    *
+    * @return success
+    */
+    public static boolean compile(File source, File file, Log log) {
+        long start = System.currentTimeMillis();
+        int size = 65536;
+        int[] starts = new int[size];
+        int[] ends = new int[size];
+        short[] codes = new short[size];
+        int count = 0;
+        int skipped = 0;
+        long last = -1;
+        Map<String, Integer> ccIndex = new HashMap<String, Integer>(256);
+        List<String> countries = new ArrayList<String>(256);
+        BufferedReader br = null;
+        try {
+            String line;
+            br = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(source), "ISO-8859-1"));
+            while ((line = br.readLine()) != null) {
+                if (line.length() <= 0 || line.charAt(0) == '#')
+                    continue;
+                int c1 = line.indexOf(',');
+                int c2 = line.indexOf(',', c1 + 1);
+                if (c1 <= 0 || c2 <= c1 + 1 || line.length() - c2 - 1 != 2) {
+                    skipped++;
+                    continue;
+                }
+                long ip1, ip2;
+                try {
+                    ip1 = Long.parseLong(line.substring(0, c1));
+                    ip2 = Long.parseLong(line.substring(c1 + 1, c2));
+                } catch (NumberFormatException nfe) {
+                    skipped++;
+                    continue;
+                }
+                if (ip1 <= last || ip2 < ip1 || ip2 >= (1L << 32)) {
+                    skipped++;
+                    continue;
+                }
+                last = ip2;
+                String lc = line.substring(c2 + 1).toLowerCase(Locale.US);
+                Integer idx = ccIndex.get(lc);
+                if (idx == null) {
+                    idx = Integer.valueOf(countries.size());
+                    ccIndex.put(lc, idx);
+                    countries.add(lc);
+                }
+                if (count >= size) {
+                    size *= 2;
+                    int[] s = new int[size];
+                    System.arraycopy(starts, 0, s, 0, count);
+                    starts = s;
+                    s = new int[size];
+                    System.arraycopy(ends, 0, s, 0, count);
+                    ends = s;
+                    short[] cs = new short[size];
+                    System.arraycopy(codes, 0, cs, 0, count);
+                    codes = cs;
+                }
+                starts[count] = (int) ip1;
+                ends[count] = (int) ip2;
+                codes[count] = (short) idx.intValue();
+                count++;
+            }
+        } catch (IOException ioe) {
+            if (log.shouldLog(Log.ERROR))
+                log.error("Error reading the geoFile", ioe);
+            return false;
+        } finally {
+            if (br != null) try { br.close(); } catch (IOException ioe) {}
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new SecureFileOutputStream(tmp)));
+            out.write(DataHelper.getASCII(MAGIC));
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeInt(countries.size());
+            out.writeInt(count);
+            for (String cc : countries) {
+                out.write(DataHelper.getASCII(cc));
+            }
+            for (int i = countries.size() * 2; (i & 3) != 0; i++) {
+                out.write(0);
+            }
+            for (int i = 0; i < count; i++) {
+                out.writeInt(starts[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                out.writeInt(ends[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                out.writeShort(codes[i]);
+            }
+            out.close();
+            out = null;
+            if (!FileUtil.rename(tmp, file))
+                throw new IOException("Error renaming " + tmp + " to " + file);
+        } catch (IOException ioe) {
+            if (log.shouldLog(Log.ERROR))
+                log.error("Error writing the GeoIP index", ioe);
+            return false;
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+            tmp.delete();
+        }
+        if (log.shouldLog(Log.INFO))
+            log.info("Compiled " + count + " GeoIP ranges, skipped " + skipped + " lines, in " +
+                     (System.currentTimeMillis() - start) + "ms");
+        return true;
+    }
+
+    /**
+     *  Compile a geoip.txt file to a binary index
+     *
+     *  GeoIPIndex geoip.txt geoip.dat
+     *
+     *  The router compiles its own at the first lookup, this is for testing.
+     */
+    public static void main(String args[]) {
+        if (args.length != 2) {
+            System.err.println("Usage: GeoIPIndex geoip.txt geoip.dat");
+            System.exit(1);
+        }
+        Log log = new Log(GeoIPIndex.class);
+        File infile = new File(args[0]);
+        File outfile = new File(args[1]);
+        if (!compile(infile, outfile, log)) {
+            System.err.println("Failed");
+            System.exit(1);
+        }
+        GeoIPIndex index = load(outfile, infile, Collections.<String, String> emptyMap(), log);
+        if (index == null) {
+            System.err.println("Failed");
+            System.exit(1);
+        }
+        System.err.println("Wrote " + index.size() + " ranges to " + outfile);
+    }
+}
@@ -0,0 +1,170 @@
+package net.i2p.router.transport.udp;
+
+import java.util.Random;
+
+/**
+ *  An insertion-ordered set of message IDs to be acked, kept in a long[]
+ *  so that adding, removing, and copying IDs does not box them.
+ *
+ *  There are rarely more than a few dozen, so a linear search of a
+ *  compact array is faster than hashing. If a maximum size is given,
+ *  adding to a full set drops the oldest ID.
+ *
+ *  Thread safe. Methods that take another ACKIds lock this first and then
+ *  the other one, so the other one should be private to the calling thread.
+ *
+ *  @since 0.9.12
+ */
+class ACKIds {
+    private long[] _ids;
+    private int _size;
+    private final int _maxSize;
+
+    /**
+     *  @param maxSize 0 for unlimited
+     */
+    public ACKIds(int initialCapacity, int maxSize) {
+        _ids = new long[Math.max(4, initialCapacity)];
+        _maxSize = maxSize;
+    }
+
+    /**
+     *  @return false if it was already there
+     */
+    public synchronized boolean add(long id) {
+        if (indexOf(id) >= 0)
+            return false;
+        if (_maxSize > 0 && _size >= _maxSize)
+            removeAt(0);
+        if (_size >= _ids.length) {
+            long[] ids = new long[_ids.length * 2];
+            System.arraycopy(_ids, 0, ids, 0, _size);
+            _ids = ids;
+        }
+        _ids[_size++] = id;
+        return true;
+    }
+
+    /**
+     *  @return false if it wasn't there
+     */
+    public synchronized boolean remove(long id) {
+        int i = indexOf(id);
+        if (i < 0)
+            return false;
+        removeAt(i);
+        return true;
+    }
+
+    public synchronized boolean contains(long id) {
+        return indexOf(id) >= 0;
+    }
+
+    /**
+     *  @param i 0 is the oldest
+     */
+    public synchronized long get(int i) {
+        if (i >= _size)
+            throw new IndexOutOfBoundsException(i + " >= " + _size);
+        return _ids[i];
+    }
+
+    /**
+     *  @throws IndexOutOfBoundsException if empty
+     */
+    public synchronized long removeFirst() {
+        long rv = get(0);
+        removeAt(0);
+        return rv;
+    }
+
+    public synchronized int size() {
+        return _size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return _size == 0;
+    }
+
+    public synchronized void clear() {
+        _size = 0;
+    }
+
+    /**
+     *  Add our IDs, oldest first, to the other set.
+     *
+     *  @return how many were added, not counting those already there
+     */
+    public synchronized int addTo(ACKIds to) {
+        int rv = 0;
+        for (int i = 0; i < _size; i++) {
+            if (to.add(_ids[i]))
+                rv++;
+        }
+        return rv;
+    }
+
+    /**
+     *  Move up to max of our oldest IDs to the other set.
+     *
+     *  @return how many were moved, including any that were already there
+     */
+    public synchronized int moveTo(ACKIds to, int max) {
+        int count = Math.min(max, _size);
+        for (int i = 0; i < count; i++) {
+            to.add(_ids[i]);
+        }
+        _size -= count;
+        System.arraycopy(_ids, count, _ids, 0, _size);
+        return count;
+    }
+
+    /**
+     *  Drop all but the oldest size IDs.
+     */
+    public synchronized void truncate(int size) {
+        if (size < _size)
+            _size = Math.max(0, size);
+    }
+
+    /**
+     *  Put the IDs from index from to the end in random order.
+     */
+    public synchronized void shuffle(Random rand, int from) {
+        for (int i = _size - 1; i > from; i--) {
+            int j = from + rand.nextInt(i + 1 - from);
+            long tmp = _ids[i];
+            _ids[i] = _ids[j];
+            _ids[j] = tmp;
+        }
+    }
+
+    /** caller must synch on this */
+    private int indexOf(long id) {
+        for (int i = 0; i < _size; i++) {
+            if (_ids[i] == id)
+                return i;
+        }
+        return -1;
+    }
+
+    /** caller must synch on this */
+    private void removeAt(int i) {
+        _size--;
+        if (i < _size)
+            System.arraycopy(_ids, i + 1, _ids, i, _size - i);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder buf = new StringBuilder(8 + _size * 11);
+        buf.append('[');
+        for (int i = 0; i < _size; i++) {
+            if (i > 0)
+                buf.append(", ");
+            buf.append(_ids[i]);
+        }
+        buf.append(']');
+        return buf.toString();
+    }
+}
@@ -1,5 +1,6 @@
 package net.i2p.router.transport.udp;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -87,6 +88,9 @@ class ACKSender implements Runnable {
 
         // we use a Set to strip out dups that come in on the Queue
         Set<PeerState> notYet = new HashSet<PeerState>();
+        // reused for each ack packet, they are copied into the packet
+        ACKIds fullACKs = new ACKIds(64, 0);
+        List<ACKBitfield> partialACKs = new ArrayList<ACKBitfield>();
         while (_alive) {
             PeerState peer = null;
             long now = 0;
@@ -153,16 +157,19 @@ class ACKSender implements Runnable {
                 long lastSend = peer.getLastACKSend();
                 // set above before the break
                 //long wanted = peer.getWantedACKSendSince();
-                List<ACKBitfield> ackBitfields = peer.retrieveACKBitfields(false);
+                fullACKs.clear();
+                partialACKs.clear();
+                peer.retrieveACKs(fullACKs, partialACKs, false);
                 
                 if (wanted < 0) {
                     if (_log.shouldLog(Log.WARN))
-                        _log.warn("wtf, why are we acking something they dont want?  remaining=" + remaining + ", peer=" + peer + ", bitfields=" + ackBitfields);
+                        _log.warn("wtf, why are we acking something they dont want?  remaining=" + remaining + ", peer=" + peer + ", full acks=" + fullACKs + ", bitfields=" + partialACKs);
                     continue;
                 }
                 
-                if (!ackBitfields.isEmpty()) {
-                    _context.statManager().addRateData("udp.sendACKCount", ackBitfields.size());
+                int ackCount = fullACKs.size() + partialACKs.size();
+                if (ackCount > 0) {
+                    _context.statManager().addRateData("udp.sendACKCount", ackCount);
                     if (remaining > 0)
                         _context.statManager().addRateData("udp.sendACKRemaining", remaining);
                     // set above before the break
@@ -171,13 +178,13 @@ class ACKSender implements Runnable {
                         lastSend = now - 1;
                     _context.statManager().addRateData("udp.ackFrequency", now-lastSend, now-wanted);
                     //_context.statManager().getStatLog().addData(peer.getRemoteHostId().toString(), "udp.peer.sendACKCount", ackBitfields.size());
-                    UDPPacket ack = _builder.buildACK(peer, ackBitfields);
+                    UDPPacket ack = _builder.buildACK(peer, fullACKs, partialACKs);
                     ack.markType(1);
                     ack.setFragmentCount(-1);
                     ack.setMessageType(PacketBuilder.TYPE_ACK);
                     
                     if (_log.shouldLog(Log.INFO))
-                        _log.info("Sending ACK for " + ackBitfields);
+                        _log.info("Sending ACK for " + fullACKs + ' ' + partialACKs);
                     // locking issues, we ignore the result, and acks are small,
                     // so don't even bother allocating
                     //peer.allocateSendingBytes(ack.getPacket().getLength(), true);
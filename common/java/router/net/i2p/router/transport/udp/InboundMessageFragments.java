@@ -1,6 +1,6 @@
 package net.i2p.router.transport.udp;
 
-import java.util.Map;
+import java.util.List;
 
 import net.i2p.data.DataFormatException;
 import net.i2p.data.Hash;
@@ -100,18 +100,17 @@ class InboundMessageFragments /*implements UDPTransport.PartialACKSource */{
         if (fragments <= 0) return fragments;
         Hash fromPeer = from.getRemotePeer();
             
-        Map<Long, InboundMessageState> messages = from.getInboundMessages();
+        List<InboundMessageState> messages = from.getInboundMessages();
 
         for (int i = 0; i < fragments; i++) {
             long mid = data.readMessageId(i);
-            Long messageId = Long.valueOf(mid);
 
             if (_recentlyCompletedMessages.isKnown(mid)) {
                 // Only update stats for the first fragment,
                 // otherwise it wildly overstates things
                 if (data.readMessageFragmentNum(i) == 0) {
                     _context.statManager().addRateData("udp.ignoreRecentDuplicate", 1);
-                    from.messageFullyReceived(messageId, -1);
+                    from.messageFullyReceived(mid, -1);
                     _ackSender.ackPeer(from);
                     if (_log.shouldLog(Log.INFO))
                         _log.info("Message received is a dup: " + mid + " dups: " 
@@ -130,7 +129,7 @@ class InboundMessageFragments /*implements UDPTransport.PartialACKSource */{
          
             synchronized (messages) {
                 boolean isNew = false;
-                state = messages.get(messageId);
+                state = from.getInboundMessage(mid);
                 if (state == null) {
                     try {
                         state = new InboundMessageState(_context, mid, fromPeer, data, i);
@@ -148,21 +147,21 @@ class InboundMessageFragments /*implements UDPTransport.PartialACKSource */{
                 if (state.isComplete()) {
                     messageComplete = true;
                     if (!isNew)
-                        messages.remove(messageId);
+                        messages.remove(state);
                 } else if (state.isExpired()) {
                     messageExpired = true;
                     if (!isNew)
-                        messages.remove(messageId);
+                        messages.remove(state);
                 } else {
                     partialACK = true;
                     if (isNew)
-                        messages.put(messageId, state);
+                        messages.add(state);
                 }
             }
 
             if (messageComplete) {
                 _recentlyCompletedMessages.add(mid);
-                from.messageFullyReceived(messageId, state.getCompleteSize());
+                from.messageFullyReceived(mid, state.getCompleteSize());
                 _ackSender.ackPeer(from);
 
                 if (_log.shouldLog(Log.DEBUG))
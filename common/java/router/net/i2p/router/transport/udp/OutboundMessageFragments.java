@@ -52,6 +52,10 @@ class OutboundMessageFragments {
 
     private volatile boolean _alive;
     private final PacketBuilder _builder;
+    /** reused by preparePackets(), PacketPusher thread only */
+    private final ACKIds _ackIds = new ACKIds(128, 0);
+    private final ACKIds _ackIdsRemaining = new ACKIds(128, 0);
+    private final List<ACKBitfield> _partialACKs = new ArrayList<ACKBitfield>();
 
     /** if we can handle more messages explicitly, set this to true */
     // private boolean _allowExcess; // LINT not used??
@@ -350,6 +354,8 @@ class OutboundMessageFragments {
     }
 
     /**
+     *  NOT thread-safe. Called by the PacketPusher thread only.
+     *
      *  @return null if state or peer is null
      */
     private UDPPacket[] preparePackets(OutboundMessageState state, PeerState peer) {
@@ -359,15 +365,19 @@ class OutboundMessageFragments {
                 return null;
 
             // ok, simplest possible thing is to always tack on the bitfields if
-            List<Long> msgIds = peer.getCurrentFullACKs();
-            int newFullAckCount = msgIds.size();
-            msgIds.addAll(peer.getCurrentResendACKs());
-            List<ACKBitfield> partialACKBitfields = new ArrayList<ACKBitfield>();
+            ACKIds msgIds = _ackIds;
+            msgIds.clear();
+            int newFullAckCount = peer.getCurrentFullACKs(msgIds);
+            peer.getCurrentResendACKs(msgIds);
+            List<ACKBitfield> partialACKBitfields = _partialACKs;
+            partialACKBitfields.clear();
             peer.fetchPartialACKs(partialACKBitfields);
             int piggybackedPartialACK = partialACKBitfields.size();
             // getCurrentFullACKs() already makes a copy, do we need to copy again?
             // YES because buildPacket() now removes them (maybe)
-            List<Long> remaining = new ArrayList<Long>(msgIds);
+            ACKIds remaining = _ackIdsRemaining;
+            remaining.clear();
+            msgIds.addTo(remaining);
             int sparseCount = 0;
             UDPPacket rv[] = new UDPPacket[fragments]; //sparse
             for (int i = 0; i < fragments; i++) {
@@ -403,7 +413,7 @@ class OutboundMessageFragments {
             int piggybackedAck = 0;
             if (msgIds.size() != remaining.size()) {
                 for (int i = 0; i < msgIds.size(); i++) {
-                    Long id = msgIds.get(i);
+                    long id = msgIds.get(i);
                     if (!remaining.contains(id)) {
                         peer.removeACKMessage(id);
                         piggybackedAck++;
@@ -210,14 +210,14 @@ class PacketBuilder {
      * it's (47 + 4*explict acks + padding) added to the
      * fragment length.
      *
-     * @param ackIdsRemaining list of messageIds (Long) that should be acked by this packet.  
-     *                        The list itself is passed by reference, and if a messageId is
-     *                        transmitted it will be removed from the list.
+     * @param ackIdsRemaining messageIds that should be acked by this packet.  
+     *                        The set itself is passed by reference, and if a messageId is
+     *                        transmitted it will be removed from the set.
      *                        Not all message IDs will necessarily be sent, there may not be room.
      *                        non-null.
      *
      * @param newAckCount the number of ackIdsRemaining entries that are new. These must be the first
-     *                    ones in the list
+     *                    ones in the set
      *
      * @param partialACKsRemaining list of messageIds (ACKBitfield) that should be acked by this packet.  
      *                        The list itself is passed by reference, and if a messageId is
@@ -229,7 +229,7 @@ class PacketBuilder {
      * @return null on error
      */
     public UDPPacket buildPacket(OutboundMessageState state, int fragment, PeerState peer,
-                                 List<Long> ackIdsRemaining, int newAckCount,
+                                 ACKIds ackIdsRemaining, int newAckCount,
                                  List<ACKBitfield> partialACKsRemaining) {
         UDPPacket packet = buildPacketHeader((byte)(UDPPacket.PAYLOAD_TYPE_DATA << 4));
         DatagramPacket pkt = packet.getPacket();
@@ -317,15 +317,12 @@ class PacketBuilder {
                 msg.append(explicitToSend).append(" full acks included:");
             DataHelper.toLong(data, off, 1, explicitToSend);
             off++;
-            Iterator<Long> iter = ackIdsRemaining.iterator();
-            for (int i = 0; i < explicitToSend && iter.hasNext(); i++) {
-                Long ackId = iter.next();
-                iter.remove();
-                // NPE here, how did a null get in the List?
-                DataHelper.toLong(data, off, 4, ackId.longValue());
+            for (int i = 0; i < explicitToSend && !ackIdsRemaining.isEmpty(); i++) {
+                long ackId = ackIdsRemaining.removeFirst();
+                DataHelper.toLong(data, off, 4, ackId);
                 off += 4;        
                 if (msg != null) // logging it
-                    msg.append(" full ack: ").append(ackId.longValue());
+                    msg.append(" full ack: ").append(ackId);
             }
             //acksIncluded = true;
         }
@@ -457,6 +454,19 @@ class PacketBuilder {
      * @param ackBitfields list of ACKBitfield instances to either fully or partially ACK
      */
     public UDPPacket buildACK(PeerState peer, List<ACKBitfield> ackBitfields) {
+        return buildACK(peer, null, ackBitfields);
+    }
+
+    /**
+     *  Build the ack packet, with full acks given as message ids,
+     *  as returned by PeerState.retrieveACKs().
+     *  See above.
+     *
+     * @param fullACKs message ids to fully ACK, may be null
+     * @param ackBitfields list of ACKBitfield instances to either fully or partially ACK
+     * @since 0.9.12
+     */
+    public UDPPacket buildACK(PeerState peer, ACKIds fullACKs, List<ACKBitfield> ackBitfields) {
         UDPPacket packet = buildPacketHeader((byte)(UDPPacket.PAYLOAD_TYPE_DATA << 4));
         DatagramPacket pkt = packet.getPacket();
         byte data[] = pkt.getData();
@@ -468,7 +478,8 @@ class PacketBuilder {
             msg.append("building ACK packet to ").append(peer.getRemotePeer().toBase64().substring(0,6));
         }
 
-        int fullACKCount = 0;
+        int fullIdCount = fullACKs != null ? fullACKs.size() : 0;
+        int fullACKCount = fullIdCount;
         int partialACKCount = 0;
         for (int i = 0; i < ackBitfields.size(); i++) {
             if (ackBitfields.get(i).receivedComplete())
@@ -493,6 +504,13 @@ class PacketBuilder {
         if (fullACKCount > 0) {
             DataHelper.toLong(data, off, 1, fullACKCount);
             off++;
+            for (int i = 0; i < fullIdCount; i++) {
+                long id = fullACKs.get(i);
+                DataHelper.toLong(data, off, 4, id);
+                off += 4;
+                if (msg != null) // logging it
+                    msg.append(" full ack: ").append(id);
+            }
             for (int i = 0; i < ackBitfields.size(); i++) {
                 ACKBitfield bf = ackBitfields.get(i);
                 if (bf.receivedComplete()) {
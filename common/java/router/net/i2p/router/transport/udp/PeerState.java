@@ -3,14 +3,8 @@ package net.i2p.router.transport.udp;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.data.Hash;
@@ -21,7 +15,6 @@ import net.i2p.router.util.CoDelPriorityBlockingQueue;
 import net.i2p.router.util.PriBlockingQueue;
 import net.i2p.util.CachedIteratorArrayList;
 import net.i2p.util.Log;
-import net.i2p.util.ConcurrentHashSet;
 
 /**
  * Contain all of the state about a UDP connection to a peer.
@@ -94,19 +87,19 @@ class PeerState {
     // private long _lastFailedSendPeriod;
 
     /**
-     *  Set of messageIds (Long) that we have received but not yet sent
+     *  Set of messageIds that we have received but not yet sent
      *  Since even with the smallest MTU we can fit 131 acks in a message,
      *  we are unlikely to get backed up on acks, so we don't keep
      *  them in any particular order.
      */
-    private final Set<Long> _currentACKs;
+    private final ACKIds _currentACKs;
 
     /** 
-     * list of the most recent messageIds (Long) that we have received and sent
+     * list of the most recent messageIds that we have received and sent
      * an ACK for.  We keep a few of these around to retransmit with _currentACKs,
      * hopefully saving some spurious retransmissions
      */
-    private final Queue<Long> _currentACKsResend;
+    private final ACKIds _currentACKsResend;
 
     /** when did we last send ACKs to the peer? */
     private volatile long _lastACKSend;
@@ -199,8 +192,11 @@ class PeerState {
     private long _packetsReceivedDuplicate;
     private long _packetsReceived;
     
-    /** list of InboundMessageState for active message */
-    private final Map<Long, InboundMessageState> _inboundMessages;
+    /**
+     *  list of InboundMessageState for active message.
+     *  There are only a few at a time, so a list is searched by message ID.
+     */
+    private final List<InboundMessageState> _inboundMessages;
 
     /**
      *  Mostly messages that have been transmitted and are awaiting acknowledgement,
@@ -313,8 +309,8 @@ class PeerState {
         _currentReceiveSecond = now - (now % 1000);
         _lastSendTime = now;
         _lastReceiveTime = now;
-        _currentACKs = new ConcurrentHashSet<Long>();
-        _currentACKsResend = new LinkedBlockingQueue<Long>();
+        _currentACKs = new ACKIds(MAX_RESEND_ACKS, 0);
+        _currentACKsResend = new ACKIds(MAX_RESEND_ACKS, MAX_RESEND_ACKS);
         _sendWindowBytes = DEFAULT_SEND_WINDOW_BYTES;
         _sendWindowBytesRemaining = DEFAULT_SEND_WINDOW_BYTES;
         _slowStartThreshold = MAX_SEND_WINDOW_BYTES/2;
@@ -336,7 +332,7 @@ class PeerState {
         _rto = INIT_RTO;
         _rtt = INIT_RTT;
         _rttDeviation = _rtt;
-        _inboundMessages = new HashMap<Long, InboundMessageState>(8);
+        _inboundMessages = new ArrayList<InboundMessageState>(8);
         _outboundMessages = new CachedIteratorArrayList<OutboundMessageState>(32);
         //_outboundQueue = new CoDelPriorityBlockingQueue(ctx, "UDP-PeerState", 32);
         _outboundQueue = new PriBlockingQueue<OutboundMessageState>(ctx, "UDP-PeerState", 32);
@@ -741,8 +737,8 @@ class PeerState {
     public void setIntroducerTime() { _lastIntroducerTime = _context.clock().now(); }
     
     /** we received the message specified completely */
-    public void messageFullyReceived(Long messageId, int bytes) { messageFullyReceived(messageId, bytes, false); }
-    public void messageFullyReceived(Long messageId, int bytes, boolean isForACK) {
+    public void messageFullyReceived(long messageId, int bytes) { messageFullyReceived(messageId, bytes, false); }
+    public void messageFullyReceived(long messageId, int bytes, boolean isForACK) {
         if (bytes > 0) {
             _receiveBytes += bytes;
             //if (isForACK)
@@ -780,10 +776,25 @@ class PeerState {
     }
     
     /** 
-     * Fetch the internal id (Long) to InboundMessageState for incomplete inbound messages.
-     * Access to this map must be synchronized explicitly!
+     * Fetch the InboundMessageStates for incomplete inbound messages.
+     * Access to this list must be synchronized explicitly!
+     * @since 0.9.12 was a Map
      */
-    public Map<Long, InboundMessageState> getInboundMessages() { return _inboundMessages; }
+    public List<InboundMessageState> getInboundMessages() { return _inboundMessages; }
+
+    /** 
+     * Caller must synch on getInboundMessages()
+     * @return null if not found
+     * @since 0.9.12
+     */
+    public InboundMessageState getInboundMessage(long messageId) {
+        for (int i = 0; i < _inboundMessages.size(); i++) {
+            InboundMessageState state = _inboundMessages.get(i);
+            if (state.getMessageId() == messageId)
+                return state;
+        }
+        return null;
+    }
 
     /**
      * Expire partially received inbound messages, returning how many are still pending.
@@ -795,7 +806,7 @@ class PeerState {
         int rv = 0;
         
         synchronized (_inboundMessages) {
-            for (Iterator<InboundMessageState> iter = _inboundMessages.values().iterator(); iter.hasNext(); ) {
+            for (Iterator<InboundMessageState> iter = _inboundMessages.iterator(); iter.hasNext(); ) {
                 InboundMessageState state = iter.next();
                 if (state.isExpired() || _dead) {
                     iter.remove();
@@ -839,61 +850,55 @@ class PeerState {
     }
     
     /**
-     * Grab a list of message ids (Long) that we want to send to the remote
-     * peer, regardless of the packet size, but don't remove it from our 
+     * Add the message ids that we want to send to the remote
+     * peer, regardless of the packet size, but don't remove them from our 
      * "want to send" list.  If the message id is transmitted to the peer,
-     * removeACKMessage(Long) should be called.
+     * removeACKMessage(long) should be called.
      *
-     * The returned list contains acks not yet sent only.
+     * The ids added are acks not yet sent only.
      * The caller should NOT transmit all of them all the time,
      * even if there is room,
      * or the packets will have way too much overhead.
      *
-     * @return a new list, do as you like with it
+     * @param rv out parameter, private to the calling thread
+     * @return how many were added
+     * @since 0.9.12 was a List<Long> return value
      */
-    public List<Long> getCurrentFullACKs() {
-            // no such element exception seen here
-            List<Long> rv = new ArrayList<Long>(_currentACKs);
-            //if (_log.shouldLog(Log.DEBUG))
-            //    _log.debug("Returning " + _currentACKs.size() + " current acks");
-            return rv;
+    public int getCurrentFullACKs(ACKIds rv) {
+            return _currentACKs.addTo(rv);
     }
 
     /**
-     * Grab a list of message ids (Long) that we want to send to the remote
-     * peer, regardless of the packet size, but don't remove it from our 
+     * Add the message ids that we want to send to the remote
+     * peer, regardless of the packet size, but don't remove them from our 
      * "want to send" list.
      *
-     * The returned list contains
+     * The ids added are
      * a random assortment of acks already sent.
      * The caller should NOT transmit all of them all the time,
      * even if there is room,
      * or the packets will have way too much overhead.
      *
-     * @return a new list, do as you like with it
-     * @since 0.8.12 was included in getCurrentFullACKs()
+     * @param rv out parameter, private to the calling thread
+     * @since 0.8.12 was included in getCurrentFullACKs(), 0.9.12 was a List<Long> return value
      */
-    public List<Long> getCurrentResendACKs() {
-            List<Long> randomResends = new ArrayList<Long>(_currentACKsResend);
-            Collections.shuffle(randomResends, _context.random());
-            //if (_log.shouldLog(Log.DEBUG))
-            //    _log.debug("Returning " + randomResends.size() + " resend acks");
-            return randomResends;
+    public void getCurrentResendACKs(ACKIds rv) {
+            int before = rv.size();
+            _currentACKsResend.addTo(rv);
+            rv.shuffle(_context.random(), before);
     }
 
     /**
      * The ack was sent.
      * Side effect - sets _lastACKSend
      */
-    public void removeACKMessage(Long messageId) {
+    public void removeACKMessage(long messageId) {
             boolean removed = _currentACKs.remove(messageId);
             if (removed) {
                 // only add if reoved from current, as this may be called for
                 // acks already in _currentACKsResend.
-                _currentACKsResend.offer(messageId);
-                // trim down the resends
-                while (_currentACKsResend.size() > MAX_RESEND_ACKS)
-                    _currentACKsResend.poll();
+                // The oldest is dropped to trim down the resends
+                _currentACKsResend.add(messageId);
                 if (_log.shouldLog(Log.INFO))
                     _log.info("Sent ack " + messageId + " now " + _currentACKs.size() + " current and " +
                               _currentACKsResend.size() + " resend acks");
@@ -929,14 +934,36 @@ class PeerState {
     public List<ACKBitfield> retrieveACKBitfields() { return retrieveACKBitfields(true); }
 
     /**
-     * See above. Only called by ACKSender with alwaysIncludeRetransmissions = false.
-     * So this is only for ACK-only packets, so all the size limiting is useless.
-     * FIXME.
-     * Side effect - sets _lastACKSend if rv is non-empty
+     * See above.
      *
      * @return non-null, possibly empty
      */
     public List<ACKBitfield> retrieveACKBitfields(boolean alwaysIncludeRetransmissions) {
+        ACKIds fullACKs = new ACKIds(MAX_RESEND_ACKS, 0);
+        List<ACKBitfield> partialACKs = new ArrayList<ACKBitfield>();
+        retrieveACKs(fullACKs, partialACKs, alwaysIncludeRetransmissions);
+        List<ACKBitfield> rv = new ArrayList<ACKBitfield>(fullACKs.size() + partialACKs.size());
+        for (int i = 0; i < fullACKs.size(); i++) {
+            rv.add(new FullACKBitfield(fullACKs.get(i)));
+        }
+        rv.addAll(partialACKs);
+        return rv;
+    }
+
+    /**
+     * Like retrieveACKBitfields(), but the full acks are returned as message ids,
+     * so nothing is allocated for them.
+     * Only called by ACKSender with alwaysIncludeRetransmissions = false.
+     * So this is only for ACK-only packets, so all the size limiting is useless.
+     * FIXME.
+     * Side effect - sets _lastACKSend if anything is returned
+     *
+     * @param fullACKs empty out parameter, private to the calling thread
+     * @param partialACKs empty out parameter, private to the calling thread
+     * @since 0.9.12
+     */
+    public void retrieveACKs(ACKIds fullACKs, List<ACKBitfield> partialACKs,
+                             boolean alwaysIncludeRetransmissions) {
         int bytesRemaining = countMaxACKData();
 
             // Limit the overhead of all the resent acks when using small MTU
@@ -948,83 +975,59 @@ class PeerState {
                 maxResendAcks = MAX_RESEND_ACKS_SMALL;
             else
                 maxResendAcks = MAX_RESEND_ACKS_LARGE;
-            List<ACKBitfield> rv = new ArrayList<ACKBitfield>(maxResendAcks);
 
-            // save to add to currentACKsResend later so we don't include twice
-            List<Long> currentACKsRemoved = new ArrayList<Long>(_currentACKs.size());
             // As explained above, we include the acks in any order
             // since we are unlikely to get backed up -
-            // just take them using the Set iterator.
-            Iterator<Long> iter = _currentACKs.iterator();
-            while (bytesRemaining >= 4 && iter.hasNext()) {
-                Long val = iter.next();
-                iter.remove();
-                long id = val.longValue();
-                rv.add(new FullACKBitfield(id));
-                currentACKsRemoved.add(val);
-                bytesRemaining -= 4;
-            }
+            // just take the oldest.
+            int newCount = _currentACKs.moveTo(fullACKs, bytesRemaining / 4);
+            bytesRemaining -= 4 * newCount;
             if (_currentACKs.isEmpty())
                 _wantACKSendSince = -1;
-            if (alwaysIncludeRetransmissions || !rv.isEmpty()) {
-                List<Long> randomResends = new ArrayList<Long>(_currentACKsResend);
+            if (alwaysIncludeRetransmissions || newCount > 0) {
                 // now repeat by putting in some old ACKs
                 // randomly selected from the Resend queue.
                 // Maybe we should only resend each one a certain number of times...
-                int oldIndex = Math.min(resendSize, maxResendAcks);
-                if (oldIndex > 0 && oldIndex < resendSize)
-                    Collections.shuffle(randomResends, _context.random());
-                iter = randomResends.iterator();
-                while (bytesRemaining >= 4 && oldIndex-- > 0 && iter.hasNext()) {
-                    Long cur = iter.next();
-                    long c = cur.longValue();
-                    FullACKBitfield bf = new FullACKBitfield(c);
-                    // try to avoid duplicates ??
-                    // ACKsResend is not checked for dups at add time
-                    //if (rv.contains(bf)) {
-                    //    iter.remove();
-                    //} else {
-                        rv.add(bf);
-                        bytesRemaining -= 4;
-                    //}
+                int oldIndex = Math.min(Math.min(resendSize, maxResendAcks), bytesRemaining / 4);
+                if (oldIndex > 0) {
+                    // ACKsResend is not checked for dups at add time, fullACKs is
+                    _currentACKsResend.addTo(fullACKs);
+                    if (fullACKs.size() > newCount + oldIndex) {
+                        fullACKs.shuffle(_context.random(), newCount);
+                        fullACKs.truncate(newCount + oldIndex);
+                    }
+                    bytesRemaining -= 4 * (fullACKs.size() - newCount);
                 }
-                for (Long val : currentACKsRemoved) {
-                    _currentACKsResend.offer(val);
+                // save to add to currentACKsResend now so we don't include twice
+                for (int i = 0; i < newCount; i++) {
+                    _currentACKsResend.add(fullACKs.get(i));
                 }
             }
-            // trim down the resends
-            while (_currentACKsResend.size() > MAX_RESEND_ACKS)
-                _currentACKsResend.poll();
 
         int partialIncluded = 0;
         if (bytesRemaining > 4) {
             // ok, there's room to *try* to fit in some partial ACKs, so
             // we should try to find some packets to partially ACK 
             // (preferably the ones which have the most received fragments)
-            List<ACKBitfield> partial = new ArrayList<ACKBitfield>();
-            fetchPartialACKs(partial);
+            fetchPartialACKs(partialACKs);
             // we may not be able to use them all, but lets try...
-            for (int i = 0; (bytesRemaining > 4) && (i < partial.size()); i++) {
-                ACKBitfield bitfield = partial.get(i);
+            for (Iterator<ACKBitfield> iter = partialACKs.iterator(); iter.hasNext(); ) {
+                ACKBitfield bitfield = iter.next();
                 int bytes = (bitfield.fragmentCount() / 7) + 1;
                 if (bytesRemaining > bytes + 4) { // msgId + bitfields
-                    rv.add(bitfield);
                     bytesRemaining -= bytes + 4;
                     partialIncluded++;
                 } else {
                     // continue on to another partial, in case there's a 
                     // smaller one that will fit
+                    iter.remove();
                 }
             }
         }
 
-        if (!rv.isEmpty())
+        if (!fullACKs.isEmpty() || partialIncluded > 0)
             _lastACKSend = _context.clock().now();
-        //if (rv == null)
-        //    rv = Collections.EMPTY_LIST;
         if (partialIncluded > 0)
-            _context.statManager().addRateData("udp.sendACKPartial", partialIncluded, rv.size() - partialIncluded);
-        return rv;
+            _context.statManager().addRateData("udp.sendACKPartial", partialIncluded, fullACKs.size());
     }
     
     /**
@@ -1038,8 +1041,7 @@ class PeerState {
             int numMessages = _inboundMessages.size();
             if (numMessages <= 0) 
                 return;
-            // todo: make this a list instead of a map, so we can iterate faster w/out the memory overhead?
-            for (Iterator<InboundMessageState> iter = _inboundMessages.values().iterator(); iter.hasNext(); ) {
+            for (Iterator<InboundMessageState> iter = _inboundMessages.iterator(); iter.hasNext(); ) {
                 InboundMessageState state = iter.next();
                 if (state.isExpired()) {
                     //if (_context instanceof RouterContext)
@@ -1056,7 +1058,6 @@ class PeerState {
             }
         }
         if (states != null) {
-            // _inboundMessages is a Map (unordered), so why bother going backwards?
             for (int i = curState-1; i >= 0; i--) {
                 if (states[i] != null)
                     rv.add(states[i].createACKBitfield());
@@ -1948,33 +1949,27 @@ class PeerState {
         _sendWindowBytes = oldPeer._sendWindowBytes;
         oldPeer._dead = true;
         
-        List<Long> tmp = new ArrayList<Long>();
-        // AIOOBE from concurrent access
-        //tmp.addAll(oldPeer._currentACKs);
-        for (Long l : oldPeer._currentACKs) {
-            tmp.add(l);
-        }
-        oldPeer._currentACKs.clear();
+        ACKIds tmp = new ACKIds(MAX_RESEND_ACKS, 0);
+        oldPeer._currentACKs.moveTo(tmp, Integer.MAX_VALUE);
 
         if (!_dead) {
-            _currentACKs.addAll(tmp);
+            tmp.addTo(_currentACKs);
 	}
         tmp.clear();
         
-        tmp.addAll(oldPeer._currentACKsResend);
-        oldPeer._currentACKsResend.clear();
+        oldPeer._currentACKsResend.moveTo(tmp, Integer.MAX_VALUE);
 
         if (!_dead) {
-            _currentACKsResend.addAll(tmp);
+            tmp.addTo(_currentACKsResend);
 	}
         
-        Map<Long, InboundMessageState> msgs = new HashMap<Long, InboundMessageState>();
+        List<InboundMessageState> msgs = new ArrayList<InboundMessageState>();
         synchronized (oldPeer._inboundMessages) {
-            msgs.putAll(oldPeer._inboundMessages);
+            msgs.addAll(oldPeer._inboundMessages);
             oldPeer._inboundMessages.clear();
         }
         if (!_dead) {
-            synchronized (_inboundMessages) { _inboundMessages.putAll(msgs); }
+            synchronized (_inboundMessages) { _inboundMessages.addAll(msgs); }
 	}
         msgs.clear();
         
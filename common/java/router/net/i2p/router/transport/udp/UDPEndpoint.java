@@ -1,11 +1,14 @@
 package net.i2p.router.transport.udp;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.router.RouterContext;
@@ -14,6 +17,9 @@ import net.i2p.util.Log;
 /**
  * Coordinate the low-level datagram socket, creating and managing the UDPSender and
  * UDPReceiver.
+ *
+ * Since 0.9.12 the socket is a non-blocking DatagramChannel,
+ * so the receiver can read everything waiting each time it wakes up.
  */
 class UDPEndpoint {
     private final RouterContext _context;
@@ -22,7 +28,7 @@ class UDPEndpoint {
     private final UDPTransport _transport;
     private UDPSender _sender;
     private UDPReceiver _receiver;
-    private DatagramSocket _socket;
+    private DatagramChannel _channel;
     private final InetAddress _bindAddress;
     private final boolean _isIPv4, _isIPv6;
     private static final AtomicInteger _counter = new AtomicInteger();
@@ -47,16 +53,16 @@ class UDPEndpoint {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Starting up the UDP endpoint");
         shutdown();
-        _socket = getSocket();
-        if (_socket == null) {
+        _channel = getChannel();
+        if (_channel == null) {
             _log.log(Log.CRIT, "UDP Unable to open a port");
             throw new SocketException("SSU Unable to bind to a port on " + _bindAddress);
         }
         int count = _counter.incrementAndGet();
-        _sender = new UDPSender(_context, _socket, "UDPSender " + count);
+        _sender = new UDPSender(_context, _channel, "UDPSender " + count);
         _sender.startup();
         if (_transport != null) {
-            _receiver = new UDPReceiver(_context, _transport, _socket, "UDPReceiver " + count);
+            _receiver = new UDPReceiver(_context, _transport, _channel, "UDPReceiver " + count);
             _receiver.startup();
         }
     }
@@ -66,8 +72,10 @@ class UDPEndpoint {
             _sender.shutdown();
             _receiver.shutdown();
         }
-        if (_socket != null) {
-            _socket.close();
+        if (_channel != null) {
+            try {
+                _channel.close();
+            } catch (IOException ioe) {}
         }
     }
     
@@ -100,13 +108,13 @@ class UDPEndpoint {
     private static final int MAX_PORT_RETRIES = 20;
 
     /**
-     *  Open socket using requested port in _listenPort and  bind host in _bindAddress.
+     *  Open channel using requested port in _listenPort and  bind host in _bindAddress.
      *  If _listenPort <= 0, or requested port is busy, repeatedly try a new random port.
-     *  @return null on failure
+     *  @return non-blocking, or null on failure
      *  Sets _listenPort to actual port or -1 on failure
      */
-    private DatagramSocket getSocket() {
-        DatagramSocket socket = null;
+    private DatagramChannel getChannel() {
+        DatagramChannel channel = null;
         int port = _listenPort;
         if (port > 0 && port < 1024)
             _log.logAlways(Log.WARN, "Specified UDP port is " + port + ", ports lower than 1024 not recommended");
@@ -118,18 +126,26 @@ class UDPEndpoint {
                  port = selectRandomPort(_context);
              }
              try {
+                 channel = DatagramChannel.open();
                  if (_bindAddress == null)
-                     socket = new DatagramSocket(port);
+                     channel.socket().bind(new InetSocketAddress(port));
                  else
-                     socket = new DatagramSocket(port, _bindAddress);
+                     channel.socket().bind(new InetSocketAddress(_bindAddress, port));
+                 channel.configureBlocking(false);
                  break;
-             } catch (SocketException se) {
+             } catch (IOException ioe) {
                  if (_log.shouldLog(Log.WARN))
-                     _log.warn("Binding to port " + port + " failed", se);
+                     _log.warn("Binding to port " + port + " failed", ioe);
+                 if (channel != null) {
+                     try {
+                         channel.close();
+                     } catch (IOException e) {}
+                     channel = null;
+                 }
              }
              port = -1;
         }
-        if (socket == null) {
+        if (channel == null) {
             _log.log(Log.CRIT, "SSU Unable to bind to a port on " + _bindAddress);
         } else if (port != _listenPort) {
             if (_listenPort > 0)
@@ -138,7 +154,7 @@ class UDPEndpoint {
                 _log.logAlways(Log.INFO, "UDP selected random port " + port);
         }
         _listenPort = port;
-        return socket;
+        return channel;
     }
 
     /**
@@ -175,12 +191,20 @@ class UDPEndpoint {
      */
     public UDPPacket receive() { 
         UDPPacket packet = UDPPacket.acquire(_context, true);
+        Selector selector = null;
         try {
-            _socket.receive(packet.getPacket());
+            selector = Selector.open();
+            _channel.register(selector, SelectionKey.OP_READ);
+            while (!packet.receive(_channel)) {
+                selector.select();
+                selector.selectedKeys().clear();
+            }
             return packet; 
         } catch (IOException ioe) {
             packet.release();
             return null;
+        } finally {
+            if (selector != null) try { selector.close(); } catch (IOException ioe) {}
         }
     }
     
@@ -1,7 +1,11 @@
 package net.i2p.router.transport.udp;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.Arrays;
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -142,6 +146,41 @@ class UDPPacket implements CDQEntry {
     }
   ****/
 
+    /**
+     *  Read the next datagram waiting on a non-blocking channel into this packet,
+     *  setting the length and the remote address as DatagramSocket.receive() would.
+     *  A datagram too big for the buffer is truncated.
+     *
+     *  @return false if there was nothing to read
+     *  @since 0.9.12
+     */
+    boolean receive(DatagramChannel channel) throws IOException {
+        verifyNotReleased();
+        ByteBuffer buf = ByteBuffer.wrap(_data);
+        SocketAddress from = channel.receive(buf);
+        if (from == null)
+            return false;
+        _packet.setSocketAddress(from);
+        _packet.setLength(buf.position());
+        _remoteHost = null;
+        return true;
+    }
+
+    /**
+     *  Send this packet on a non-blocking channel.
+     *  There is never a partial send, the datagram goes out whole or not at all.
+     *
+     *  @return false if there was no room in the socket buffer and nothing was sent
+     *  @since 0.9.12
+     */
+    boolean send(DatagramChannel channel) throws IOException {
+        verifyNotReleased();
+        ByteBuffer buf = ByteBuffer.wrap(_data, _packet.getOffset(), _packet.getLength());
+        int len = buf.remaining();
+        // hole punches are empty, so 0 bytes sent is only a full buffer for the others
+        return channel.send(buf, _packet.getSocketAddress()) > 0 || len == 0;
+    }
+
     /** */
     public DatagramPacket getPacket() { verifyNotReleased(); return _packet; }
     public short getPriority() { verifyNotReleased(); return _priority; }
@@ -1,14 +1,18 @@
 package net.i2p.router.transport.udp;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import net.i2p.router.RouterContext;
 import net.i2p.router.transport.FIFOBandwidthLimiter;
 import net.i2p.util.I2PThread;
 import net.i2p.util.Log;
-import net.i2p.util.SystemVersion;
 
 /**
  * Lowest level component to pull raw UDP datagrams off the wire as fast
@@ -20,45 +24,70 @@ import net.i2p.util.SystemVersion;
  * There is a UDPReceiver for each UDPEndpoint.
  * It contains a thread but no queue. Received packets are queued
  * in the common PacketHandler queue.
+ *
+ * Since 0.9.12 the thread waits on a selector and then reads everything
+ * waiting on the non-blocking channel, up to MAX_BATCH packets, and takes
+ * the bandwidth for all of them at once before queueing them.
+ * More threads may be configured, each with its own selector, so one
+ * can read while another waits for bandwidth or queue space.
  */
 class UDPReceiver {
     private final RouterContext _context;
     private final Log _log;
-    private final DatagramSocket _socket;
+    private final DatagramChannel _channel;
     private String _name;
     private volatile boolean _keepRunning;
-    private final Runner _runner;
+    private final List<Runner> _runners;
     private final UDPTransport _transport;
     private final PacketHandler _handler;
 
-    private static final boolean _isAndroid = SystemVersion.isAndroid();
+    /** @since 0.9.12 */
+    public static final String PROP_RECEIVER_THREADS = "i2np.udp.receiverThreads";
+    private static final int DEFAULT_RECEIVER_THREADS = 1;
+    private static final int MAX_RECEIVER_THREADS = 8;
+    /** most packets read per wakeup */
+    private static final int MAX_BATCH = 32;
+    /** so shutdown is noticed even without a wakeup() */
+    private static final long SELECT_TIMEOUT = 1000;
 
-    public UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramSocket socket, String name) {
+    public UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramChannel channel, String name) {
         _context = ctx;
         _log = ctx.logManager().getLog(UDPReceiver.class);
         _name = name;
-        _socket = socket;
+        _channel = channel;
         _transport = transport;
         _handler = transport.getPacketHandler();
         if (_handler == null)
             throw new IllegalStateException();
-        _runner = new Runner();
+        int threads = Math.max(1, Math.min(MAX_RECEIVER_THREADS,
+                                           ctx.getProperty(PROP_RECEIVER_THREADS, DEFAULT_RECEIVER_THREADS)));
+        _runners = new ArrayList<Runner>(threads);
+        for (int i = 0; i < threads; i++) {
+            _runners.add(new Runner());
+        }
         //_context.statManager().createRateStat("udp.receivePacketSize", "How large packets received are", "udp", UDPTransport.RATES);
         //_context.statManager().createRateStat("udp.receiveRemaining", "How many packets are left sitting on the receiver's queue", "udp", UDPTransport.RATES);
         //_context.statManager().createRateStat("udp.droppedInbound", "How many packet are queued up but not yet received when we drop", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.receiveHolePunch", "How often we receive a NAT hole punch", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.ignorePacketFromDroplist", "Packet lifetime for those dropped on the drop list", "udp", UDPTransport.RATES);
+        _context.statManager().createRateStat("udp.receiveBatchSize", "How many packets are read each time the receiver wakes up", "udp", UDPTransport.RATES);
     }
     
     public synchronized void startup() {
         //adjustDropProbability();
         _keepRunning = true;
-        I2PThread t = new I2PThread(_runner, _name, true);
-        t.start();
+        for (int i = 0; i < _runners.size(); i++) {
+            String name = _runners.size() > 1 ? _name + '.' + (i + 1) : _name;
+            I2PThread t = new I2PThread(_runners.get(i), name, true);
+            t.start();
+        }
     }
     
     public synchronized void shutdown() {
         _keepRunning = false;
+        for (Runner runner : _runners) {
+            runner.wakeup();
+        }
     }
     
 /*********
@@ -211,21 +240,40 @@ class UDPReceiver {
     
     private class Runner implements Runnable {
         //private volatile boolean _socketChanged;
+        private final Selector _selector;
+
+        public Runner() {
+            Selector selector = null;
+            try {
+                selector = Selector.open();
+            } catch (IOException ioe) {
+                _log.error("Unable to open a selector", ioe);
+            }
+            _selector = selector;
+        }
+
+        public void wakeup() {
+            if (_selector != null)
+                _selector.wakeup();
+        }
 
         public void run() {
             //_socketChanged = false;
+            try {
+                if (_selector == null)
+                    return;
+                _channel.register(_selector, SelectionKey.OP_READ);
+            } catch (IOException ioe) {
+                _log.error("Unable to register the channel", ioe);
+                return;
+            }
+            List<UDPPacket> batch = new ArrayList<UDPPacket>(MAX_BATCH);
             while (_keepRunning) {
                 //if (_socketChanged) {
                 //    Thread.currentThread().setName(_name + "." + _id);
                 //    _socketChanged = false;
                 //}
-                UDPPacket packet = UDPPacket.acquire(_context, true);
 
-                // Android ICS bug
-                // http://code.google.com/p/android/issues/detail?id=24748
-                if (_isAndroid)
-                    packet.getPacket().setLength(UDPPacket.MAX_PACKET_SIZE);
-                
                 // block before we read...
                 //if (_log.shouldLog(Log.DEBUG))
                 //    _log.debug("Before throttling receive");
@@ -233,34 +281,71 @@ class UDPReceiver {
                     try { Thread.sleep(10); } catch (InterruptedException ie) {}
                 
                 try {
-                    //if (_log.shouldLog(Log.INFO))
-                    //    _log.info("Before blocking socket.receive on " + System.identityHashCode(packet));
-                    //synchronized (Runner.this) {
-                        _socket.receive(packet.getPacket());
-                    //}
+                    _selector.select(SELECT_TIMEOUT);
+                    _selector.selectedKeys().clear();
+                } catch (IOException ioe) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Error waiting to receive", ioe);
+                    continue;
+                } catch (ClosedSelectorException cse) {
+                    break;
+                }
+                int size = readBatch(batch);
+                if (batch.isEmpty())
+                    continue;
+                _context.statManager().addRateData("udp.receiveBatchSize", batch.size());
+
+                // and block after we know how much we read but before
+                // we release the packets to the inbound queue
+                FIFOBandwidthLimiter.Request req =
+                      _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
+                while (req.getPendingRequested() > 0)
+                    req.waitForNextAllocation();
+                        
+                for (UDPPacket packet : batch) {
+                    receive(packet);
+                }
+                batch.clear();
+            }
+            try {
+                _selector.close();
+            } catch (IOException ioe) {}
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Stop receiving...");
+        }
+
+        /**
+         *  Read everything waiting on the channel, up to MAX_BATCH packets.
+         *  Packets that are dropped here are released.
+         *
+         *  @param batch empty, the packets to be queued are added to it
+         *  @return total size of the packets added
+         */
+        private int readBatch(List<UDPPacket> batch) {
+            int total = 0;
+            while (batch.size() < MAX_BATCH && _keepRunning) {
+                UDPPacket packet = UDPPacket.acquire(_context, true);
+                try {
+                    if (!packet.receive(_channel)) {
+                        packet.release();
+                        break;
+                    }
                     int size = packet.getPacket().getLength();
                     if (_log.shouldLog(Log.INFO))
-                        _log.info("After blocking socket.receive: packet is " + size + " bytes on " + System.identityHashCode(packet));
+                        _log.info("After socket.receive: packet is " + size + " bytes on " + System.identityHashCode(packet));
                     packet.resetBegin();
             
-                    // and block after we know how much we read but before
-                    // we release the packet to the inbound queue
                     if (size >= UDPPacket.MAX_PACKET_SIZE) {
-                        // DatagramSocket javadocs: If the message is longer than the packet's length, the message is truncated.
+                        // DatagramChannel javadocs: If there are fewer bytes remaining in the buffer than are required
+                        // to hold the datagram then the remainder of the datagram is silently discarded.
                         throw new IOException("packet too large! truncated and dropped from: " + packet.getRemoteHost());
                     }
                     if (_context.commSystem().isDummy()) {
                         // testing
                         packet.release();
                     } else if (size > 0) {
-                        //FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
-                        //_context.bandwidthLimiter().requestInbound(req, size, "UDP receiver");
-                        FIFOBandwidthLimiter.Request req =
-                              _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
-                        while (req.getPendingRequested() > 0)
-                            req.waitForNextAllocation();
-                        
-                        receive(packet);
+                        batch.add(packet);
+                        total += size;
                         //_context.statManager().addRateData("udp.receivePacketSize", size);
                     } else {
                         _context.statManager().addRateData("udp.receiveHolePunch", 1);
@@ -278,10 +363,12 @@ class UDPReceiver {
                             _log.warn("Error receiving", ioe);
                     //}
                     packet.release();
+                    // the channel may be closed, go back and wait
+                    if (!_channel.isOpen())
+                        break;
                 }
             }
-            if (_log.shouldLog(Log.DEBUG))
-                _log.debug("Stop receiving...");
+            return total;
         }
         
      /******
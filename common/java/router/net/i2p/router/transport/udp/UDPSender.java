@@ -1,8 +1,11 @@
 package net.i2p.router.transport.udp;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 
 import net.i2p.router.RouterContext;
@@ -18,11 +21,16 @@ import net.i2p.util.SystemVersion;
  * There is a UDPSender for each UDPEndpoint.
  * It contains a thread and a queue. Packet to be sent are queued
  * by the PacketPusher.
+ *
+ * Since 0.9.12 the thread takes everything waiting in the queue,
+ * up to MAX_BATCH packets, gets the bandwidth for all of them at once,
+ * and sends them on the non-blocking channel, waiting on a selector
+ * only if the socket buffer is full.
  */
 class UDPSender {
     private final RouterContext _context;
     private final Log _log;
-    private final DatagramSocket _socket;
+    private final DatagramChannel _channel;
     private String _name;
     private final BlockingQueue<UDPPacket> _outboundQueue;
     private volatile boolean _keepRunning;
@@ -33,15 +41,19 @@ class UDPSender {
 
     private static final int MIN_QUEUE_SIZE = 64;
     private static final int MAX_QUEUE_SIZE = 384;
+    /** most packets sent per bandwidth request */
+    private static final int MAX_BATCH = 16;
+    /** how long to wait for room in a full socket buffer */
+    private static final long MAX_SEND_WAIT = 1000;
     
-    public UDPSender(RouterContext ctx, DatagramSocket socket, String name) {
+    public UDPSender(RouterContext ctx, DatagramChannel channel, String name) {
         _context = ctx;
         _dummy = false; // ctx.commSystem().isDummy();
         _log = ctx.logManager().getLog(UDPSender.class);
         long maxMemory = SystemVersion.getMaxMemory();
         int qsize = (int) Math.max(MIN_QUEUE_SIZE, Math.min(MAX_QUEUE_SIZE, maxMemory / (1024*1024)));
         _outboundQueue = new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Sender", qsize);
-        _socket = socket;
+        _channel = channel;
         _runner = new Runner();
         _name = name;
         _context.statManager().createRateStat("udp.pushTime", "How long a UDP packet takes to get pushed out", "udp", UDPTransport.RATES);
@@ -201,82 +213,139 @@ class UDPSender {
     
     private class Runner implements Runnable {
         //private volatile boolean _socketChanged;
+        /** only if the socket buffer fills up */
+        private Selector _selector;
 
         public void run() {
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("Running the UDP sender");
             //_socketChanged = false;
+            List<UDPPacket> batch = new ArrayList<UDPPacket>(MAX_BATCH);
             while (_keepRunning) {
                 //if (_socketChanged) {
                 //    Thread.currentThread().setName(_name);
                 //    _socketChanged = false;
                 //}
                 
-                UDPPacket packet = getNextPacket();
-                if (packet != null) {
-                    if (_log.shouldLog(Log.DEBUG))
-                        _log.debug("Packet to send known: " + packet);
-                    long acquireTime = _context.clock().now();
-                    int size = packet.getPacket().getLength();
-                    // ?? int size2 = packet.getPacket().getLength();
-                    if (size > 0) {
-                        //_context.bandwidthLimiter().requestOutbound(req, size, "UDP sender");
-                        FIFOBandwidthLimiter.Request req =
-                              _context.bandwidthLimiter().requestOutbound(size, 0, "UDP sender");
-                        while (req.getPendingRequested() > 0)
-                            req.waitForNextAllocation();
-                    }
-                    
-                    long afterBW = _context.clock().now();
-                    
-                    //if (_log.shouldLog(Log.DEBUG)) {
-                        //if (len > 128)
-                        //    len = 128;
-                        //_log.debug("Sending packet: (size="+size + "/"+size2 +")\nraw: " + Base64.encode(packet.getPacket().getData(), 0, size));
-                    //}
-                    
-                    if (packet.getMessageType() >= PacketBuilder.TYPE_FIRST)
-                        _context.statManager().addRateData("udp.sendPacketSize." + packet.getMessageType(), size, packet.getFragmentCount());
-                    
-                    //packet.getPacket().setLength(size);
-                    try {
-                        //long before = _context.clock().now();
-                        //synchronized (Runner.this) {
-                            // synchronization lets us update safely
-                            //_log.debug("Break out datagram for " + packet);
-                            DatagramPacket dp = packet.getPacket();
-                            //if (_log.shouldLog(Log.DEBUG))
-                            //    _log.debug("Just before socket.send of " + packet);
-                            _socket.send(dp);
-                            //if (_log.shouldLog(Log.DEBUG))
-                            //    _log.debug("Just after socket.send of " + packet);
-                        //}
-                        //long sendTime = _context.clock().now() - before;
-                        // less than 50 microsec
-                        //_context.statManager().addRateData("udp.socketSendTime", sendTime, packet.getLifetime());
-                        if (_log.shouldLog(Log.DEBUG))
-                            _log.debug("Sent the packet " + packet);
-                        long throttleTime = afterBW - acquireTime;
-                        if (throttleTime > 10)
-                            _context.statManager().addRateData("udp.sendBWThrottleTime", throttleTime, acquireTime - packet.getBegin());
-                        if (packet.getMarkedType() == 1)
-                            _context.statManager().addRateData("udp.sendACKTime", throttleTime, packet.getLifetime());
-                        _context.statManager().addRateData("udp.pushTime", packet.getLifetime(), packet.getLifetime());
-                        _context.statManager().addRateData("udp.sendPacketSize", size, packet.getLifetime());
-                    } catch (IOException ioe) {
-                        if (_log.shouldLog(Log.WARN))
-                            _log.warn("Error sending", ioe);
-                        _context.statManager().addRateData("udp.sendException", 1, packet.getLifetime());
-                    }
+                getNextPackets(batch);
+                if (batch.isEmpty())
+                    continue;
+                long acquireTime = _context.clock().now();
+                int total = 0;
+                for (UDPPacket packet : batch) {
+                    total += packet.getPacket().getLength();
+                }
+                if (total > 0) {
+                    //_context.bandwidthLimiter().requestOutbound(req, size, "UDP sender");
+                    FIFOBandwidthLimiter.Request req =
+                          _context.bandwidthLimiter().requestOutbound(total, 0, "UDP sender");
+                    while (req.getPendingRequested() > 0)
+                        req.waitForNextAllocation();
+                }
                     
+                long afterBW = _context.clock().now();
+                for (UDPPacket packet : batch) {
+                    send(packet, acquireTime, afterBW);
                     // back to the cache
                     packet.release();
                 }
+                batch.clear();
+            }
+            if (_selector != null) {
+                try {
+                    _selector.close();
+                } catch (IOException ioe) {}
             }
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("Stop sending...");
         }
+
+        private void send(UDPPacket packet, long acquireTime, long afterBW) {
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Packet to send known: " + packet);
+            int size = packet.getPacket().getLength();
+                    
+            //if (_log.shouldLog(Log.DEBUG)) {
+                //if (len > 128)
+                //    len = 128;
+                //_log.debug("Sending packet: (size="+size + "/"+size2 +")\nraw: " + Base64.encode(packet.getPacket().getData(), 0, size));
+            //}
+                    
+            if (packet.getMessageType() >= PacketBuilder.TYPE_FIRST)
+                _context.statManager().addRateData("udp.sendPacketSize." + packet.getMessageType(), size, packet.getFragmentCount());
+                    
+            try {
+                //long before = _context.clock().now();
+                sendOnChannel(packet);
+                //long sendTime = _context.clock().now() - before;
+                // less than 50 microsec
+                //_context.statManager().addRateData("udp.socketSendTime", sendTime, packet.getLifetime());
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("Sent the packet " + packet);
+                long throttleTime = afterBW - acquireTime;
+                if (throttleTime > 10)
+                    _context.statManager().addRateData("udp.sendBWThrottleTime", throttleTime, acquireTime - packet.getBegin());
+                if (packet.getMarkedType() == 1)
+                    _context.statManager().addRateData("udp.sendACKTime", throttleTime, packet.getLifetime());
+                _context.statManager().addRateData("udp.pushTime", packet.getLifetime(), packet.getLifetime());
+                _context.statManager().addRateData("udp.sendPacketSize", size, packet.getLifetime());
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Error sending", ioe);
+                _context.statManager().addRateData("udp.sendException", 1, packet.getLifetime());
+            }
+        }
+
+        /**
+         *  Send, waiting for room in the socket buffer if it is full.
+         *  @throws IOException on error or if there is no room after MAX_SEND_WAIT
+         */
+        private void sendOnChannel(UDPPacket packet) throws IOException {
+            long end = 0;
+            while (!packet.send(_channel)) {
+                long now = _context.clock().now();
+                if (end == 0)
+                    end = now + MAX_SEND_WAIT;
+                else if (now >= end)
+                    throw new IOException("Socket buffer full, dropping " + packet);
+                if (_selector == null) {
+                    _selector = Selector.open();
+                    _channel.register(_selector, SelectionKey.OP_WRITE);
+                }
+                _selector.select(end - now);
+                _selector.selectedKeys().clear();
+            }
+        }
         
+        /**
+         *  Blocks for the next packet in queue, then adds whatever else is
+         *  waiting, up to MAX_BATCH. Will discard any packet older than MAX_HEAD_LIFETIME.
+         *
+         *  @param batch empty, packets are added to it, unchanged if we are shutting down
+         */
+        private void getNextPackets(List<UDPPacket> batch) {
+            UDPPacket packet = getNextPacket();
+            if (packet == null)
+                return;
+            batch.add(packet);
+            if (_outboundQueue.isEmpty())
+                return;
+            List<UDPPacket> more = new ArrayList<UDPPacket>(MAX_BATCH - 1);
+            _outboundQueue.drainTo(more, MAX_BATCH - 1);
+            for (UDPPacket p : more) {
+                if (p.getMessageType() == TYPE_POISON) {
+                    // send what we have, the loop will then stop
+                    break;
+                }
+                if (p.getLifetime() > MAX_HEAD_LIFETIME) {
+                    _context.statManager().addRateData("udp.sendQueueTrimmed", 1, 0);
+                    p.release();
+                    continue;
+                }
+                batch.add(p);
+            }
+        }
+
         /** @return next packet in queue. Will discard any packet older than MAX_HEAD_LIFETIME */
         private UDPPacket getNextPacket() {
             UDPPacket packet = null;
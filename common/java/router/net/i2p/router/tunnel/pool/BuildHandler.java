@@ -2,7 +2,6 @@ package net.i2p.router.tunnel.pool;
 
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.data.Base64;
@@ -45,6 +44,10 @@ import net.i2p.util.Log;
  * Replies are handled immediately on reception; requests are queued.
  * As of 0.8.11 the request queue is handled in a separate thread,
  * it used to be called from the BuildExecutor thread loop.
+ * As of 0.9.12 the queue is a CoDel queue, drained by one thread per core
+ * on a fast router (see TunnelPoolManager); the stats are
+ * tunnel.decryptRequestTime, codel.BuildHandler.delay (queue wait),
+ * and codel.BuildHandler.drop and tunnel.dropLoad* (drops).
  *
  * Note that 10 minute tunnel expiration is hardcoded in here.
  */
@@ -67,6 +70,13 @@ class BuildHandler implements Runnable {
     private static final int MIN_QUEUE = 18;
     private static final int MAX_QUEUE = 192;
 
+    /**
+     *  CoDel's default 15 ms target is less than one ElGamal decrypt.
+     *  Stay well under the REQUEST_TIMEOUT/4 at which we give up on a request anyway.
+     */
+    private static final long CODEL_TARGET = 500;
+    private static final long CODEL_INTERVAL = 2500;
+
     private static final int NEXT_HOP_LOOKUP_TIMEOUT = 15*1000;
     private static final int PRIORITY = OutNetMessage.PRIORITY_BUILD_REPLY;
 
@@ -92,8 +102,8 @@ class BuildHandler implements Runnable {
         _exec = exec;
         // Queue size = 12 * share BW / 48K
         int sz = Math.min(MAX_QUEUE, Math.max(MIN_QUEUE, TunnelDispatcher.getShareBandwidth(ctx) * MIN_QUEUE / 48));
-        //_inboundBuildMessages = new CoDelBlockingQueue(ctx, "BuildHandler", sz);
-        _inboundBuildMessages = new LinkedBlockingQueue<BuildMessageState>(sz);
+        _inboundBuildMessages = new CoDelBlockingQueue<BuildMessageState>(ctx, "BuildHandler", sz,
+                                                                           CODEL_TARGET, CODEL_INTERVAL);
     
         _context.statManager().createRateStat("tunnel.reject.10", "How often we reject a tunnel probabalistically", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         _context.statManager().createRateStat("tunnel.reject.20", "How often we reject a tunnel because of transient overload", "Tunnels", new long[] { 60*1000, 10*60*1000 });
@@ -117,7 +127,7 @@ class BuildHandler implements Runnable {
         _context.statManager().createRequiredRateStat("tunnel.dropLoad", "Delay before dropping request (ms)?", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         _context.statManager().createRequiredRateStat("tunnel.dropLoadDelay", "Delay before abandoning request (ms)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         _context.statManager().createRequiredRateStat("tunnel.dropLoadBacklog", "Pending request count when dropped", "Tunnels", new long[] { 60*1000, 10*60*1000 });
-        _context.statManager().createRequiredRateStat("tunnel.dropLoadProactive", "Delay estimate when dropped (ms)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
+        _context.statManager().createRequiredRateStat("tunnel.dropLoadProactive", "Queue delay when dropped by CoDel (ms)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         _context.statManager().createRequiredRateStat("tunnel.dropLoadProactiveAbort", "Allowed requests during load", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         //_context.statManager().createRateStat("tunnel.handleRemaining", "How many pending inbound requests were left on the queue after one pass?", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         _context.statManager().createRateStat("tunnel.buildReplyTooSlow", "How often a tunnel build reply came back after we had given up waiting for it?", "Tunnels", new long[] { 60*1000, 10*60*1000 });
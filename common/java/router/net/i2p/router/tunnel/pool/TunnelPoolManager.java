@@ -46,6 +46,8 @@ public class TunnelPoolManager implements TunnelManagerFacade {
 
     private static final int MIN_KBPS_TWO_HANDLERS = 512;
     private static final int MIN_KBPS_THREE_HANDLERS = 1024;
+    /** decryption is CPU bound, above three we use one per core, up to this many */
+    private static final int MAX_HANDLERS = 8;
     
     public TunnelPoolManager(RouterContext ctx) {
         _context = ctx;
@@ -73,7 +75,7 @@ public class TunnelPoolManager implements TunnelManagerFacade {
         int numHandlerThreads;
         int share = TunnelDispatcher.getShareBandwidth(ctx);
         if (share >= MIN_KBPS_THREE_HANDLERS)
-            numHandlerThreads = 3;
+            numHandlerThreads = Math.max(3, Math.min(MAX_HANDLERS, Runtime.getRuntime().availableProcessors()));
         else if (share >= MIN_KBPS_TWO_HANDLERS)
             numHandlerThreads = 2;
         else
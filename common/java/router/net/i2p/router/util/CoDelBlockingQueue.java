@@ -55,7 +55,7 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
      *
      *  I2P: Raise to 15 due to multithreading environment
      *
-     *  Maybe need to make configurable per-instance.
+     *  Default, may be set per-instance as of 0.9.12.
      */
     private static final long TARGET = 15;
 
@@ -63,11 +63,14 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
      *  Quote:
      *  A setting of 100 ms works well across a range of RTTs from 10 ms to 1 second
      *
-     *  Maybe need to make configurable per-instance.
+     *  Default, may be set per-instance as of 0.9.12.
      */
     private static final long INTERVAL = 100;
     //private static final int MAXPACKET = 512;
 
+    private final long _target;
+    private final long _interval;
+
     private final String STAT_DROP;
     private final String STAT_DELAY;
     private static final long[] RATES = {5*60*1000, 60*60*1000};
@@ -77,7 +80,21 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
      *  @param name for stats
      */
     public CoDelBlockingQueue(I2PAppContext ctx, String name, int capacity) {
+        this(ctx, name, capacity, TARGET, INTERVAL);
+    }
+
+    /**
+     *  For entries that take much longer than a packet to process.
+     *
+     *  @param name for stats
+     *  @param target max acceptable queue delay (ms)
+     *  @param interval how long the delay may stay above target before dropping (ms)
+     *  @since 0.9.12
+     */
+    public CoDelBlockingQueue(I2PAppContext ctx, String name, int capacity, long target, long interval) {
         super(capacity);
+        _target = target;
+        _interval = interval;
         _context = ctx;
         _log = ctx.logManager().getLog(CoDelBlockingQueue.class);
         _name = name;
@@ -206,13 +223,13 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
         long sojurn = _now - entry.getEnqueueTime();
         _context.statManager().addRateData(STAT_DELAY, sojurn);
         // I2P use isEmpty instead of size() < MAXPACKET
-        if (sojurn < TARGET || isEmpty()) {
+        if (sojurn < _target || isEmpty()) {
             _first_above_time = 0;
         } else {
             if (_first_above_time == 0) {
                 // just went above from below. if we stay above
                 // for at least INTERVAL we'll say it's ok to drop
-                _first_above_time = _now + INTERVAL;
+                _first_above_time = _now + _interval;
             } else if (_now >= _first_above_time) {
                 ok_to_drop = true;
             }
@@ -269,7 +286,7 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
                     }
                 }
             } else if (ok_to_drop &&
-                       (_now - _drop_next < INTERVAL || _now - _first_above_time >= INTERVAL)) {
+                       (_now - _drop_next < _interval || _now - _first_above_time >= _interval)) {
                 // If we get here, then we're not in dropping state. If the sojourn time has been above
                 // target for interval, then we decide whether it's time to enter dropping state.
                 // We do so if we've been either in dropping state recently or above target for a relatively
@@ -286,7 +303,7 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
                 _dropping = true;
                 // If we're in a drop cycle, the drop rate that controlled the queue
                 // on the last cycle is a good starting point to control it now.
-                if (_now - _drop_next < INTERVAL)
+                if (_now - _drop_next < _interval)
                     _count = _count > 2 ? _count - 2 : 1;
                 else
                     _count = 1;
@@ -312,6 +329,6 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
      *  Caller must synch on this
      */
     private void control_law(long t) {
-        _drop_next = t + (long) (INTERVAL / Math.sqrt(_count));
+        _drop_next = t + (long) (_interval / Math.sqrt(_count));
     }
 }